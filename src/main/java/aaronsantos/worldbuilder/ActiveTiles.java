@@ -0,0 +1,127 @@
+package aaronsantos.worldbuilder;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which square tiles of the grid have water moving through them, so
+ * the hydrology and erosion phases can skip dormant dry land and still
+ * water.
+ * 
+ * A tile is active for a step if, during the previous step, water flowed
+ * through it, it held suspended sediment, or the water of one of its cells
+ * changed: the net of flow, rain, melt and evaporation, so rain that
+ * evaporates again doesn't keep a tile awake. Active tiles compute their
+ * outflow. Tiles next to an active tile are
+ * visited too, so water flowing out of an active tile is always received;
+ * a visited tile that receives water becomes active the step after.
+ * 
+ * Tiles are as tall as a RowBands band, so every band owns one row of
+ * tiles and only ever wakes tiles in that row.
+ *
+ * The small flows of dormant tiles are stopped, so a world with active
+ * tiles doesn't reproduce the results of one without them.
+ */
+class ActiveTiles
+{
+    static final int TILE_SIZE = RowBands.BAND_HEIGHT;
+
+    final int tilesX, tilesY;
+    private final boolean enabled;
+    // Tiles whose outflow is computed this step.
+    private final boolean[] active;
+    // Tiles that were active last step.
+    private final boolean[] wasActive;
+    // Active tiles and their neighbours, which move water this step.
+    private final boolean[] visited;
+    // Tiles that have been woken for the next step.
+    private final boolean[] awake;
+    private int activeCount;
+
+    /**
+     * @param enabled false keeps every tile active.
+     */
+    ActiveTiles(int width, int height, boolean enabled)
+    {
+        this.enabled = enabled;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        active = new boolean[tilesX * tilesY];
+        wasActive = new boolean[tilesX * tilesY];
+        visited = new boolean[tilesX * tilesY];
+        awake = new boolean[tilesX * tilesY];
+        // Everything starts out active until it has had a chance to settle.
+        Arrays.fill(awake, true);
+    }
+
+    /**
+     * Make the tiles woken during the last step the active set. Called
+     * between steps.
+     */
+    void advance()
+    {
+        System.arraycopy(active, 0, wasActive, 0, active.length);
+        activeCount = 0;
+        for (int i = 0; i < active.length; i++)
+        {
+            active[i] = awake[i] || !enabled;
+            if (active[i])
+            {
+                activeCount++;
+            }
+        }
+        Arrays.fill(awake, false);
+        for (int ty = 0; ty < tilesY; ty++)
+        {
+            for (int tx = 0; tx < tilesX; tx++)
+            {
+                visited[ty * tilesX + tx] = isActive(tx, ty)
+                    || isActive(tx - 1, ty) || isActive(tx + 1, ty)
+                    || isActive(tx, ty - 1) || isActive(tx, ty + 1);
+            }
+        }
+    }
+
+    boolean isActive(int tx, int ty)
+    {
+        return tx >= 0 && tx < tilesX && ty >= 0 && ty < tilesY && active[ty * tilesX + tx];
+    }
+
+    /**
+     * @return Whether the tile went dormant this step and its outflow needs clearing.
+     */
+    boolean isDormant(int tx, int ty)
+    {
+        return wasActive[ty * tilesX + tx] && !active[ty * tilesX + tx];
+    }
+
+    boolean isVisited(int tx, int ty)
+    {
+        return visited[ty * tilesX + tx];
+    }
+
+    /**
+     * Keep the tile containing cell (x, y) active next step.
+     */
+    void wake(int x, int y)
+    {
+        awake[(y / TILE_SIZE) * tilesX + x / TILE_SIZE] = true;
+    }
+
+    void wakeTile(int tx, int ty)
+    {
+        awake[ty * tilesX + tx] = true;
+    }
+
+    /**
+     * @return The number of tiles active this step.
+     */
+    int getActiveCount()
+    {
+        return activeCount;
+    }
+
+    int getTileCount()
+    {
+        return active.length;
+    }
+}
@@ -0,0 +1,14 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * A subsystem whose stable time step depends on its current state, so an
+ * adaptive Scheduler can split a run into as many substeps as it needs.
+ */
+public interface AdaptiveSubsystem extends Subsystem
+{
+    /**
+     * @return The largest dt a single substep can take right now, or
+     *         Float.POSITIVE_INFINITY if nothing limits it.
+     */
+    float getStableDt();
+}
@@ -0,0 +1,68 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * Helpers for semi-Lagrangian transport of per-cell quantities on a
+ * row-major grid. Each cell pulls its new value out of the previous buffer
+ * at the point its contents came from, so a cell only ever writes itself
+ * and the pass can be split across threads. Pulling does not conserve mass
+ * on its own; callers compare totals before and after and rescale.
+ */
+class Advection
+{
+    /**
+     * Bilinearly sample a field at a fractional cell position. Cell centers
+     * are at integer coordinates and positions outside the grid are clamped
+     * to the edge.
+     */
+    static float sample(final float[] field, int width, int height, float fx, float fy)
+    {
+        if (fx < 0)
+        {
+            fx = 0;
+        }
+        else if (fx > width - 1)
+        {
+            fx = width - 1;
+        }
+        if (fy < 0)
+        {
+            fy = 0;
+        }
+        else if (fy > height - 1)
+        {
+            fy = height - 1;
+        }
+        final int x0 = (int) fx;
+        final int y0 = (int) fy;
+        final int x1 = Math.min(x0 + 1, width - 1);
+        final int y1 = Math.min(y0 + 1, height - 1);
+        final float s = fx - x0;
+        final float t = fy - y0;
+        final int row0 = y0 * width;
+        final int row1 = y1 * width;
+        return (1 - t) * ((1 - s) * field[row0 + x0] + s * field[row0 + x1])
+            + t * ((1 - s) * field[row1 + x0] + s * field[row1 + x1]);
+    }
+
+    /**
+     * @return The sum of field[from, to).
+     */
+    static double sum(final float[] field, int from, int to)
+    {
+        double total = 0;
+        for (int i = from; i < to; i++)
+        {
+            total += field[i];
+        }
+        return total;
+    }
+
+    /**
+     * The factor that brings a transported total back to the total before
+     * transport.
+     */
+    static float correction(double before, double after)
+    {
+        return after > 0 ? (float) (before / after) : 1;
+    }
+}
@@ -48,20 +48,20 @@ public class Culture
           {
               return backness;
           }
-          public static Vowel getRandom()
+          public static Vowel getRandom(final RandomStream random)
           {
             final List<Height> heights = Arrays.asList(Height.values());
             final List<Backness> backnesses = Arrays.asList(Backness.values());
             return new Vowel(
-              heights.get((int) Util.random(0, heights.size())),
-              backnesses.get((int) Util.random(0, backnesses.size())),
-              Util.random(0, 2) > 1,
-              Util.random(0, 2) > 1);
+              heights.get((int) random.nextFloat(0, heights.size())),
+              backnesses.get((int) random.nextFloat(0, backnesses.size())),
+              random.nextFloat(0, 2) > 1,
+              random.nextFloat(0, 2) > 1);
           }
-          public static Vowel getRelated(final Vowel vowel)
+          public static Vowel getRelated(final Vowel vowel, final RandomStream random)
           {
             // Todo fix.
-            return getRandom();
+            return getRandom(random);
           }
         }
         public static class Consonant extends Phoneme implements Comparable
@@ -111,34 +111,34 @@ public class Culture
               return location;
           }
           
-          static Type getRandomType()
+          static Type getRandomType(final RandomStream random)
           {
             final List<Type> types = Arrays.asList(Type.values());
-            final Type type = types.get((int) Util.random(0, types.size()));
+            final Type type = types.get((int) random.nextFloat(0, types.size()));
             return type;
           }
           
-          static Location getRandomLocation()
+          static Location getRandomLocation(final RandomStream random)
           {
             final List<Location> locations = Arrays.asList(Location.values());
-            final Location location = locations.get((int) Util.random(0, locations.size()));
+            final Location location = locations.get((int) random.nextFloat(0, locations.size()));
             return location;
           }
           
-          static Consonant getRandom()
+          static Consonant getRandom(final RandomStream random)
           {
-            return new Consonant(getRandomType(), getRandomLocation());
+            return new Consonant(getRandomType(random), getRandomLocation(random));
           }
           
-          static Consonant getRelated(final Consonant consonant)
+          static Consonant getRelated(final Consonant consonant, final RandomStream random)
           {
             // 50-50
-            if (Util.random(0, 2) > 1)
+            if (random.nextFloat(0, 2) > 1)
             {
               // Change in type
               while (true)
               {
-                final Type type = getRandomType();
+                final Type type = getRandomType(random);
                 if (isPossible(type, consonant.getLocation()))
                 {
                   return new Consonant(type, consonant.getLocation());
@@ -150,7 +150,7 @@ public class Culture
               // Change in location
               while (true)
               {
-                final Location location = getRandomLocation();
+                final Location location = getRandomLocation(random);
                 if (isPossible(consonant.getType(), location))
                 {
                   return new Consonant(consonant.getType(), location);
@@ -213,22 +213,22 @@ public class Culture
           this.vowelInventory = vowelInventory;
           this.consonantInventory = consonantInventory;
         }
-        public static Phonology getRandom()
+        public static Phonology getRandom(final RandomStream random)
         {
             final Set<Consonant> consonantInventory = new ConcurrentSkipListSet<Consonant>();
             final Set<Vowel> vowelInventory = new ConcurrentSkipListSet<Vowel>();
             // Create a random, but self-consistent phonology
-            final int numConsonants = (int)Util.random(5, 22);
-            final int numVowels = (int)Util.random(5, 22);
+            final int numConsonants = (int)random.nextFloat(5, 22);
+            final int numVowels = (int)random.nextFloat(5, 22);
 
             for (int i = 0; i<5; i++)
             {
-              consonantInventory.add(Consonant.getRandom());
+              consonantInventory.add(Consonant.getRandom(random));
             }
 
             for (int i = 0; i<2; i++)
             {
-              vowelInventory.add(Vowel.getRandom());
+              vowelInventory.add(Vowel.getRandom(random));
             }
 
             while (consonantInventory.size() < numConsonants)
@@ -236,12 +236,12 @@ public class Culture
               consonantInventory.add(
                   Consonant.getRelated(
                       (new ArrayList<Consonant>(consonantInventory)).
-                          get((int) Util.random(0, consonantInventory.size()))));
+                          get((int) random.nextFloat(0, consonantInventory.size())), random));
             }
 
             for (int i = vowelInventory.size(); i < numVowels; i++)
             {
-              vowelInventory.add(Vowel.getRandom());
+              vowelInventory.add(Vowel.getRandom(random));
             }
             return new Phonology(vowelInventory, consonantInventory);
         }
@@ -275,42 +275,52 @@ public class Culture
                     new Consonant(Consonant.Type.Approximant, Consonant.Location.Alveolar),
                     new Consonant(Consonant.Type.LateralApproximant, Consonant.Location.Alveolar))));
         }
-        public Vowel getRandomVowel()
+        public Vowel getRandomVowel(final RandomStream random)
         {
-            return new ArrayList<Vowel>(vowelInventory).get((int) Util.random(0, vowelInventory.size()));
+            return new ArrayList<Vowel>(vowelInventory).get((int) random.nextFloat(0, vowelInventory.size()));
         }
-        public Consonant getRandomConsonant()
+        public Consonant getRandomConsonant(final RandomStream random)
         {
-            return new ArrayList<Consonant>(consonantInventory).get((int) Util.random(0, consonantInventory.size()));
+            return new ArrayList<Consonant>(consonantInventory).get((int) random.nextFloat(0, consonantInventory.size()));
         }
       }
       
-      //private final Phonology phonology = Phonology.getRandom();
+      //private final Phonology phonology = Phonology.getRandom(random);
       private final Phonology phonology = Phonology.getEnglish();
       
-      private final int minInitialConsonants = (int) Util.random(1, 3);
-      private final int minFinalConsonants = (int) Util.random(1, 3);
+      private final RandomStream random;
+      private final int minInitialConsonants;
+      private final int minFinalConsonants;
       private final int expectedInitialConsonants = 2;
       private final int expectedFinalConsonants = 2;
-      private final int maxInitialConsonants = (int) Util.random(1, 3);
-      private final int maxFinalConsonants = (int) Util.random(1, 3);
+      private final int maxInitialConsonants;
+      private final int maxFinalConsonants;
+      
+      public Phonotactic(final RandomStream random)
+      {
+        this.random = random;
+        minInitialConsonants = (int) random.nextFloat(1, 3);
+        minFinalConsonants = (int) random.nextFloat(1, 3);
+        maxInitialConsonants = (int) random.nextFloat(1, 3);
+        maxFinalConsonants = (int) random.nextFloat(1, 3);
+      }
       
       public List<Phonology.Phoneme> getRandomWord()
       {
-        final int len = Math.max((int) Util.poissonRandom(2), 1);
+        final int len = Math.max(random.nextPoisson(2), 1);
         final List<Phonology.Phoneme> phonemes = new ArrayList<Phonology.Phoneme>();
         
         for (int i = 0; i < len; i++)
         {
           final LinkedList<Phonology.Phoneme> syllable = new LinkedList<Phonology.Phoneme>();
           final int numInitialConsonants =
-            Math.max(Math.min((int) Util.poissonRandom(expectedInitialConsonants),
+            Math.max(Math.min(random.nextPoisson(expectedInitialConsonants),
                 maxInitialConsonants), minInitialConsonants);
           final int numFinalConsonants =
-            Math.max(Math.min((int) Util.poissonRandom(expectedFinalConsonants),
+            Math.max(Math.min(random.nextPoisson(expectedFinalConsonants),
                 maxFinalConsonants), minFinalConsonants);
           
-          final Phonology.Vowel vowel = phonology.getRandomVowel();
+          final Phonology.Vowel vowel = phonology.getRandomVowel(random);
           
           final Map<Phonology.Consonant.Type, Phonology.Consonant> initialConsonants =
                 new EnumMap<Phonology.Consonant.Type, Phonology.Consonant>(Phonology.Consonant.Type.class);
@@ -318,13 +328,13 @@ public class Culture
                 new EnumMap<Phonology.Consonant.Type, Phonology.Consonant>(Phonology.Consonant.Type.class);
           while (initialConsonants.size() < numInitialConsonants)
           {
-            final Phonology.Consonant consonant = phonology.getRandomConsonant();
+            final Phonology.Consonant consonant = phonology.getRandomConsonant(random);
             initialConsonants.put(consonant.getType(), consonant);
           }
           phonemes.add(vowel);
           while (finalConsonants.size() < numFinalConsonants)
           {
-            final Phonology.Consonant consonant = phonology.getRandomConsonant();
+            final Phonology.Consonant consonant = phonology.getRandomConsonant(random);
             finalConsonants.put(consonant.getType(), consonant);
           }
           syllable.addAll(initialConsonants.values());
@@ -0,0 +1,119 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * Mixed-radix complex FFT of a fixed length.
+ *
+ * The length is split into its prime factors and each one is handled by a
+ * decimation in time pass, so any length works, but lengths made of small
+ * primes (100, 256, 360) are the fast ones. Not thread safe; every FFT owns
+ * its scratch space.
+ */
+final class FFT
+{
+    private final int n;
+    private final int[] factors;
+    // Twiddles e^(2 pi i t / n).
+    private final double[] cos, sin;
+    // Scratch for each level of the recursion.
+    private final double[][] scratchRe, scratchIm;
+
+    FFT(int n)
+    {
+        this.n = n;
+        int count = 0;
+        final int[] found = new int[32];
+        int rest = n;
+        for (int p = 2; p * p <= rest; p++)
+        {
+            while (rest % p == 0)
+            {
+                found[count++] = p;
+                rest /= p;
+            }
+        }
+        if (rest > 1)
+        {
+            found[count++] = rest;
+        }
+        factors = new int[count];
+        System.arraycopy(found, 0, factors, 0, count);
+        cos = new double[n];
+        sin = new double[n];
+        for (int t = 0; t < n; t++)
+        {
+            cos[t] = Math.cos(2 * Math.PI * t / n);
+            sin[t] = Math.sin(2 * Math.PI * t / n);
+        }
+        scratchRe = new double[count][n];
+        scratchIm = new double[count][n];
+    }
+
+    int length()
+    {
+        return n;
+    }
+
+    /**
+     * Transform re + i*im in place. The inverse is not scaled by 1/n.
+     */
+    void transform(double[] re, double[] im, boolean inverse)
+    {
+        transform(re, im, 0, n, 0, inverse ? 1 : -1);
+    }
+
+    private void transform(double[] re, double[] im, int offset, int length, int depth, int sign)
+    {
+        if (length == 1)
+        {
+            return;
+        }
+        final int p = factors[depth];
+        final int m = length / p;
+        final double[] sRe = scratchRe[depth], sIm = scratchIm[depth];
+
+        // Gather every p-th element into p sub-sequences and transform each.
+        for (int r = 0; r < p; r++)
+        {
+            for (int k = 0; k < m; k++)
+            {
+                sRe[offset + r * m + k] = re[offset + k * p + r];
+                sIm[offset + r * m + k] = im[offset + k * p + r];
+            }
+        }
+        System.arraycopy(sRe, offset, re, offset, length);
+        System.arraycopy(sIm, offset, im, offset, length);
+        for (int r = 0; r < p; r++)
+        {
+            transform(re, im, offset + r * m, m, depth + 1, sign);
+        }
+
+        // X[k + m*q] is the sum over r of w^(r*(k + m*q)) * X_r[k].
+        final int stride = n / length;
+        for (int q = 0; q < p; q++)
+        {
+            for (int k = 0; k < m; k++)
+            {
+                final int step = k + m * q;
+                double sumRe = 0, sumIm = 0;
+                int e = 0;
+                for (int r = 0; r < p; r++)
+                {
+                    final int t = e * stride;
+                    final double wRe = cos[t], wIm = sign * sin[t];
+                    final double xRe = re[offset + r * m + k], xIm = im[offset + r * m + k];
+                    sumRe += wRe * xRe - wIm * xIm;
+                    sumIm += wRe * xIm + wIm * xRe;
+                    e += step;
+                    if (e >= length)
+                    {
+                        e %= length;
+                    }
+                }
+                sRe[offset + step] = sumRe;
+                sIm[offset + step] = sumIm;
+            }
+        }
+        System.arraycopy(sRe, offset, re, offset, length);
+        System.arraycopy(sIm, offset, im, offset, length);
+    }
+}
@@ -0,0 +1,374 @@
+package aaronsantos.worldbuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stam's FFT stable fluids ("A Simple Fluid Solver based on the FFT") on a
+ * grid that wraps east-west and north-south.
+ *
+ * Every tick diffuses and projects the velocity exactly in the Fourier
+ * domain, where viscosity is a damping of each wavenumber and projection
+ * removes the part of each mode parallel to its wavenumber, then
+ * self-advects it semi-Lagrangian and projects it again. That is the order
+ * of NavierStokesSolver's vel_step: a gust forced on a single cell is
+ * spread out before it is advected, where advecting it first would trace
+ * the cell back far upstream and lose the gust. There are no iterative
+ * sweeps, so a tick costs O(nx*ny*log(nx*ny)) and leaves no residual.
+ *
+ * Units match NavierStokesSolver: cells are 1/nx on a side and the grid
+ * covers a domain 1 across and ny/nx down. Tracers are advected the same
+ * way and diffused in the Fourier domain.
+ */
+public class FFTFluidSolver implements FluidSolver
+{
+    private final int nx, ny;
+    // Velocity and the copy advection reads, nx*ny cells in row-major order.
+    private final double[] u, v, u0, v0;
+    // Spectrum of u + i*v.
+    private final double[] re, im;
+    private final FFT rowFFT, columnFFT;
+    private final double[] lineRe, lineIm;
+    // Scalars carried by the wind and their diffusion.
+    private final List<double[]> tracers = new ArrayList<double[]>();
+    private final List<Double> tracerDiffusion = new ArrayList<Double>();
+
+    /**
+     * @param nx Number of cells across.
+     * @param ny Number of cells down.
+     */
+    public FFTFluidSolver(int nx, int ny)
+    {
+        this.nx = nx;
+        this.ny = ny;
+        u = new double[nx * ny];
+        v = new double[nx * ny];
+        u0 = new double[nx * ny];
+        v0 = new double[nx * ny];
+        re = new double[nx * ny];
+        im = new double[nx * ny];
+        rowFFT = new FFT(nx);
+        columnFFT = ny == nx ? rowFFT : new FFT(ny);
+        lineRe = new double[Math.max(nx, ny)];
+        lineIm = new double[Math.max(nx, ny)];
+    }
+
+    public int getGridWidth()
+    {
+        return nx;
+    }
+
+    public int getGridHeight()
+    {
+        return ny;
+    }
+
+    public int getTickIterations()
+    {
+        return 0;
+    }
+
+    public double getTickResidual()
+    {
+        return 0;
+    }
+
+    public double getMaxSpeed()
+    {
+        double max = 0;
+        for (int n = 0; n < u.length; n++)
+        {
+            max = Math.max(max, Math.max(Math.abs(u[n]), Math.abs(v[n])));
+        }
+        return max;
+    }
+
+    public double getDx(int x, int y)
+    {
+        return u[x + nx * y];
+    }
+
+    public double getDy(int x, int y)
+    {
+        return v[x + nx * y];
+    }
+
+    public double getDx(float x, float y, float width, float height)
+    {
+        return sample(u, x * nx / width - 0.5, y * ny / height - 0.5);
+    }
+
+    public double getDy(float x, float y, float width, float height)
+    {
+        return sample(v, x * nx / width - 0.5, y * ny / height - 0.5);
+    }
+
+    public void sample(float[] dx, float[] dy, int width, int height, int y0, int y1)
+    {
+        for (int y = y0; y < y1; y++)
+        {
+            final double sy = (float)y * ny / height - 0.5;
+            for (int x = 0; x < width; x++)
+            {
+                final double sx = (float)x * nx / width - 0.5;
+                dx[y * width + x] = (float)sample(u, sx, sy);
+                dy[y * width + x] = (float)sample(v, sx, sy);
+            }
+        }
+    }
+
+    public void applyForce(int cellX, int cellY, double vx, double vy)
+    {
+        final int n = cellX + nx * cellY;
+        // Same blend as NavierStokesSolver.applyForce.
+        if (vx != 0)
+        {
+            u[n] = Util.lerp((float)vx, (float)u[n], 0.85f);
+        }
+        if (vy != 0)
+        {
+            v[n] = Util.lerp((float)vy, (float)v[n], 0.85f);
+        }
+    }
+
+    public int addTracer(double diffusion)
+    {
+        tracers.add(new double[nx * ny]);
+        tracerDiffusion.add(diffusion);
+        return tracers.size() - 1;
+    }
+
+    public void setTracer(int tracer, double[] amounts)
+    {
+        System.arraycopy(amounts, 0, tracers.get(tracer), 0, nx * ny);
+    }
+
+    public void getTracer(int tracer, double[] amounts)
+    {
+        System.arraycopy(tracers.get(tracer), 0, amounts, 0, nx * ny);
+    }
+
+    public void tick(double dt, double visc)
+    {
+        diffuseAndProject(dt, visc);
+        System.arraycopy(u, 0, u0, 0, u.length);
+        System.arraycopy(v, 0, v0, 0, v.length);
+        advect(dt);
+        // Without viscosity this only projects.
+        diffuseAndProject(dt, 0);
+
+        for (int t = 0; t < tracers.size(); t++)
+        {
+            stepTracer(tracers.get(t), tracerDiffusion.get(t), dt);
+        }
+    }
+
+    // Advect a tracer along the new velocity and diffuse it, then scale it
+    // back to its total, which bilinear sampling doesn't keep. Damping the
+    // spectrum can ring below zero next to sharp edges, which is clipped
+    // before the total is restored.
+    private void stepTracer(double[] tracer, double diffusion, double dt)
+    {
+        double before = 0;
+        for (int n = 0; n < tracer.length; n++)
+        {
+            before += tracer[n];
+        }
+        System.arraycopy(tracer, 0, u0, 0, tracer.length);
+        final double dt0 = dt * nx;
+        for (int j = 0; j < ny; j++)
+        {
+            for (int i = 0; i < nx; i++)
+            {
+                final int n = i + nx * j;
+                tracer[n] = sample(u0, i - dt0 * u[n], j - dt0 * v[n]);
+            }
+        }
+        if (diffusion > 0)
+        {
+            System.arraycopy(tracer, 0, re, 0, tracer.length);
+            Arrays.fill(im, 0);
+            transform(false);
+            for (int j = 0; j < ny; j++)
+            {
+                for (int i = 0; i < nx; i++)
+                {
+                    final double damping = 1 / (1 + diffusion * dt * wavenumberSquared(i, j));
+                    re[i + nx * j] *= damping;
+                    im[i + nx * j] *= damping;
+                }
+            }
+            transform(true);
+            final double scale = 1.0 / (nx * ny);
+            for (int n = 0; n < tracer.length; n++)
+            {
+                tracer[n] = Math.max(0, re[n] * scale);
+            }
+        }
+        double after = 0;
+        for (int n = 0; n < tracer.length; n++)
+        {
+            after += tracer[n];
+        }
+        if (after > 0)
+        {
+            final double scale = before / after;
+            for (int n = 0; n < tracer.length; n++)
+            {
+                tracer[n] *= scale;
+            }
+        }
+    }
+
+    // |k|^2 of mode (i, j) on the domain 1 across and ny/nx down.
+    private double wavenumberSquared(int i, int j)
+    {
+        final double kx = 2 * Math.PI * (i <= nx / 2 ? i : i - nx);
+        final double ky = 2 * Math.PI * nx / ny * (j <= ny / 2 ? j : j - ny);
+        return kx * kx + ky * ky;
+    }
+
+    // Trace every cell back along u0, v0 and sample the wrapped grid there.
+    private void advect(double dt)
+    {
+        final double dt0 = dt * nx;
+        for (int j = 0; j < ny; j++)
+        {
+            for (int i = 0; i < nx; i++)
+            {
+                final int n = i + nx * j;
+                final double x = i - dt0 * u0[n];
+                final double y = j - dt0 * v0[n];
+                u[n] = sample(u0, x, y);
+                v[n] = sample(v0, x, y);
+            }
+        }
+    }
+
+    // Bilinear sample of a field at cell coordinates (x, y), wrapping around the edges.
+    private double sample(double[] field, double x, double y)
+    {
+        final double fx = Math.floor(x), fy = Math.floor(y);
+        final double s = x - fx, t = y - fy;
+        final int i0 = wrap((int)fx, nx), j0 = wrap((int)fy, ny);
+        final int i1 = i0 + 1 == nx ? 0 : i0 + 1;
+        final int j1 = j0 + 1 == ny ? 0 : j0 + 1;
+        return (1 - t) * ((1 - s) * field[i0 + nx * j0] + s * field[i1 + nx * j0])
+            + t * ((1 - s) * field[i0 + nx * j1] + s * field[i1 + nx * j1]);
+    }
+
+    private static int wrap(int i, int n)
+    {
+        final int w = i % n;
+        return w < 0 ? w + n : w;
+    }
+
+    // 2D transform of re + i*im, rows then columns.
+    private void transform(boolean inverse)
+    {
+        for (int j = 0; j < ny; j++)
+        {
+            System.arraycopy(re, nx * j, lineRe, 0, nx);
+            System.arraycopy(im, nx * j, lineIm, 0, nx);
+            rowFFT.transform(lineRe, lineIm, inverse);
+            System.arraycopy(lineRe, 0, re, nx * j, nx);
+            System.arraycopy(lineIm, 0, im, nx * j, nx);
+        }
+        for (int i = 0; i < nx; i++)
+        {
+            for (int j = 0; j < ny; j++)
+            {
+                lineRe[j] = re[i + nx * j];
+                lineIm[j] = im[i + nx * j];
+            }
+            columnFFT.transform(lineRe, lineIm, inverse);
+            for (int j = 0; j < ny; j++)
+            {
+                re[i + nx * j] = lineRe[j];
+                im[i + nx * j] = lineIm[j];
+            }
+        }
+    }
+
+    // Diffuse and project u and v through their spectrum.
+    private void diffuseAndProject(double dt, double visc)
+    {
+        // u and v are real, so both fit in one complex transform.
+        System.arraycopy(u, 0, re, 0, u.length);
+        System.arraycopy(v, 0, im, 0, v.length);
+        transform(false);
+        diffuseAndProjectSpectrum(dt, visc);
+        transform(true);
+        final double scale = 1.0 / (nx * ny);
+        for (int n = 0; n < u.length; n++)
+        {
+            u[n] = re[n] * scale;
+            v[n] = im[n] * scale;
+        }
+    }
+
+    /**
+     * Damp every mode of the spectrum of u + i*v by the implicit viscous
+     * step 1/(1 + visc*dt*|k|^2) and remove its component along k.
+     *
+     * Z(k) = U(k) + i*V(k) and, since u and v are real, U(-k) = conj(U(k)),
+     * so U and V are recovered from Z(k) and Z(-k) and both modes of a pair
+     * are rewritten together. The derivative of a Nyquist mode is taken as
+     * zero, which keeps the projection even in k and u and v real.
+     */
+    private void diffuseAndProjectSpectrum(double dt, double visc)
+    {
+        // The domain is 1 across and ny/nx down.
+        final double kxScale = 2 * Math.PI;
+        final double kyScale = 2 * Math.PI * nx / ny;
+        for (int j = 0; j < ny; j++)
+        {
+            final int j2 = j == 0 ? 0 : ny - j;
+            final int wj = j <= ny / 2 ? j : j - ny;
+            final double ky = kyScale * wj;
+            final double kyProject = 2 * j == ny ? 0 : ky;
+            for (int i = 0; i < nx; i++)
+            {
+                final int i2 = i == 0 ? 0 : nx - i;
+                final int n = i + nx * j;
+                final int n2 = i2 + nx * j2;
+                if (n2 < n)
+                {
+                    continue;
+                }
+                final int wi = i <= nx / 2 ? i : i - nx;
+                final double kx = kxScale * wi;
+                final double kxProject = 2 * i == nx ? 0 : kx;
+
+                // a = Z(k), b = conj(Z(-k)), U = (a + b)/2, V = (a - b)/2i.
+                final double aRe = re[n], aIm = im[n];
+                final double bRe = re[n2], bIm = -im[n2];
+                double uRe = 0.5 * (aRe + bRe), uIm = 0.5 * (aIm + bIm);
+                double vRe = 0.5 * (aIm - bIm), vIm = -0.5 * (aRe - bRe);
+
+                final double k2 = kxProject * kxProject + kyProject * kyProject;
+                if (k2 > 0)
+                {
+                    final double dotRe = (kxProject * uRe + kyProject * vRe) / k2;
+                    final double dotIm = (kxProject * uIm + kyProject * vIm) / k2;
+                    uRe -= kxProject * dotRe;
+                    uIm -= kxProject * dotIm;
+                    vRe -= kyProject * dotRe;
+                    vIm -= kyProject * dotIm;
+                }
+                final double damping = 1 / (1 + visc * dt * (kx * kx + ky * ky));
+                uRe *= damping;
+                uIm *= damping;
+                vRe *= damping;
+                vIm *= damping;
+
+                // Z(k) = U + iV and Z(-k) = conj(U) + i*conj(V).
+                re[n2] = uRe + vIm;
+                im[n2] = -uIm + vRe;
+                re[n] = uRe - vIm;
+                im[n] = uIm + vRe;
+            }
+        }
+    }
+}
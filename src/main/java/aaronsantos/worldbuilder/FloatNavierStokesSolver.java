@@ -0,0 +1,498 @@
+package aaronsantos.worldbuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single precision NavierStokesSolver. Runs the same steps in the same
+ * order, but its buffers are float[] held in a Workspace and are exchanged
+ * by swapping references rather than by copying them through a tmp array,
+ * so a tick moves a quarter of the bytes the double solver does.
+ *
+ * Solves with 20 Gauss-Seidel sweeps, lexicographic or red-black. Fields
+ * are stored a column at a time, so the lexicographic sweep, which runs
+ * down each column in turn, walks memory in order while updating the cells
+ * in the same order as the double solver. Parallel kernels run over bands
+ * of columns for the same reason.
+ */
+public class FloatNavierStokesSolver implements FluidSolver {
+    /**
+     * The buffers of a solver of a given size. A workspace can be handed
+     * to a new solver once the one using it is no longer ticked.
+     */
+    public static final class Workspace {
+        final int nx, ny;
+        float[] u, v, uPrev, vPrev;
+        // Target of the steps that can't run in place.
+        float[] scratch;
+
+        public Workspace(int nx, int ny) {
+            this.nx = nx;
+            this.ny = ny;
+            final int size = (nx + 2) * (ny + 2);
+            u = new float[size];
+            v = new float[size];
+            uPrev = new float[size];
+            vPrev = new float[size];
+            scratch = new float[size];
+        }
+
+        void clear() {
+            Arrays.fill(u, 0);
+            Arrays.fill(v, 0);
+            Arrays.fill(uPrev, 0);
+            Arrays.fill(vPrev, 0);
+        }
+    }
+
+    final int nx, ny;
+    private final Workspace ws;
+
+    // Scalars carried by the wind and their diffusion.
+    private final List<float[]> tracers = new ArrayList<float[]>();
+    private final List<Double> tracerDiffusion = new ArrayList<Double>();
+
+    // Runs rows in parallel in red-black order, null to run serially.
+    private RowBands bands;
+
+    // Arguments of the row kernels, set before each run.
+    private float[] kx, kx0, ku, kv;
+    private float ka, kc, kdt0, kh;
+    private int kcolour;
+
+    private final RowBands.Kernel relaxKernel = new RowBands.Kernel() {
+        public void run(int i0, int i1) {
+            relaxColumns(kx, kx0, ka, kc, kcolour, i0, i1);
+        }
+    };
+
+    private final RowBands.Kernel advectKernel = new RowBands.Kernel() {
+        public void run(int i0, int i1) {
+            advectColumns(kx, kx0, ku, kv, kdt0, i0, i1);
+        }
+    };
+
+    private final RowBands.Kernel divergenceKernel = new RowBands.Kernel() {
+        public void run(int i0, int i1) {
+            divergenceColumns(ku, kv, kx, kx0, kh, i0, i1);
+        }
+    };
+
+    private final RowBands.Kernel gradientKernel = new RowBands.Kernel() {
+        public void run(int i0, int i1) {
+            subtractGradientColumns(ku, kv, kx, kh, i0, i1);
+        }
+    };
+
+    // Iterations run and the worst relative residual left by the last tick.
+    private int tickIterations;
+    private double tickResidual;
+    // Where the world's cells sample the grid, for the last world size sampled.
+    private volatile SampleGrid sampleGrid;
+
+    public FloatNavierStokesSolver(int nx, int ny) {
+        this(new Workspace(nx, ny));
+    }
+
+    /**
+     * Solve on a workspace, starting from calm air.
+     */
+    public FloatNavierStokesSolver(Workspace ws) {
+        this.nx = ws.nx;
+        this.ny = ws.ny;
+        this.ws = ws;
+        ws.clear();
+    }
+
+    /**
+     * Take over the velocity and tracers of a double solver of the same size,
+     * rounded to float.
+     */
+    public void copyFrom(NavierStokesSolver source) {
+        if (source.nx != nx || source.ny != ny) {
+            throw new IllegalArgumentException("Grid sizes differ");
+        }
+        for (int j = 0; j <= ny + 1; j++) {
+            for (int i = 0; i <= nx + 1; i++) {
+                final int n = source.INDEX(i, j);
+                ws.u[INDEX(i, j)] = (float) source.u[n];
+                ws.v[INDEX(i, j)] = (float) source.v[n];
+                ws.uPrev[INDEX(i, j)] = (float) source.u_prev[n];
+                ws.vPrev[INDEX(i, j)] = (float) source.v_prev[n];
+            }
+        }
+        for (int t = 0; t < Math.min(tracers.size(), source.tracers.size()); t++) {
+            final float[] x = tracers.get(t);
+            final double[] sourceTracer = source.tracers.get(t);
+            for (int j = 0; j <= ny + 1; j++) {
+                for (int i = 0; i <= nx + 1; i++) {
+                    x[INDEX(i, j)] = (float) sourceTracer[source.INDEX(i, j)];
+                }
+            }
+        }
+    }
+
+    /**
+     * Relax in red-black order and run advection and projection over bands of columns.
+     */
+    public void useRedBlack(RowBands bands) {
+        this.bands = bands;
+    }
+
+    public int getTickIterations() {
+        return tickIterations;
+    }
+
+    public double getTickResidual() {
+        return tickResidual;
+    }
+
+    public double getMaxSpeed() {
+        double max = 0;
+        for (int n = 0; n < ws.u.length; n++) {
+            max = Math.max(max, Math.max(Math.abs(ws.u[n]), Math.abs(ws.v[n])));
+        }
+        return max;
+    }
+
+    public int getGridWidth() {
+        return nx;
+    }
+
+    public int getGridHeight() {
+        return ny;
+    }
+
+    public double getDx(int x, int y) {
+        return ws.u[INDEX(x + 1, y + 1)];
+    }
+
+    public double getDy(int x, int y) {
+        return ws.v[INDEX(x + 1, y + 1)];
+    }
+
+    public double getDx(float x, float y, float width, float height) {
+        return interpolate(ws.u, x, y, width, height);
+    }
+
+    public double getDy(float x, float y, float width, float height) {
+        return interpolate(ws.v, x, y, width, height);
+    }
+
+    // The blend of NavierStokesSolver.getDx and getDy for a single point.
+    private float interpolate(float[] field, float x, float y, float width, float height) {
+        final float cellWidth = width / nx;
+        final float cellHeight = height / ny;
+        final int cellX = (int) (x / cellWidth);
+        final int cellY = (int) (y / cellHeight);
+        final float lX = x - cellX * cellWidth - cellWidth / 2;
+        final float lY = y - cellY * cellHeight - cellHeight / 2;
+        final int c = lX > 0 ? Math.min(nx, cellX + 1) : Math.min(nx, cellX - 1);
+        final int h = lY > 0 ? Math.min(ny, cellY + 1) : Math.min(ny, cellY - 1);
+        final float wX = (lX > 0 ? 1 : -1) * lX / cellWidth;
+        final float wY = (lY > 0 ? 1 : -1) * lY / cellHeight;
+        return Util.lerp(Util.lerp(field[INDEX(cellX + 1, cellY + 1)], field[INDEX(c + 1, cellY + 1)], wY),
+                Util.lerp(field[INDEX(cellX + 1, h + 1)], field[INDEX(c + 1, h + 1)], wY), wX);
+    }
+
+    // The same blend as interpolate, with the cells and weights of every
+    // column and row looked up instead of worked out for every world cell.
+    public void sample(float[] dx, float[] dy, int width, int height, int y0, int y1) {
+        final SampleGrid grid = SampleGrid.get(sampleGrid, nx, ny, width, height);
+        sampleGrid = grid;
+        final int[] column = grid.column, neighbour = grid.neighbourColumn;
+        final float[] weight = grid.columnWeight;
+        final float[] u = ws.u, v = ws.v;
+        final int stride = ny + 2;
+        for (int y = y0; y < y1; y++) {
+            final int row = grid.row[y], rowH = grid.neighbourRow[y];
+            final float wY = grid.rowWeight[y];
+            for (int x = 0; x < width; x++) {
+                final int c = stride * column[x], n = stride * neighbour[x];
+                final float wX = weight[x];
+                dx[y * width + x] = Util.lerp(Util.lerp(u[c + row], u[n + row], wY),
+                        Util.lerp(u[c + rowH], u[n + rowH], wY), wX);
+                dy[y * width + x] = Util.lerp(Util.lerp(v[c + row], v[n + row], wY),
+                        Util.lerp(v[c + rowH], v[n + rowH], wY), wX);
+            }
+        }
+    }
+
+    public void applyForce(int cellX, int cellY, double vx, double vy) {
+        final int n = INDEX(cellX + 1, cellY + 1);
+        // Same blend as NavierStokesSolver.applyForce.
+        if (vx != 0) {
+            ws.u[n] = Util.lerp((float) vx, ws.u[n], 0.85f);
+        }
+        if (vy != 0) {
+            ws.v[n] = Util.lerp((float) vy, ws.v[n], 0.85f);
+        }
+    }
+
+    public int addTracer(double diffusion) {
+        tracers.add(new float[(nx + 2) * (ny + 2)]);
+        tracerDiffusion.add(diffusion);
+        return tracers.size() - 1;
+    }
+
+    public void setTracer(int tracer, double[] amounts) {
+        final float[] x = tracers.get(tracer);
+        for (int j = 1; j <= ny; j++) {
+            for (int i = 1; i <= nx; i++) {
+                x[INDEX(i, j)] = (float) amounts[(i - 1) + nx * (j - 1)];
+            }
+        }
+        set_bnd(0, x);
+    }
+
+    public void getTracer(int tracer, double[] amounts) {
+        final float[] x = tracers.get(tracer);
+        for (int j = 1; j <= ny; j++) {
+            for (int i = 1; i <= nx; i++) {
+                amounts[(i - 1) + nx * (j - 1)] = x[INDEX(i, j)];
+            }
+        }
+    }
+
+    public void tick(double dt, double visc) {
+        tickIterations = 0;
+        tickResidual = 0;
+        vel_step((float) visc, (float) dt);
+        for (int t = 0; t < tracers.size(); t++) {
+            tracer_step(t, tracerDiffusion.get(t).floatValue(), (float) dt);
+        }
+    }
+
+    // Column-major, unlike NavierStokesSolver.
+    final int INDEX(int i, int j) {
+        return j + (ny + 2) * i;
+    }
+
+    private void swapU() {
+        final float[] t = ws.u;
+        ws.u = ws.uPrev;
+        ws.uPrev = t;
+    }
+
+    private void swapV() {
+        final float[] t = ws.v;
+        ws.v = ws.vPrev;
+        ws.vPrev = t;
+    }
+
+    // NavierStokesSolver.vel_step with its SWAPs done by reference.
+    void vel_step(float visc, float dt) {
+        add_source(ws.u, ws.uPrev, dt);
+        add_source(ws.v, ws.vPrev, dt);
+        swapU();
+        diffuse(1, ws.u, ws.uPrev, visc, dt);
+        swapV();
+        diffuse(2, ws.v, ws.vPrev, visc, dt);
+        project(ws.u, ws.v, ws.uPrev, ws.vPrev);
+        swapU();
+        swapV();
+        advect(1, ws.u, ws.uPrev, ws.uPrev, ws.vPrev, dt);
+        advect(2, ws.v, ws.vPrev, ws.uPrev, ws.vPrev, dt);
+        project(ws.u, ws.v, ws.uPrev, ws.vPrev);
+    }
+
+    // Diffuse and advect a tracer, then scale it back to its total. The
+    // tracer and the scratch buffer trade places instead of being copied.
+    void tracer_step(int tracer, float diff, float dt) {
+        float[] x = tracers.get(tracer);
+        final double before = interiorSum(x);
+        if (diff > 0) {
+            // Diffusion starts from the tracer as its guess, as in the double solver.
+            System.arraycopy(x, 0, ws.scratch, 0, x.length);
+            diffuse(0, x, ws.scratch, diff, dt);
+        }
+        final float[] advected = ws.scratch;
+        advect(0, advected, x, ws.u, ws.v, dt);
+        ws.scratch = x;
+        tracers.set(tracer, advected);
+        x = advected;
+        final double after = interiorSum(x);
+        if (after > 0) {
+            final float scale = (float) (before / after);
+            for (int j = 1; j <= ny; j++) {
+                for (int i = 1; i <= nx; i++) {
+                    x[INDEX(i, j)] *= scale;
+                }
+            }
+            set_bnd(0, x);
+        }
+    }
+
+    private double interiorSum(float[] x) {
+        double sum = 0;
+        for (int i = 1; i <= nx; i++) {
+            for (int j = 1; j <= ny; j++) {
+                sum += x[INDEX(i, j)];
+            }
+        }
+        return sum;
+    }
+
+    void add_source(float[] x, float[] s, float dt) {
+        for (int i = 0; i < x.length; i++) {
+            x[i] += dt * s[i];
+        }
+    }
+
+    // Solve c*x - a*(sum of the four neighbours of x) = x0.
+    // Each cell waits on the one before it, so multiply rather than divide
+    // to keep that chain short.
+    void lin_solve(int b, float[] x, float[] x0, float a, float c) {
+        final float inverseC = 1 / c;
+        for (int k = 0; k < 20; k++) {
+            if (bands != null) {
+                kx = x;
+                kx0 = x0;
+                ka = a;
+                kc = inverseC;
+                for (kcolour = 0; kcolour < 2; kcolour++) {
+                    bands.run(1, nx + 1, relaxKernel);
+                }
+            }
+            else {
+                final int h = ny + 2;
+                for (int i = 1; i <= nx; i++) {
+                    for (int n = INDEX(i, 1), end = n + ny; n < end; n++) {
+                        x[n] = (x0[n] + a * (x[n - h] + x[n + h] + x[n - 1] + x[n + 1])) * inverseC;
+                    }
+                }
+            }
+            set_bnd(b, x);
+        }
+        tickIterations += 20;
+        tickResidual = Math.max(tickResidual, relativeResidual(x, x0, a, c));
+    }
+
+    // Cells of columns [i0, i1) whose i+j has the parity of colour.
+    void relaxColumns(float[] x, float[] x0, float a, float inverseC, int colour, int i0, int i1) {
+        final int h = ny + 2;
+        for (int i = i0; i < i1; i++) {
+            for (int j = 1 + ((colour + i + 1) & 1); j <= ny; j += 2) {
+                final int n = j + h * i;
+                x[n] = (x0[n] + a * (x[n - h] + x[n + h] + x[n - 1] + x[n + 1])) * inverseC;
+            }
+        }
+    }
+
+    private double relativeResidual(float[] x, float[] x0, float a, float c) {
+        double r2 = 0, b2 = 0;
+        for (int i = 1; i <= nx; i++) {
+            for (int j = 1; j <= ny; j++) {
+                final double r = x0[INDEX(i, j)] - (c * x[INDEX(i, j)] - a
+                        * (x[INDEX(i - 1, j)] + x[INDEX(i + 1, j)] + x[INDEX(i, j - 1)] + x[INDEX(i, j + 1)]));
+                r2 += r * r;
+                b2 += x0[INDEX(i, j)] * x0[INDEX(i, j)];
+            }
+        }
+        return Math.sqrt(r2) / Math.max(Math.sqrt(b2), Double.MIN_NORMAL);
+    }
+
+    void diffuse(int b, float[] x, float[] x0, float diff, float dt) {
+        final float a = dt * diff * nx * nx;
+        lin_solve(b, x, x0, a, 1 + 4 * a);
+    }
+
+    void advect(int b, float[] d, float[] d0, float[] u, float[] v, float dt) {
+        final float dt0 = dt * nx;
+        if (bands != null) {
+            kx = d;
+            kx0 = d0;
+            ku = u;
+            kv = v;
+            kdt0 = dt0;
+            bands.run(1, nx + 1, advectKernel);
+        }
+        else {
+            advectColumns(d, d0, u, v, dt0, 1, nx + 1);
+        }
+        set_bnd(b, d);
+    }
+
+    void advectColumns(float[] d, float[] d0, float[] u, float[] v, float dt0, int i0, int i1) {
+        for (int i = i0; i < i1; i++) {
+            for (int j = 1; j <= ny; j++) {
+                float x = i - dt0 * u[INDEX(i, j)];
+                float y = j - dt0 * v[INDEX(i, j)];
+                x = Math.max(0.5f, Math.min(nx + 0.5f, x));
+                y = Math.max(0.5f, Math.min(ny + 0.5f, y));
+                final int ii0 = (int) x, ii1 = ii0 + 1;
+                final int jj0 = (int) y, jj1 = jj0 + 1;
+                final float s1 = x - ii0, s0 = 1 - s1;
+                final float t1 = y - jj0, t0 = 1 - t1;
+                d[INDEX(i, j)] = s0 * (t0 * d0[INDEX(ii0, jj0)] + t1 * d0[INDEX(ii0, jj1)])
+                        + s1 * (t0 * d0[INDEX(ii1, jj0)] + t1 * d0[INDEX(ii1, jj1)]);
+            }
+        }
+    }
+
+    void project(float[] u, float[] v, float[] p, float[] div) {
+        final float h = 1.0f / nx;
+        if (bands != null) {
+            ku = u;
+            kv = v;
+            kx = p;
+            kx0 = div;
+            kh = h;
+            bands.run(1, nx + 1, divergenceKernel);
+        }
+        else {
+            divergenceColumns(u, v, p, div, h, 1, nx + 1);
+        }
+        set_bnd(0, div);
+        set_bnd(0, p);
+        lin_solve(0, p, div, 1, 4);
+        if (bands != null) {
+            ku = u;
+            kv = v;
+            kx = p;
+            kh = h;
+            bands.run(1, nx + 1, gradientKernel);
+        }
+        else {
+            subtractGradientColumns(u, v, p, h, 1, nx + 1);
+        }
+        set_bnd(1, u);
+        set_bnd(2, v);
+    }
+
+    void divergenceColumns(float[] u, float[] v, float[] p, float[] div, float h, int i0, int i1) {
+        for (int i = i0; i < i1; i++) {
+            for (int j = 1; j <= ny; j++) {
+                div[INDEX(i, j)] = -0.5f * h
+                        * (u[INDEX(i + 1, j)] - u[INDEX(i - 1, j)] + v[INDEX(i, j + 1)] - v[INDEX(i, j - 1)]);
+                p[INDEX(i, j)] = 0;
+            }
+        }
+    }
+
+    void subtractGradientColumns(float[] u, float[] v, float[] p, float h, int i0, int i1) {
+        for (int i = i0; i < i1; i++) {
+            for (int j = 1; j <= ny; j++) {
+                u[INDEX(i, j)] -= 0.5f * (p[INDEX(i + 1, j)] - p[INDEX(i - 1, j)]) / h;
+                v[INDEX(i, j)] -= 0.5f * (p[INDEX(i, j + 1)] - p[INDEX(i, j - 1)]) / h;
+            }
+        }
+    }
+
+    // NavierStokesSolver.setBoundary for float fields.
+    void set_bnd(int b, float[] x) {
+        for (int j = 1; j <= ny; j++) {
+            x[INDEX(0, j)] = b == 1 ? -x[INDEX(1, j)] : x[INDEX(1, j)];
+            x[INDEX(nx + 1, j)] = b == 1 ? -x[INDEX(nx, j)] : x[INDEX(nx, j)];
+        }
+        for (int i = 1; i <= nx; i++) {
+            x[INDEX(i, 0)] = b == 2 ? -x[INDEX(i, 1)] : x[INDEX(i, 1)];
+            x[INDEX(i, ny + 1)] = b == 2 ? -x[INDEX(i, ny)] : x[INDEX(i, ny)];
+        }
+        x[INDEX(0, 0)] = 0.5f * (x[INDEX(1, 0)] + x[INDEX(0, 1)]);
+        x[INDEX(0, ny + 1)] = 0.5f * (x[INDEX(1, ny + 1)] + x[INDEX(0, ny)]);
+        x[INDEX(nx + 1, 0)] = 0.5f * (x[INDEX(nx, 0)] + x[INDEX(nx + 1, 1)]);
+        x[INDEX(nx + 1, ny + 1)] = 0.5f * (x[INDEX(nx, ny + 1)] + x[INDEX(nx + 1, ny)]);
+    }
+}
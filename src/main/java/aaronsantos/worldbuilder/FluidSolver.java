@@ -0,0 +1,76 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * A wind solver on an nx by ny grid of square cells that World can force
+ * and sample. Sample coordinates are in the world's cells; the grid is
+ * stretched over the whole world.
+ */
+public interface FluidSolver
+{
+    int getGridWidth();
+
+    int getGridHeight();
+
+    /**
+     * Blend velocity (vx, vy) into grid cell (cellX, cellY).
+     */
+    void applyForce(int cellX, int cellY, double vx, double vy);
+
+    /**
+     * Advance the velocity field by dt and carry every tracer along with it.
+     * @param visc Viscosity of the air.
+     */
+    void tick(double dt, double visc);
+
+    /**
+     * Register a scalar, such as water vapor, that is advected and diffused
+     * on the solver's grid every tick. Ticks keep each tracer's total.
+     * @param diffusion Diffusion of the tracer, 0 for none.
+     * @return The tracer's id.
+     */
+    int addTracer(double diffusion);
+
+    /**
+     * Replace a tracer's amounts with nx*ny values in row-major order.
+     */
+    void setTracer(int tracer, double[] amounts);
+
+    /**
+     * Copy a tracer's amounts into nx*ny values in row-major order.
+     */
+    void getTracer(int tracer, double[] amounts);
+
+    /**
+     * @return Velocity across at (x, y) of a world width by height cells.
+     */
+    double getDx(float x, float y, float width, float height);
+
+    /**
+     * @return Velocity down at (x, y) of a world width by height cells.
+     */
+    double getDy(float x, float y, float width, float height);
+
+    /**
+     * Fill rows [y0, y1) of a world width by height cells with the velocity
+     * getDx and getDy return there. Must be safe to call for different rows
+     * at the same time.
+     */
+    void sample(float[] dx, float[] dy, int width, int height, int y0, int y1);
+
+    /**
+     * @return The largest velocity component on the grid, in the units of
+     *         getDx and getDy. A tick of dt moves air up to
+     *         dt*getMaxSpeed()*getGridWidth() cells.
+     */
+    double getMaxSpeed();
+
+    /**
+     * @return Iterations run by the linear solves of the last tick.
+     */
+    int getTickIterations();
+
+    /**
+     * @return The largest residual, relative to the right hand side, left by a linear solve of the last tick.
+     */
+    double getTickResidual();
+}
@@ -0,0 +1,393 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * A semi-implicit version of the pipe model that stays stable at time
+ * steps far past the explicit one.
+ *
+ * The pipe model updates every pipe's flux from the current water surface
+ * eta: q' = q + c*(eta_i - eta_j) with c = dt*A*g/l, then moves the water
+ * by the new flux. Here the flux is driven by the surface at the end of
+ * the step instead, which couples every cell to its neighbours:
+ *
+ *   (I + k*L) delta = -dt/l^2 * div(q) - k*L*eta,  k = dt^2*A*g/l^3
+ *
+ * where delta is the change in the surface and L the graph Laplacian over
+ * the open pipes. The matrix is symmetric positive definite and is solved
+ * with Jacobi-preconditioned conjugate gradients over bands of rows, with
+ * dot products summed in band order so the result doesn't depend on the
+ * thread count.
+ *
+ * The fluxes are then limited so no cell loses more water than it has, as
+ * in the pipe model, and the water moves through updateWater, so volume is
+ * conserved exactly. The limiter only bites where water runs dry.
+ *
+ * A pipe is open if either of its cells had its flux computed this step.
+ * Cells that didn't keep their outflow at zero, as in the pipe model.
+ */
+public class ImplicitShallowWaterModel extends PipeModel
+{
+    private RowBands bands = new RowBands(1);
+    private double tolerance = 1e-6;
+    private int maxIterations = 100;
+
+    // Cells whose flux was computed this step.
+    private final boolean[] open;
+    // Net flux at the start of the step through each cell's right and bottom pipes.
+    private final double[] qx, qy;
+    // Change in the water surface and the conjugate gradient's vectors.
+    private final double[] delta, r, z, p, ap, diagonal;
+    // Per-band partial dot products.
+    private final double[] partial, partial2;
+
+    private int iterations;
+    private double residual;
+
+    // Arguments of the kernels.
+    private float[] kWorld, kWater;
+    private float kDt;
+    private double kCoupling, kAlpha, kBeta;
+
+    private final RowBands.Kernel faceKernel = new RowBands.Kernel()
+    {
+        public void run(int y0, int y1)
+        {
+            faces(y0, y1);
+        }
+    };
+
+    private final RowBands.Kernel setupKernel = new RowBands.Kernel()
+    {
+        public void run(int y0, int y1)
+        {
+            setup(y0, y1);
+        }
+    };
+
+    private final RowBands.Kernel multiplyKernel = new RowBands.Kernel()
+    {
+        public void run(int y0, int y1)
+        {
+            multiply(y0, y1);
+        }
+    };
+
+    private final RowBands.Kernel updateKernel = new RowBands.Kernel()
+    {
+        public void run(int y0, int y1)
+        {
+            update(y0, y1);
+        }
+    };
+
+    private final RowBands.Kernel directionKernel = new RowBands.Kernel()
+    {
+        public void run(int y0, int y1)
+        {
+            for (int i = y0 * width; i < y1 * width; i++)
+            {
+                p[i] = z[i] + kBeta * p[i];
+            }
+        }
+    };
+
+    private final RowBands.Kernel limitKernel = new RowBands.Kernel()
+    {
+        public void run(int y0, int y1)
+        {
+            limit(y0, y1);
+        }
+    };
+
+    public ImplicitShallowWaterModel(final int width, final int height)
+    {
+        super(width, height);
+        final int n = width * height;
+        open = new boolean[n];
+        qx = new double[n];
+        qy = new double[n];
+        delta = new double[n];
+        r = new double[n];
+        z = new double[n];
+        p = new double[n];
+        ap = new double[n];
+        diagonal = new double[n];
+        partial = new double[RowBands.bandCount(0, height)];
+        partial2 = new double[partial.length];
+    }
+
+    /**
+     * Run the solve over bands of rows on these threads.
+     */
+    void setBands(RowBands bands)
+    {
+        this.bands = bands;
+    }
+
+    /**
+     * Stop iterating once the residual drops below tolerance relative to
+     * the right hand side, or after maxIterations.
+     */
+    public void setTolerance(double tolerance, int maxIterations)
+    {
+        this.tolerance = tolerance;
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @return Iterations run by the last solve.
+     */
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * @return The residual left by the last solve, relative to the right hand side.
+     */
+    public double getResidual()
+    {
+        return residual;
+    }
+
+    /**
+     * Open the pipes of columns [x0, x1) of rows [y0, y1); their flux is
+     * found by solve.
+     */
+    @Override
+    public void computeFlux(final float[] world, final float[] water, int x0, int x1, int y0, int y1, float dt)
+    {
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = x0; x < x1; x++)
+            {
+                open[y * width + x] = true;
+            }
+        }
+    }
+
+    @Override
+    public void clearFlux(int x0, int x1, int y0, int y1)
+    {
+        super.clearFlux(x0, x1, y0, y1);
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = x0; x < x1; x++)
+            {
+                open[y * width + x] = false;
+            }
+        }
+    }
+
+    @Override
+    public void solve(final float[] world, final float[] water, float dt)
+    {
+        final float l = World.l, A = World.A, g = World.g;
+        kWorld = world;
+        kWater = water;
+        kDt = dt;
+        kCoupling = (double)dt * dt * A * g / (l * l * l);
+
+        bands.run(0, height, faceKernel);
+        bands.run(0, height, setupKernel);
+        double rz = sum(partial);
+        final double bb = sum(partial2);
+        iterations = 0;
+        residual = 0;
+        if (bb > 0)
+        {
+            double rr = bb;
+            while (iterations < maxIterations && rr > tolerance * tolerance * bb)
+            {
+                bands.run(0, height, multiplyKernel);
+                kAlpha = rz / sum(partial);
+                bands.run(0, height, updateKernel);
+                final double rzNext = sum(partial);
+                rr = sum(partial2);
+                kBeta = rzNext / rz;
+                rz = rzNext;
+                bands.run(0, height, directionKernel);
+                iterations++;
+            }
+            residual = Math.sqrt(rr / bb);
+        }
+        bands.run(0, height, limitKernel);
+        kWorld = null;
+        kWater = null;
+    }
+
+    private static double sum(double[] partial)
+    {
+        double sum = 0;
+        for (double value : partial)
+        {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private boolean isOpen(int i, int j)
+    {
+        return open[i] || open[j];
+    }
+
+    // Net flux through the right and bottom pipes of rows [y0, y1).
+    private void faces(int y0, int y1)
+    {
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int i = y * width + x;
+                qx[i] = x < width - 1 ? flux[4 * i + R] - flux[4 * (i + 1) + L] : 0;
+                qy[i] = y < height - 1 ? flux[4 * i + B] - flux[4 * (i + width) + T] : 0;
+            }
+        }
+    }
+
+    // Right hand side, diagonal and the first search direction of rows [y0, y1).
+    private void setup(int y0, int y1)
+    {
+        final double outflowScale = kDt / (World.l * World.l);
+        double rz = 0, bb = 0;
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int i = y * width + x;
+                final double eta = surface(i);
+                double divergence = qx[i] + qy[i];
+                double laplacian = 0;
+                int neighbours = 0;
+                if (x > 0)
+                {
+                    divergence -= qx[i - 1];
+                    if (isOpen(i, i - 1))
+                    {
+                        laplacian += eta - surface(i - 1);
+                        neighbours++;
+                    }
+                }
+                if (x < width - 1 && isOpen(i, i + 1))
+                {
+                    laplacian += eta - surface(i + 1);
+                    neighbours++;
+                }
+                if (y > 0)
+                {
+                    divergence -= qy[i - width];
+                    if (isOpen(i, i - width))
+                    {
+                        laplacian += eta - surface(i - width);
+                        neighbours++;
+                    }
+                }
+                if (y < height - 1 && isOpen(i, i + width))
+                {
+                    laplacian += eta - surface(i + width);
+                    neighbours++;
+                }
+                diagonal[i] = 1 + kCoupling * neighbours;
+                final double b = -outflowScale * divergence - kCoupling * laplacian;
+                delta[i] = 0;
+                r[i] = b;
+                z[i] = b / diagonal[i];
+                p[i] = z[i];
+                rz += r[i] * z[i];
+                bb += b * b;
+            }
+        }
+        final int band = RowBands.bandIndex(0, y0);
+        partial[band] = rz;
+        partial2[band] = bb;
+    }
+
+    private double surface(int i)
+    {
+        return (double)kWorld[i] + kWater[i];
+    }
+
+    // ap = (I + k*L) p and its dot product with p over rows [y0, y1).
+    private void multiply(int y0, int y1)
+    {
+        double pap = 0;
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int i = y * width + x;
+                double neighbours = 0;
+                if (x > 0 && isOpen(i, i - 1))
+                {
+                    neighbours += p[i - 1];
+                }
+                if (x < width - 1 && isOpen(i, i + 1))
+                {
+                    neighbours += p[i + 1];
+                }
+                if (y > 0 && isOpen(i, i - width))
+                {
+                    neighbours += p[i - width];
+                }
+                if (y < height - 1 && isOpen(i, i + width))
+                {
+                    neighbours += p[i + width];
+                }
+                ap[i] = diagonal[i] * p[i] - kCoupling * neighbours;
+                pap += p[i] * ap[i];
+            }
+        }
+        partial[RowBands.bandIndex(0, y0)] = pap;
+    }
+
+    // Step along p and precondition the new residual of rows [y0, y1).
+    private void update(int y0, int y1)
+    {
+        double rz = 0, rr = 0;
+        for (int i = y0 * width; i < y1 * width; i++)
+        {
+            delta[i] += kAlpha * p[i];
+            r[i] -= kAlpha * ap[i];
+            z[i] = r[i] / diagonal[i];
+            rz += r[i] * z[i];
+            rr += r[i] * r[i];
+        }
+        final int band = RowBands.bandIndex(0, y0);
+        partial[band] = rz;
+        partial2[band] = rr;
+    }
+
+    // Outflow of the open cells of rows [y0, y1) from the new surface, scaled
+    // so the cell doesn't lose more water than it has.
+    private void limit(int y0, int y1)
+    {
+        final double c = (double)kDt * World.A * World.g / World.l;
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int i = y * width + x;
+                if (!open[i])
+                {
+                    continue;
+                }
+                final int f = 4 * i;
+                final double eta = surface(i) + delta[i];
+                final float fL = x > 0 ? outflow(-qx[i - 1], c, eta, i - 1) : 0;
+                final float fR = x < width - 1 ? outflow(qx[i], c, eta, i + 1) : 0;
+                final float fT = y > 0 ? outflow(-qy[i - width], c, eta, i - width) : 0;
+                final float fB = y < height - 1 ? outflow(qy[i], c, eta, i + width) : 0;
+                final float total = fL + fR + fT + fB;
+                final float K = total > 0 ? Math.min(1, kWater[i] * World.l * World.l / (total * kDt)) : 0;
+                flux[f + L] = K * fL;
+                flux[f + R] = K * fR;
+                flux[f + T] = K * fT;
+                flux[f + B] = K * fB;
+            }
+        }
+    }
+
+    private float outflow(double q, double c, double eta, int j)
+    {
+        return (float)Math.max(0, q + c * (eta - surface(j) - delta[j]));
+    }
+}
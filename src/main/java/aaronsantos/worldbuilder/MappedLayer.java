@@ -0,0 +1,46 @@
+package aaronsantos.worldbuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A quantized layer of a frame read back from a SnapShotHistory, decoded
+ * straight from the history's memory-mapped segments.
+ */
+class MappedLayer extends QuantizedLayer
+{
+    // Segment holding each tile, and where in it the tile's codes start.
+    private final ByteBuffer[] segments;
+    private final int[] offsets;
+
+    MappedLayer(final int width, final int height, final Quantization quantization)
+    {
+        super(width, height, quantization);
+        segments = new ByteBuffer[tiles.length];
+        offsets = new int[tiles.length];
+    }
+
+    void setTile(int t, final ByteBuffer segment, int offset)
+    {
+        segments[t] = segment;
+        offsets[t] = offset;
+    }
+
+    @Override
+    int code(int t, int i)
+    {
+        // Absolute reads, so any number of threads can share a segment.
+        return quantization.getBytesPerCell() == 1 ? segments[t].get(offsets[t] + i) & 0xff
+            : segments[t].getShort(offsets[t] + 2 * i) & 0xffff;
+    }
+
+    @Override
+    public boolean sharesTile(final TiledLayer other, int t)
+    {
+        if (!(other instanceof MappedLayer))
+        {
+            return false;
+        }
+        final MappedLayer mapped = (MappedLayer) other;
+        return segments[t] == mapped.segments[t] && offsets[t] == mapped.offsets[t];
+    }
+}
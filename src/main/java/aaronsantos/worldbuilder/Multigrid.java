@@ -0,0 +1,340 @@
+package aaronsantos.worldbuilder;
+
+import java.util.Arrays;
+
+/**
+ * Geometric multigrid for the linear systems of NavierStokesSolver,
+ *
+ *   c*x[i,j] - a*(x[i-1,j] + x[i+1,j] + x[i,j-1] + x[i,j+1]) = x0[i,j]
+ *
+ * on an (nx+2) by (ny+2) grid whose boundary ring follows set_bnd. That
+ * covers both the implicit diffusion (c = 1+4a) and the pressure Poisson
+ * equation (a = 1, c = 4).
+ *
+ * Each level halves the grid, rounding up. Residuals are restricted by
+ * averaging the fine cells under a coarse cell and corrections are
+ * prolonged bilinearly. Gauss-Seidel smooths on every level and solves
+ * the coarsest one.
+ *
+ * A level with an odd number of cells leaves its coarse level a last row
+ * and column of half cells that the coarse equation treats as whole
+ * ones, so the coarse correction has the right shape but not the right
+ * size for the smoothest errors. Each correction is therefore scaled by
+ * the step that minimises the error in the energy norm of the fine
+ * equation, without which the red-black smoother stalls.
+ */
+class Multigrid
+{
+    // Smoothing sweeps before and after the coarse correction.
+    private static final int PRE_SWEEPS = 2, POST_SWEEPS = 2;
+    // Sweeps that stand in for an exact solve on the coarsest level.
+    private static final int COARSE_SWEEPS = 30;
+    // Levels are not halved below this many cells across or down.
+    private static final int MIN_SIZE = 4;
+
+    private final int levels;
+    private final int[] nx, ny;
+    // Solution, right hand side and residual of each level. Level 0 uses
+    // the caller's arrays for the solution and right hand side.
+    private final double[][] x, b, r;
+    // Coarse correction prolonged to each level but the coarsest.
+    private final double[][] e;
+
+    private int cycles;
+    private double residual;
+
+    // Smooths in parallel red-black order when set.
+    private RowBands bands;
+    private double[] kx, kb;
+    private double ka, kc;
+    private int kl, kcolour;
+
+    private final RowBands.Kernel relaxKernel = new RowBands.Kernel()
+    {
+        public void run(int j0, int j1)
+        {
+            NavierStokesSolver.relaxRows(kx, kb, nx[kl], ka, kc, kcolour, j0, j1);
+        }
+    };
+
+    Multigrid(int fineNx, int fineNy)
+    {
+        int count = 1;
+        for (int w = fineNx, h = fineNy; w / 2 >= MIN_SIZE && h / 2 >= MIN_SIZE; w = (w + 1) / 2, h = (h + 1) / 2)
+        {
+            count++;
+        }
+        levels = count;
+        nx = new int[levels];
+        ny = new int[levels];
+        x = new double[levels][];
+        b = new double[levels][];
+        r = new double[levels][];
+        e = new double[levels][];
+        for (int l = 0; l < levels; l++)
+        {
+            nx[l] = l == 0 ? fineNx : (nx[l - 1] + 1) / 2;
+            ny[l] = l == 0 ? fineNy : (ny[l - 1] + 1) / 2;
+            final int size = (nx[l] + 2) * (ny[l] + 2);
+            r[l] = new double[size];
+            if (l < levels - 1)
+            {
+                e[l] = new double[size];
+            }
+            if (l > 0)
+            {
+                x[l] = new double[size];
+                b[l] = new double[size];
+            }
+        }
+    }
+
+    /**
+     * Run V-cycles until the residual, relative to the right hand side,
+     * is below tolerance or maxCycles have run.
+     * @param boundary The set_bnd mode of x.
+     * @param solution Initial guess, overwritten with the solution.
+     * @param rhs The right hand side x0.
+     */
+    void solve(int boundary, double[] solution, double[] rhs, double a, double c, double tolerance, int maxCycles)
+    {
+        x[0] = solution;
+        b[0] = rhs;
+        // The pure Neumann problem only has a solution if the right hand
+        // side sums to zero, so drop the part of it that can't be matched.
+        final boolean singular = c - 4 * a == 0 && boundary == 0;
+        if (singular)
+        {
+            removeMean(0, b[0]);
+        }
+        final double norm = norm(0, rhs);
+        cycles = 0;
+        residual = residual(0, boundary, a, c) / Math.max(norm, Double.MIN_NORMAL);
+        while (residual > tolerance && cycles < maxCycles)
+        {
+            cycle(0, boundary, a, c, singular);
+            cycles++;
+            residual = residual(0, boundary, a, c) / Math.max(norm, Double.MIN_NORMAL);
+        }
+    }
+
+    /**
+     * Smooth in red-black order over bands of rows, or lexicographically
+     * if bands is null.
+     */
+    void setBands(RowBands bands)
+    {
+        this.bands = bands;
+    }
+
+    /**
+     * @return V-cycles run by the last solve.
+     */
+    int getCycles()
+    {
+        return cycles;
+    }
+
+    /**
+     * @return Residual of the last solve relative to its right hand side.
+     */
+    double getResidual()
+    {
+        return residual;
+    }
+
+    private void cycle(int l, int boundary, double a, double c, boolean singular)
+    {
+        if (l == levels - 1)
+        {
+            smooth(l, boundary, a, c, COARSE_SWEEPS);
+            return;
+        }
+        smooth(l, boundary, a, c, PRE_SWEEPS);
+        residual(l, boundary, a, c);
+        restrict(l);
+        if (singular)
+        {
+            removeMean(l + 1, b[l + 1]);
+        }
+        Arrays.fill(x[l + 1], 0);
+        // Halving the cells quarters the coupling between them.
+        final double coarseA = a / 4;
+        cycle(l + 1, boundary, coarseA, c - 4 * a + 4 * coarseA, singular);
+        setBoundary(l + 1, boundary, x[l + 1]);
+        prolong(l);
+        setBoundary(l, boundary, e[l]);
+        correct(l, a, c);
+        setBoundary(l, boundary, x[l]);
+        smooth(l, boundary, a, c, POST_SWEEPS);
+    }
+
+    private int index(int l, int i, int j)
+    {
+        return i + (nx[l] + 2) * j;
+    }
+
+    // Gauss-Seidel in the same order as NavierStokesSolver.
+    private void smooth(int l, int boundary, double a, double c, int sweeps)
+    {
+        final double[] xl = x[l], bl = b[l];
+        if (bands != null)
+        {
+            kx = xl;
+            kb = bl;
+            ka = a;
+            kc = c;
+            kl = l;
+            for (int k = 0; k < sweeps; k++)
+            {
+                for (kcolour = 0; kcolour < 2; kcolour++)
+                {
+                    bands.run(1, ny[l] + 1, relaxKernel);
+                }
+                setBoundary(l, boundary, xl);
+            }
+            return;
+        }
+        final int w = nx[l] + 2;
+        for (int k = 0; k < sweeps; k++)
+        {
+            for (int i = 1; i <= nx[l]; i++)
+            {
+                for (int j = 1; j <= ny[l]; j++)
+                {
+                    final int n = i + w * j;
+                    xl[n] = (bl[n] + a * (xl[n - 1] + xl[n + 1] + xl[n - w] + xl[n + w])) / c;
+                }
+            }
+            setBoundary(l, boundary, xl);
+        }
+    }
+
+    // Fills r[l] and returns its norm.
+    private double residual(int l, int boundary, double a, double c)
+    {
+        final double[] xl = x[l], bl = b[l], rl = r[l];
+        final int w = nx[l] + 2;
+        double sum = 0;
+        for (int j = 1; j <= ny[l]; j++)
+        {
+            for (int i = 1; i <= nx[l]; i++)
+            {
+                final int n = i + w * j;
+                rl[n] = bl[n] - (c * xl[n] - a * (xl[n - 1] + xl[n + 1] + xl[n - w] + xl[n + w]));
+                sum += rl[n] * rl[n];
+            }
+        }
+        return Math.sqrt(sum);
+    }
+
+    private double norm(int l, double[] field)
+    {
+        double sum = 0;
+        for (int j = 1; j <= ny[l]; j++)
+        {
+            for (int i = 1; i <= nx[l]; i++)
+            {
+                final double value = field[index(l, i, j)];
+                sum += value * value;
+            }
+        }
+        return Math.sqrt(sum);
+    }
+
+    private void removeMean(int l, double[] field)
+    {
+        double sum = 0;
+        for (int j = 1; j <= ny[l]; j++)
+        {
+            for (int i = 1; i <= nx[l]; i++)
+            {
+                sum += field[index(l, i, j)];
+            }
+        }
+        final double mean = sum / (nx[l] * ny[l]);
+        for (int j = 1; j <= ny[l]; j++)
+        {
+            for (int i = 1; i <= nx[l]; i++)
+            {
+                field[index(l, i, j)] -= mean;
+            }
+        }
+    }
+
+    // Average the residual of the fine cells under each coarse cell.
+    private void restrict(int l)
+    {
+        final double[] fine = r[l], coarse = b[l + 1];
+        for (int J = 1; J <= ny[l + 1]; J++)
+        {
+            for (int I = 1; I <= nx[l + 1]; I++)
+            {
+                double sum = 0;
+                int count = 0;
+                for (int j = 2 * J - 1; j <= Math.min(2 * J, ny[l]); j++)
+                {
+                    for (int i = 2 * I - 1; i <= Math.min(2 * I, nx[l]); i++)
+                    {
+                        sum += fine[index(l, i, j)];
+                        count++;
+                    }
+                }
+                coarse[index(l + 1, I, J)] = sum / count;
+            }
+        }
+    }
+
+    // Interpolate the coarse correction bilinearly into e[l].
+    private void prolong(int l)
+    {
+        final double[] fine = e[l], coarse = x[l + 1];
+        for (int j = 1; j <= ny[l]; j++)
+        {
+            // Nearest coarse row and the one on the other side of the fine cell's center.
+            final int J = (j + 1) / 2;
+            final int J2 = j % 2 == 1 ? J - 1 : J + 1;
+            for (int i = 1; i <= nx[l]; i++)
+            {
+                final int I = (i + 1) / 2;
+                final int I2 = i % 2 == 1 ? I - 1 : I + 1;
+                fine[index(l, i, j)] = 0.5625 * coarse[index(l + 1, I, J)]
+                    + 0.1875 * (coarse[index(l + 1, I2, J)] + coarse[index(l + 1, I, J2)])
+                    + 0.0625 * coarse[index(l + 1, I2, J2)];
+            }
+        }
+    }
+
+    // Add e[l] to the solution, scaled to minimise the error energy:
+    // alpha = <r, e> / <e, A e>, with r the residual before the correction.
+    private void correct(int l, double a, double c)
+    {
+        final double[] xl = x[l], rl = r[l], el = e[l];
+        final int w = nx[l] + 2;
+        double re = 0, eAe = 0;
+        for (int j = 1; j <= ny[l]; j++)
+        {
+            for (int i = 1; i <= nx[l]; i++)
+            {
+                final int n = i + w * j;
+                re += rl[n] * el[n];
+                eAe += el[n] * (c * el[n] - a * (el[n - 1] + el[n + 1] + el[n - w] + el[n + w]));
+            }
+        }
+        // A correction with no energy is constant on a singular level.
+        final double alpha = eAe > 0 ? re / eAe : 1;
+        for (int j = 1; j <= ny[l]; j++)
+        {
+            for (int i = 1; i <= nx[l]; i++)
+            {
+                final int n = i + w * j;
+                xl[n] += alpha * el[n];
+            }
+        }
+    }
+
+    private void setBoundary(int l, int boundary, double[] field)
+    {
+        NavierStokesSolver.setBoundary(boundary, field, nx[l], ny[l]);
+    }
+}
@@ -1,26 +1,163 @@
 package aaronsantos.worldbuilder;
 
-import processing.core.PApplet;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Java implementation of the Navier-Stokes-Solver from
  http://www.openprocessing.org/sketch/27653
  * 
+ * The grid has nx by ny interior cells plus a ring of boundary cells. Cells
+ * are square, with a side of 1/nx, so a grid that isn't square covers a
+ * domain ny/nx high.
  */
-public class NavierStokesSolver {
-    final int width, height;
-    final static int N = 100;
-    final static int SIZE = (N + 2) * (N + 2);
-    double[] u = new double[SIZE];
-    double[] v = new double[SIZE];
-    double[] u_prev = new double[SIZE];
-    double[] v_prev = new double[SIZE];
-    double[] dense = new double[SIZE];
-    double[] dense_prev = new double[SIZE];
- 
-    public NavierStokesSolver(int width, int height) {
-      this.width = width;
-      this.height = height;
+public class NavierStokesSolver implements FluidSolver {
+    /**
+     * How the linear systems of diffusion and projection are solved.
+     */
+    public enum LinearSolver {
+        // A fixed 20 Gauss-Seidel sweeps.
+        GAUSS_SEIDEL,
+        // Multigrid V-cycles until the residual is below a tolerance.
+        MULTIGRID,
+        // Exact solves in the Fourier domain on a grid that wraps around,
+        // by FFTFluidSolver instead of this solver.
+        FFT
+    }
+ 
+    final int nx, ny;
+    final int SIZE;
+    double[] u;
+    double[] v;
+    double[] u_prev;
+    double[] v_prev;
+    // Scalars carried by the wind and their diffusion.
+    final List<double[]> tracers = new ArrayList<double[]>();
+    final List<Double> tracerDiffusion = new ArrayList<Double>();
+ 
+    /**
+     * @param nx Number of cells across.
+     * @param ny Number of cells down.
+     */
+    public NavierStokesSolver(int nx, int ny) {
+        this.nx = nx;
+        this.ny = ny;
+        SIZE = (nx + 2) * (ny + 2);
+        u = new double[SIZE];
+        v = new double[SIZE];
+        u_prev = new double[SIZE];
+        v_prev = new double[SIZE];
+        tmp = new double[SIZE];
+    }
+ 
+    // Runs rows in parallel, null to run the original serial solver.
+    private RowBands bands;
+ 
+    // Arguments of the row kernels, set before each run.
+    private double[] kx, kx0, ku, kv;
+    private double ka, kc, kdt0, kh;
+    private int kcolour;
+ 
+    private final RowBands.Kernel relaxKernel = new RowBands.Kernel() {
+        public void run(int j0, int j1) {
+            relaxRows(kx, kx0, nx, ka, kc, kcolour, j0, j1);
+        }
+    };
+ 
+    private final RowBands.Kernel advectKernel = new RowBands.Kernel() {
+        public void run(int j0, int j1) {
+            advectRows(kx, kx0, ku, kv, kdt0, j0, j1);
+        }
+    };
+ 
+    private final RowBands.Kernel divergenceKernel = new RowBands.Kernel() {
+        public void run(int j0, int j1) {
+            divergenceRows(ku, kv, kx, kx0, kh, j0, j1);
+        }
+    };
+ 
+    private final RowBands.Kernel gradientKernel = new RowBands.Kernel() {
+        public void run(int j0, int j1) {
+            subtractGradientRows(ku, kv, kx, kh, j0, j1);
+        }
+    };
+ 
+    private LinearSolver linearSolver = LinearSolver.GAUSS_SEIDEL;
+    private double tolerance = 1e-4;
+    private int maxCycles = 10;
+    private Multigrid multigrid;
+ 
+    // Iterations run and the worst relative residual left by the last tick.
+    private int tickIterations;
+    private double tickResidual;
+    // Where the world's cells sample the grid, for the last world size sampled.
+    private volatile SampleGrid sampleGrid;
+ 
+    /**
+     * Solve with multigrid V-cycles until the residual relative to the
+     * right hand side is below tolerance, running at most maxCycles.
+     */
+    public void useMultigrid(double tolerance, int maxCycles) {
+        linearSolver = LinearSolver.MULTIGRID;
+        this.tolerance = tolerance;
+        this.maxCycles = maxCycles;
+        if (multigrid == null) {
+            multigrid = new Multigrid(nx, ny);
+            multigrid.setBands(bands);
+        }
+    }
+ 
+    /**
+     * Relax in red-black order and run advection and projection over bands
+     * of rows. Every cell of a colour only reads cells of the other colour,
+     * so the results don't depend on how the rows are split.
+     */
+    public void useRedBlack(RowBands bands) {
+        this.bands = bands;
+        if (multigrid != null) {
+            multigrid.setBands(bands);
+        }
+    }
+ 
+    public void useGaussSeidel() {
+        linearSolver = LinearSolver.GAUSS_SEIDEL;
+    }
+ 
+    public LinearSolver getLinearSolver() {
+        return linearSolver;
+    }
+ 
+    /**
+     * @return Gauss-Seidel sweeps or V-cycles run by the linear solves of the last tick.
+     */
+    public int getTickIterations() {
+        return tickIterations;
+    }
+ 
+    /**
+     * @return The largest residual, relative to the right hand side, left by a linear solve of the last tick.
+     */
+    public double getTickResidual() {
+        return tickResidual;
+    }
+ 
+    /**
+     * @return The largest velocity component on the grid.
+     */
+    public double getMaxSpeed() {
+        double max = 0;
+        for (int n = 0; n < u.length; n++) {
+            max = Math.max(max, Math.max(Math.abs(u[n]), Math.abs(v[n])));
+        }
+        return max;
+    }
+
+    public int getGridWidth() {
+        return nx;
+    }
+ 
+    public int getGridHeight() {
+        return ny;
     }
  
     public double getDx(int x, int y) {
@@ -32,8 +169,8 @@ public class NavierStokesSolver {
     }
     
     public double getDx(float x, float y, float width, float height){
-          final float cellWidth = width / N;
-          final float cellHeight = height / N;
+          final float cellWidth = width / nx;
+          final float cellHeight = height / ny;
           int cellX = (int)(x/cellWidth);
           int cellY = (int)(y/cellHeight);
           // get dx,dy for cell, but this isn't good enough.
@@ -47,22 +184,22 @@ public class NavierStokesSolver {
           // find out which neighbor cell we want to lerp with
           // if point is in right half of cell, lerp with cell below
           if (lX > 0) {
-              v = Math.min(N, cellX + 1);
+              v = Math.min(nx, cellX + 1);
               vf = 1;
           }
           // else lerp with cell above
           else {
-              v = Math.min(N, cellX - 1);
+              v = Math.min(nx, cellX - 1);
               vf = -1;
           }
           // if point is in lower half, lerp with cell to the right
           if (lY > 0) {
-              h = Math.min(N, cellY + 1);
+              h = Math.min(ny, cellY + 1);
               hf = 1;
           }
           // else lerp with cell to the left
           else {
-              h = Math.min(N, cellY - 1);
+              h = Math.min(ny, cellY - 1);
               hf = -1;
           }
           // get the dx values of three cells adjacent to the quadrant of the sample point x,y
@@ -75,14 +212,14 @@ public class NavierStokesSolver {
           // lerp dx of the horizontally adjacent cell with dx of the diagonally adjacent cell according to the sample's
           // closeness to the cell wall.
           // lerp these values together based on the closeness of the sample to the cell wall.
-          dx = PApplet.lerp(PApplet.lerp(dx, dxv, hf * lY / cellWidth), PApplet.lerp(dxh, dxvh, hf * lY / cellWidth), vf * lX / cellHeight);
+          dx = Util.lerp(Util.lerp(dx, dxv, hf * lY / cellHeight), Util.lerp(dxh, dxvh, hf * lY / cellHeight), vf * lX / cellWidth);
 
           return dx;
     }
     
     public double getDy(float x, float y, float width, float height){
-          final float cellWidth = width / N;
-          final float cellHeight = height / N;
+          final float cellWidth = width / nx;
+          final float cellHeight = height / ny;
           int cellX = (int)(x/cellWidth);
           int cellY = (int)(y/cellHeight);
           // get dx,dy for cell, but this isn't good enough.
@@ -96,22 +233,22 @@ public class NavierStokesSolver {
           // find out which neighbor cell we want to lerp with
           // if point is in lower half of cell, lerp with cell below
           if (lX > 0) {
-              v = Math.min(N, cellX + 1);
+              v = Math.min(nx, cellX + 1);
               vf = 1;
           }
           // else lerp with cell above
           else {
-              v = Math.min(N, cellX - 1);
+              v = Math.min(nx, cellX - 1);
               vf = -1;
           }
           // if point is in right half, lerp with cell to the right
           if (lY > 0) {
-              h = Math.min(N, cellY + 1);
+              h = Math.min(ny, cellY + 1);
               hf = 1;
           }
           // else lerp with cell to the left
           else {
-              h = Math.min(N, cellY - 1);
+              h = Math.min(ny, cellY - 1);
               hf = -1;
           }
           // get the dy values of the three cells adjacent to the quadrant of the sample point x,y
@@ -121,34 +258,83 @@ public class NavierStokesSolver {
           // lerp the dy of the horizontally adjacent cell with the dy of the diagonally adjacent cell according to the sample's
           // closeness to the cell wall.
           // lerp these calues together based on the closeness of the sample to the cell wall.
-          dy = PApplet.lerp(PApplet.lerp(dy, dyv, hf * lY / cellWidth), PApplet.lerp(dyh, dyvh, hf * lY / cellWidth), vf * lX / cellHeight);
+          dy = Util.lerp(Util.lerp(dy, dyv, hf * lY / cellHeight), Util.lerp(dyh, dyvh, hf * lY / cellHeight), vf * lX / cellWidth);
           return dy;
     }
  
+    // Same interpolation as getDx and getDy, with the row's and the column's
+    // part worked out once for both components and every cell of the band.
+    public void sample(float[] dx, float[] dy, int width, int height, int y0, int y1) {
+        // Bands of rows sample at the same time; any of them may make the
+        // grid, and they all make the same one.
+        final SampleGrid grid = SampleGrid.get(sampleGrid, nx, ny, width, height);
+        sampleGrid = grid;
+        final int[] column = grid.column, neighbour = grid.neighbourColumn;
+        final float[] weight = grid.columnWeight;
+        for (int y = y0; y < y1; y++) {
+            final float wY = grid.rowWeight[y];
+            final int row = INDEX(0, grid.row[y]);
+            final int rowH = INDEX(0, grid.neighbourRow[y]);
+            for (int x = 0; x < width; x++) {
+                final int c = column[x], n = neighbour[x];
+                final float wX = weight[x];
+                dx[y * width + x] = Util.lerp(Util.lerp((float) u[row + c], (float) u[row + n], wY),
+                        Util.lerp((float) u[rowH + c], (float) u[rowH + n], wY), wX);
+                dy[y * width + x] = Util.lerp(Util.lerp((float) v[row + c], (float) v[row + n], wY),
+                        Util.lerp((float) v[rowH + c], (float) v[rowH + n], wY), wX);
+            }
+        }
+    }
+ 
     public void applyForce(int cellX, int cellY, double vx, double vy) {
                 cellX += 1;
                 cellY += 1;
         double dx = u[INDEX(cellX, cellY)];
         double dy = v[INDEX(cellX, cellY)];
  
-        u[INDEX(cellX, cellY)] = (vx != 0) ? PApplet.lerp((float) vx,
+        u[INDEX(cellX, cellY)] = (vx != 0) ? Util.lerp((float) vx,
                 (float) dx, 0.85f) : dx;
-        v[INDEX(cellX, cellY)] = (vy != 0) ? PApplet.lerp((float) vy,
+        v[INDEX(cellX, cellY)] = (vy != 0) ? Util.lerp((float) vy,
                 (float) dy, 0.85f) : dy;
  
     }
  
-    void tick(double dt, double visc, double diff) {
+    public void tick(double dt, double visc) {
+        tickIterations = 0;
+        tickResidual = 0;
         vel_step(u, v, u_prev, v_prev, visc, dt);
-        dens_step(dense, dense_prev, u, v, diff, dt);
+        for (int t = 0; t < tracers.size(); t++) {
+            tracer_step(tracers.get(t), tracerDiffusion.get(t), dt);
+        }
+    }
+ 
+    public int addTracer(double diffusion) {
+        tracers.add(new double[SIZE]);
+        tracerDiffusion.add(diffusion);
+        return tracers.size() - 1;
+    }
+ 
+    public void setTracer(int tracer, double[] amounts) {
+        final double[] x = tracers.get(tracer);
+        for (int j = 1; j <= ny; j++) {
+            System.arraycopy(amounts, (j - 1) * nx, x, INDEX(1, j), nx);
+        }
+        set_bnd(0, x);
+    }
+ 
+    public void getTracer(int tracer, double[] amounts) {
+        final double[] x = tracers.get(tracer);
+        for (int j = 1; j <= ny; j++) {
+            System.arraycopy(x, INDEX(1, j), amounts, (j - 1) * nx, nx);
+        }
     }
  
         // method used to be 'static' since this class is not a top level type
     final int INDEX(int i, int j) {
-        return i + (N + 2) * j;
+        return i + (nx + 2) * j;
     }
  
-    double[] tmp = new double[SIZE];
+    double[] tmp;
         // same applies to the swap operation ^^
     final void SWAP(double[] x0, double[] x) {
         System.arraycopy(x0, 0, tmp, 0, SIZE);
@@ -157,79 +343,190 @@ public class NavierStokesSolver {
     }
  
     void add_source(double[] x, double[] s, double dt) {
-        int i, size = (N + 2) * (N + 2);
+        int i, size = SIZE;
         for (i = 0; i < size; i++)
             x[i] += dt * s[i];
     }
  
-    void diffuse(int b, double[] x, double[] x0, double diff, double dt) {
+    // Solve c*x - a*(sum of the four neighbours of x) = x0.
+    void lin_solve(int b, double[] x, double[] x0, double a, double c) {
+        if (linearSolver == LinearSolver.MULTIGRID) {
+            multigrid.solve(b, x, x0, a, c, tolerance, maxCycles);
+            tickIterations += multigrid.getCycles();
+            tickResidual = Math.max(tickResidual, multigrid.getResidual());
+            return;
+        }
         int i, j, k;
-        double a = dt * diff * N * N;
+        if (bands != null) {
+            for (k = 0; k < 20; k++) {
+                relax(x, x0, a, c);
+                set_bnd(b, x);
+            }
+            tickIterations += 20;
+            tickResidual = Math.max(tickResidual, relativeResidual(x, x0, a, c));
+            return;
+        }
         for (k = 0; k < 20; k++) {
-            for (i = 1; i <= N; i++) {
-                for (j = 1; j <= N; j++) {
+            for (i = 1; i <= nx; i++) {
+                for (j = 1; j <= ny; j++) {
                     x[INDEX(i, j)] = (x0[INDEX(i, j)] + a
                             * (x[INDEX(i - 1, j)] + x[INDEX(i + 1, j)] + x[INDEX(i, j - 1)] + x[INDEX(
                                     i, j + 1)]))
-                            / (1 + 4 * a);
+                            / c;
                 }
             }
             set_bnd(b, x);
         }
+        tickIterations += 20;
+        tickResidual = Math.max(tickResidual, relativeResidual(x, x0, a, c));
+    }
+ 
+    // One red-black Gauss-Seidel sweep, red cells first.
+    private void relax(double[] x, double[] x0, double a, double c) {
+        kx = x;
+        kx0 = x0;
+        ka = a;
+        kc = c;
+        for (kcolour = 0; kcolour < 2; kcolour++) {
+            bands.run(1, ny + 1, relaxKernel);
+        }
+    }
+ 
+    /**
+     * Relax the cells of rows [j0, j1) of an (nx+2) wide field whose i+j
+     * has the parity of colour. Shared with the multigrid smoother.
+     */
+    static void relaxRows(double[] x, double[] x0, int nx, double a, double c, int colour, int j0, int j1) {
+        final int w = nx + 2;
+        for (int j = j0; j < j1; j++) {
+            for (int i = 1 + ((colour + j + 1) & 1); i <= nx; i += 2) {
+                final int n = i + w * j;
+                x[n] = (x0[n] + a * (x[n - 1] + x[n + 1] + x[n - w] + x[n + w])) / c;
+            }
+        }
+    }
+ 
+    private double relativeResidual(double[] x, double[] x0, double a, double c) {
+        double r2 = 0, b2 = 0;
+        for (int j = 1; j <= ny; j++) {
+            for (int i = 1; i <= nx; i++) {
+                final double r = x0[INDEX(i, j)] - (c * x[INDEX(i, j)] - a
+                        * (x[INDEX(i - 1, j)] + x[INDEX(i + 1, j)] + x[INDEX(i, j - 1)] + x[INDEX(i, j + 1)]));
+                r2 += r * r;
+                b2 += x0[INDEX(i, j)] * x0[INDEX(i, j)];
+            }
+        }
+        return Math.sqrt(r2) / Math.max(Math.sqrt(b2), Double.MIN_NORMAL);
+    }
+ 
+    void diffuse(int b, double[] x, double[] x0, double diff, double dt) {
+        double a = dt * diff * nx * nx;
+        lin_solve(b, x, x0, a, 1 + 4 * a);
     }
  
     void advect(int b, double[] d, double[] d0, double[] u, double[] v, double dt) {
-        int i, j, i0, j0, i1, j1;
-        double x, y, s0, t0, s1, t1, dt0;
-        dt0 = dt * N;
-        for (i = 1; i <= N; i++) {
-            for (j = 1; j <= N; j++) {
+        final double dt0 = dt * nx;
+        if (bands != null) {
+            kx = d;
+            kx0 = d0;
+            ku = u;
+            kv = v;
+            kdt0 = dt0;
+            bands.run(1, ny + 1, advectKernel);
+        }
+        else {
+            advectRows(d, d0, u, v, dt0, 1, ny + 1);
+        }
+        set_bnd(b, d);
+    }
+ 
+    // Every cell is traced back on its own, so rows can be advected in any order.
+    void advectRows(double[] d, double[] d0, double[] u, double[] v, double dt0, int j0, int j1) {
+        int i, j, i0, jj0, i1, jj1;
+        double x, y, s0, t0, s1, t1;
+        for (j = j0; j < j1; j++) {
+            for (i = 1; i <= nx; i++) {
                 x = i - dt0 * u[INDEX(i, j)];
                 y = j - dt0 * v[INDEX(i, j)];
                 if (x < 0.5)
                     x = 0.5;
-                if (x > N + 0.5)
-                    x = N + 0.5;
+                if (x > nx + 0.5)
+                    x = nx + 0.5;
                 i0 = (int) x;
                 i1 = i0 + 1;
                 if (y < 0.5)
                     y = 0.5;
-                if (y > N + 0.5)
-                    y = N + 0.5;
-                j0 = (int) y;
-                j1 = j0 + 1;
+                if (y > ny + 0.5)
+                    y = ny + 0.5;
+                jj0 = (int) y;
+                jj1 = jj0 + 1;
                 s1 = x - i0;
                 s0 = 1 - s1;
-                t1 = y - j0;
+                t1 = y - jj0;
                 t0 = 1 - t1;
-                d[INDEX(i, j)] = s0 * (t0 * d0[INDEX(i0, j0)] + t1 * d0[INDEX(i0, j1)])
-                        + s1 * (t0 * d0[INDEX(i1, j0)] + t1 * d0[INDEX(i1, j1)]);
+                d[INDEX(i, j)] = s0 * (t0 * d0[INDEX(i0, jj0)] + t1 * d0[INDEX(i0, jj1)])
+                        + s1 * (t0 * d0[INDEX(i1, jj0)] + t1 * d0[INDEX(i1, jj1)]);
             }
         }
-        set_bnd(b, d);
     }
  
     void set_bnd(int b, double[] x) {
+        setBoundary(b, x, nx, ny);
+    }
+ 
+    /**
+     * Set the boundary ring of an (nx+2) by (ny+2) field. b is 1 for
+     * horizontal and 2 for vertical velocity, which are reflected off the
+     * walls they cross, and 0 for anything else.
+     */
+    static void setBoundary(int b, double[] x, int nx, int ny) {
+        final int w = nx + 2;
+        final int last = w * (ny + 1);
         int i;
-        for (i = 1; i <= N; i++) {
-            x[INDEX(0, i)] = (b == 1) ? -x[INDEX(1, i)] : x[INDEX(1, i)];
-            x[INDEX(N + 1, i)] = b == 1 ? -x[INDEX(N, i)] : x[INDEX(N, i)];
-            x[INDEX(i, 0)] = b == 2 ? -x[INDEX(i, 1)] : x[INDEX(i, 1)];
-            x[INDEX(i, N + 1)] = b == 2 ? -x[INDEX(i, N)] : x[INDEX(i, N)];
+        for (i = 1; i <= ny; i++) {
+            x[w * i] = (b == 1) ? -x[1 + w * i] : x[1 + w * i];
+            x[nx + 1 + w * i] = b == 1 ? -x[nx + w * i] : x[nx + w * i];
         }
-        x[INDEX(0, 0)] = 0.5 * (x[INDEX(1, 0)] + x[INDEX(0, 1)]);
-        x[INDEX(0, N + 1)] = 0.5 * (x[INDEX(1, N + 1)] + x[INDEX(0, N)]);
-        x[INDEX(N + 1, 0)] = 0.5 * (x[INDEX(N, 0)] + x[INDEX(N + 1, 1)]);
-        x[INDEX(N + 1, N + 1)] = 0.5 * (x[INDEX(N, N + 1)] + x[INDEX(N + 1, N)]);
+        for (i = 1; i <= nx; i++) {
+            x[i] = b == 2 ? -x[i + w] : x[i + w];
+            x[i + last] = b == 2 ? -x[i + last - w] : x[i + last - w];
+        }
+        x[0] = 0.5 * (x[1] + x[w]);
+        x[last] = 0.5 * (x[1 + last] + x[last - w]);
+        x[nx + 1] = 0.5 * (x[nx] + x[nx + 1 + w]);
+        x[nx + 1 + last] = 0.5 * (x[nx + last] + x[nx + 1 + last - w]);
     }
  
-    void dens_step(double[] x, double[] x0, double[] u, double[] v, double diff,
-            double dt) {
-        add_source(x, x0, dt);
-        SWAP(x0, x);
-        diffuse(0, x, x0, diff, dt);
-        SWAP(x0, x);
-        advect(0, x, x0, u, v, dt);
+    // Diffuse and advect a tracer like the density used to be, then scale
+    // it back to its total, which neither step keeps exactly.
+    void tracer_step(double[] x, double diff, double dt) {
+        final double before = interiorSum(x);
+        if (diff > 0) {
+            System.arraycopy(x, 0, tmp, 0, SIZE);
+            diffuse(0, x, tmp, diff, dt);
+        }
+        System.arraycopy(x, 0, tmp, 0, SIZE);
+        advect(0, x, tmp, u, v, dt);
+        final double after = interiorSum(x);
+        if (after > 0) {
+            final double scale = before / after;
+            for (int j = 1; j <= ny; j++) {
+                for (int i = 1; i <= nx; i++) {
+                    x[INDEX(i, j)] *= scale;
+                }
+            }
+            set_bnd(0, x);
+        }
+    }
+ 
+    private double interiorSum(double[] x) {
+        double sum = 0;
+        for (int j = 1; j <= ny; j++) {
+            for (int i = 1; i <= nx; i++) {
+                sum += x[INDEX(i, j)];
+            }
+        }
+        return sum;
     }
  
     void vel_step(double[] u, double[] v, double[] u0, double[] v0, double visc,
@@ -249,11 +546,39 @@ public class NavierStokesSolver {
     }
  
     void project(double[] u, double[] v, double[] p, double[] div) {
-        int i, j, k;
         double h;
-        h = 1.0 / N;
-        for (i = 1; i <= N; i++) {
-            for (j = 1; j <= N; j++) {
+        h = 1.0 / nx;
+        if (bands != null) {
+            ku = u;
+            kv = v;
+            kx = p;
+            kx0 = div;
+            kh = h;
+            bands.run(1, ny + 1, divergenceKernel);
+        }
+        else {
+            divergenceRows(u, v, p, div, h, 1, ny + 1);
+        }
+        set_bnd(0, div);
+        set_bnd(0, p);
+        lin_solve(0, p, div, 1, 4);
+        if (bands != null) {
+            ku = u;
+            kv = v;
+            kx = p;
+            kh = h;
+            bands.run(1, ny + 1, gradientKernel);
+        }
+        else {
+            subtractGradientRows(u, v, p, h, 1, ny + 1);
+        }
+        set_bnd(1, u);
+        set_bnd(2, v);
+    }
+ 
+    void divergenceRows(double[] u, double[] v, double[] p, double[] div, double h, int j0, int j1) {
+        for (int j = j0; j < j1; j++) {
+            for (int i = 1; i <= nx; i++) {
                 div[INDEX(i, j)] = -0.5
                         * h
                         * (u[INDEX(i + 1, j)] - u[INDEX(i - 1, j)] + v[INDEX(i, j + 1)] - v[INDEX(
@@ -261,25 +586,14 @@ public class NavierStokesSolver {
                 p[INDEX(i, j)] = 0;
             }
         }
-        set_bnd(0, div);
-        set_bnd(0, p);
-        for (k = 0; k < 20; k++) {
-            for (i = 1; i <= N; i++) {
-                for (j = 1; j <= N; j++) {
-                    p[INDEX(i, j)] = (div[INDEX(i, j)] + p[INDEX(i - 1, j)]
-                            + p[INDEX(i + 1, j)] + p[INDEX(i, j - 1)] + p[INDEX(i, j + 1)]) / 4;
-                }
-            }
-            set_bnd(0, p);
-        }
-        for (i = 1; i <= N; i++) {
-            for (j = 1; j <= N; j++) {
+    }
+ 
+    void subtractGradientRows(double[] u, double[] v, double[] p, double h, int j0, int j1) {
+        for (int j = j0; j < j1; j++) {
+            for (int i = 1; i <= nx; i++) {
                 u[INDEX(i, j)] -= 0.5 * (p[INDEX(i + 1, j)] - p[INDEX(i - 1, j)]) / h;
                 v[INDEX(i, j)] -= 0.5 * (p[INDEX(i, j + 1)] - p[INDEX(i, j - 1)]) / h;
             }
         }
-        set_bnd(1, u);
-        set_bnd(2, v);
     }
 }
-
@@ -0,0 +1,134 @@
+package aaronsantos.worldbuilder;
+
+import java.util.Random;
+
+/**
+ * Processing's noise() without a PApplet: octaves of value noise smoothed
+ * with a cosine table. Seeded the same way as PApplet.noiseSeed, so a seed
+ * gives the same terrain with or without a display.
+ */
+public class PerlinNoise
+{
+    private static final int YWRAPB = 4;
+    private static final int YWRAP = 1 << YWRAPB;
+    private static final int ZWRAPB = 8;
+    private static final int ZWRAP = 1 << ZWRAPB;
+    private static final int SIZE = 4095;
+
+    // Half-degree cosine table, as PGraphics.cosLUT.
+    private static final int TWO_PI = 720;
+    private static final int PI = TWO_PI / 2;
+    private static final float[] COS = new float[TWO_PI];
+
+    static
+    {
+        final float degToRad = (float)Math.PI / 180.0f;
+        for (int i = 0; i < TWO_PI; i++)
+        {
+            COS[i] = (float)Math.cos(i * degToRad * 0.5f);
+        }
+    }
+
+    private final float[] perlin = new float[SIZE + 1];
+    private int octaves = 4;
+    private float falloff = 0.5f;
+
+    public PerlinNoise(long seed)
+    {
+        final Random random = new Random(seed);
+        for (int i = 0; i < perlin.length; i++)
+        {
+            perlin[i] = random.nextFloat();
+        }
+    }
+
+    /**
+     * @param octaves Number of octaves summed, ignored unless positive.
+     * @param falloff Amplitude of each octave relative to the last, ignored unless positive.
+     */
+    public void noiseDetail(int octaves, float falloff)
+    {
+        if (octaves > 0)
+        {
+            this.octaves = octaves;
+        }
+        if (falloff > 0)
+        {
+            this.falloff = falloff;
+        }
+    }
+
+    public float noise(float x, float y)
+    {
+        return noise(x, y, 0);
+    }
+
+    public float noise(float x, float y, float z)
+    {
+        x = Math.abs(x);
+        y = Math.abs(y);
+        z = Math.abs(z);
+
+        int xi = (int)x, yi = (int)y, zi = (int)z;
+        float xf = x - xi;
+        float yf = y - yi;
+        float zf = z - zi;
+
+        float r = 0;
+        float amplitude = 0.5f;
+
+        for (int i = 0; i < octaves; i++)
+        {
+            int of = xi + (yi << YWRAPB) + (zi << ZWRAPB);
+
+            final float rxf = smooth(xf);
+            final float ryf = smooth(yf);
+
+            float n1 = perlin[of & SIZE];
+            n1 += rxf * (perlin[(of + 1) & SIZE] - n1);
+            float n2 = perlin[(of + YWRAP) & SIZE];
+            n2 += rxf * (perlin[(of + YWRAP + 1) & SIZE] - n2);
+            n1 += ryf * (n2 - n1);
+
+            of += ZWRAP;
+            n2 = perlin[of & SIZE];
+            n2 += rxf * (perlin[(of + 1) & SIZE] - n2);
+            float n3 = perlin[(of + YWRAP) & SIZE];
+            n3 += rxf * (perlin[(of + YWRAP + 1) & SIZE] - n3);
+            n2 += ryf * (n3 - n2);
+
+            n1 += smooth(zf) * (n2 - n1);
+
+            r += n1 * amplitude;
+            amplitude *= falloff;
+            xi <<= 1;
+            xf *= 2;
+            yi <<= 1;
+            yf *= 2;
+            zi <<= 1;
+            zf *= 2;
+
+            if (xf >= 1.0f)
+            {
+                xi++;
+                xf--;
+            }
+            if (yf >= 1.0f)
+            {
+                yi++;
+                yf--;
+            }
+            if (zf >= 1.0f)
+            {
+                zi++;
+                zf--;
+            }
+        }
+        return r;
+    }
+
+    private static float smooth(float f)
+    {
+        return 0.5f * (1.0f - COS[(int)(f * PI) % TWO_PI]);
+    }
+}
@@ -0,0 +1,150 @@
+package aaronsantos.worldbuilder;
+
+import java.util.Arrays;
+
+/**
+ * The virtual pipe model of shallow-water flow.
+ * See http://www-evasion.imag.fr/Publications/2007/MDH07/FastErosion_PG07.pdf
+ * 
+ * The outflow through the left, right, top and bottom pipes of a cell is
+ * packed next to each other in a single array, so one sweep can compute a
+ * cell's fluxes and scale them without any tmp layers. A cell's new flux
+ * depends only on its own old flux and on neighbouring surface heights,
+ * which are not written while fluxes are computed, so the fluxes are
+ * updated in place and a band of rows can be computed independently of
+ * its neighbours.
+ */
+public class PipeModel implements ShallowWaterModel
+{
+    // Offsets of the four pipes within a cell's fluxes.
+    static final int L = 0, R = 1, T = 2, B = 3;
+
+    final int width, height;
+    // Outflow in m^3/s, four per cell.
+    final float[] flux;
+
+    public PipeModel(final int width, final int height)
+    {
+        this.width = width;
+        this.height = height;
+        flux = new float[4 * width * height];
+    }
+
+    public float[] getFlux()
+    {
+        return flux;
+    }
+
+    /**
+     * Update and scale the outflow of columns [x0, x1) of rows [y0, y1).
+     * @param world Row-major terrain height.
+     * @param water Row-major water height.
+     */
+    public void computeFlux(final float[] world, final float[] water, int x0, int x1, int y0, int y1, float dt)
+    {
+        final float l = World.l, A = World.A, g = World.g;
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = x0; x < x1; x++)
+            {
+                final int i = y * width + x;
+                final int f = 4 * i;
+                float fL = 0, fR = 0, fT = 0, fB = 0;
+                // Left
+                if (x > 0)
+                {
+                    float dh = world[i] + water[i] - world[i - 1] - water[i - 1];
+                    fL = Math.max(0, flux[f + L] + dt * A * g * dh / l);
+                }
+                // Right
+                if (x < width - 1)
+                {
+                    float dh = world[i] + water[i] - world[i + 1] - water[i + 1];
+                    fR = Math.max(0, flux[f + R] + dt * A * g * dh / l);
+                }
+                // Top
+                if (y > 0)
+                {
+                    float dh = world[i] + water[i] - world[i - width] - water[i - width];
+                    fT = Math.max(0, flux[f + T] + dt * A * g * dh / l);
+                }
+                // Bottom
+                if (y < height - 1)
+                {
+                    float dh = world[i] + water[i] - world[i + width] - water[i + width];
+                    fB = Math.max(0, flux[f + B] + dt * A * g * dh / l);
+                }
+                // Scale so the cell doesn't lose more water than it has.
+                if (fL + fR + fT + fB > 0)
+                {
+                    float K = Math.min(1, water[i] * l * l / ((fL + fR + fT + fB) * dt));
+
+                    flux[f + L] = K * fL;
+                    flux[f + R] = K * fR;
+                    flux[f + T] = K * fT;
+                    flux[f + B] = K * fB;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the outflow of columns [x0, x1) of rows [y0, y1).
+     */
+    public void clearFlux(int x0, int x1, int y0, int y1)
+    {
+        for (int y = y0; y < y1; y++)
+        {
+            Arrays.fill(flux, 4 * (y * width + x0), 4 * (y * width + x1), 0.0f);
+        }
+    }
+
+    /**
+     * Every cell's flux is finished by computeFlux.
+     */
+    public void solve(final float[] world, final float[] water, float dt)
+    {
+    }
+
+    /**
+     * Move water according to the flux and derive the water velocity for
+     * columns [x0, x1) of rows [y0, y1). Reads the flux of neighbouring
+     * cells, so their flux must be computed first.
+     * @return The largest flow into plus out of any of the cells, in m^3/s.
+     */
+    public float updateWater(final float[] water, final float[] velocityX, final float[] velocityY,
+        int x0, int x1, int y0, int y1, float dt)
+    {
+        final float l = World.l;
+        float maxThroughput = 0;
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = x0; x < x1; x++)
+            {
+                final int i = y * width + x;
+                final int f = 4 * i;
+                final float inL = x <= 0 ? 0.0f : flux[f - 4 + R];
+                final float inT = y <= 0 ? 0.0f : flux[f - 4 * width + B];
+                final float inR = x >= width - 1 ? 0.0f : flux[f + 4 + L];
+                final float inB = y >= height - 1 ? 0.0f : flux[f + 4 * width + T];
+                final float in = inL + inT + inR + inB;
+                final float out = flux[f + L] + flux[f + R] + flux[f + T] + flux[f + B];
+                maxThroughput = Math.max(maxThroughput, in + out);
+                // Change in water volume
+                float dV = dt * (in - out);
+                // Move water according to flow
+                water[i] += dV / (l * l);
+                // Don't have negative water ever.
+                if (water[i] < 0)
+                {
+                    water[i] = 0;
+                }
+
+                // Use flow to calculate water velocity
+                velocityX[i] = (inL - flux[f + L] + flux[f + R] - inR) / 2;
+                velocityY[i] = (inT - flux[f + T] + flux[f + B] - inB) / 2;
+            }
+        }
+        return maxThroughput;
+    }
+}
@@ -0,0 +1,152 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * How a QuantizedLayer stores its cells: as a code of 8 or 16 bits that
+ * decodes to offset + scale * code, where the code is an unsigned integer
+ * for the fixed point formats and a half precision float for HALF.
+ *
+ * Fixed point has the same absolute error everywhere in its range and
+ * saturates outside it; half precision keeps about three significant
+ * digits from 6e-5 * scale up to 65504 * scale.
+ */
+public class Quantization
+{
+    public enum Format
+    {
+        FIXED8(1),
+        FIXED16(2),
+        HALF(2);
+
+        final int bytes;
+
+        Format(int bytes)
+        {
+            this.bytes = bytes;
+        }
+    }
+
+    // Elevation to a quarter of a meter up to 16 km.
+    public static final Quantization ELEVATION = new Quantization(Format.FIXED16, 0, 0.25f);
+    // Water and snow height, finest where they are shallow.
+    public static final Quantization WATER = new Quantization(Format.HALF, 0, 1);
+    public static final Quantization SNOW = new Quantization(Format.HALF, 0, 1);
+    // Water vapor in grams, up to about a tonne.
+    public static final Quantization WATER_VAPOR = new Quantization(Format.HALF, 0, 16);
+    // Vegetation grows to 3.
+    public static final Quantization VEGETATION = new Quantization(Format.FIXED8, 0, 3 / 255f);
+    // Shade is a cosine.
+    public static final Quantization SHADE = new Quantization(Format.FIXED8, -1, 2 / 255f);
+
+    // Every half precision value, so decoding is a lookup.
+    private static final float[] HALVES = new float[1 << 16];
+
+    static
+    {
+        for (int half = 0; half < HALVES.length; half++)
+        {
+            HALVES[half] = fromHalf(half);
+        }
+    }
+
+    final Format format;
+    final float offset, scale;
+    private final int maxCode;
+
+    public Quantization(final Format format, float offset, float scale)
+    {
+        if (!(scale > 0))
+        {
+            throw new IllegalArgumentException(String.format("Scale %g must be positive", scale));
+        }
+        this.format = format;
+        this.offset = offset;
+        this.scale = scale;
+        maxCode = format == Format.FIXED8 ? 0xff : 0xffff;
+    }
+
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    public int getBytesPerCell()
+    {
+        return format.bytes;
+    }
+
+    /**
+     * @return The code nearest to value.
+     */
+    public int encode(float value)
+    {
+        final float scaled = (value - offset) / scale;
+        if (format == Format.HALF)
+        {
+            return toHalf(scaled);
+        }
+        // NaN saturates to 0 along with everything below the range.
+        return scaled >= maxCode ? maxCode : scaled > 0 ? Math.round(scaled) : 0;
+    }
+
+    public float decode(int code)
+    {
+        return offset + scale * (format == Format.HALF ? HALVES[code] : code);
+    }
+
+    // The nearest half precision float, saturating to the largest finite one.
+    static int toHalf(float value)
+    {
+        final int bits = Float.floatToIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int biased = (bits >>> 23) & 0xff;
+        final int mantissa = bits & 0x7fffff;
+        if (biased == 0xff)
+        {
+            return mantissa != 0 ? 0x7e00 : sign | 0x7bff;
+        }
+        final int exponent = biased - 127 + 15;
+        int half;
+        if (exponent <= 0)
+        {
+            // Subnormal, or too small for even that.
+            if (exponent < -10)
+            {
+                return sign;
+            }
+            final int shift = 14 - exponent;
+            final int significand = mantissa | 0x800000;
+            half = significand >> shift;
+            if (((significand >> (shift - 1)) & 1) != 0)
+            {
+                half++;
+            }
+        }
+        else
+        {
+            half = exponent << 10 | mantissa >> 13;
+            // Rounding up may carry into the exponent, which is still right.
+            if ((mantissa & 0x1000) != 0)
+            {
+                half++;
+            }
+        }
+        return sign | Math.min(half, 0x7bff);
+    }
+
+    static float fromHalf(int half)
+    {
+        final int sign = (half & 0x8000) << 16;
+        final int exponent = (half >>> 10) & 0x1f;
+        final int mantissa = half & 0x3ff;
+        if (exponent == 0)
+        {
+            final float value = mantissa / (float) (1 << 24);
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 0x1f)
+        {
+            return Float.intBitsToFloat(sign | 0x7f800000 | mantissa << 13);
+        }
+        return Float.intBitsToFloat(sign | (exponent - 15 + 127) << 23 | mantissa << 13);
+    }
+}
@@ -0,0 +1,183 @@
+package aaronsantos.worldbuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A TiledLayer kept as 8 or 16 bit codes, decoded as it is read, for
+ * holding on to many snapshots.
+ *
+ * Like TiledLayers, quantized layers encoded one after the other share the
+ * tiles that didn't change between them. They are read-only, so they can't
+ * be filled by World.copyTo. Subclasses may keep the codes elsewhere,
+ * overriding code.
+ */
+public class QuantizedLayer extends TiledLayer
+{
+    final Quantization quantization;
+    // Codes of each tile, in whichever array fits the format.
+    private final byte[][] bytes;
+    private final short[][] shorts;
+    // Tiles encoded rather than shared.
+    private int encodedTiles = 0;
+
+    public QuantizedLayer(final TiledLayer source, final Quantization quantization)
+    {
+        this(source, quantization, null, null);
+    }
+
+    /**
+     * A layer whose codes a subclass provides.
+     */
+    QuantizedLayer(final int width, final int height, final Quantization quantization)
+    {
+        super(width, height, false);
+        this.quantization = quantization;
+        bytes = null;
+        shorts = null;
+    }
+
+    /**
+     * Encode a layer, taking the tiles it shares with previousSource from
+     * previous, which was encoded from previousSource the same way.
+     */
+    QuantizedLayer(final TiledLayer source, final Quantization quantization, final TiledLayer previousSource,
+        final QuantizedLayer previous)
+    {
+        super(source.width, source.height, false);
+        this.quantization = quantization;
+        final boolean eightBit = quantization.getBytesPerCell() == 1;
+        bytes = eightBit ? new byte[tiles.length][] : null;
+        shorts = eightBit ? null : new short[tiles.length][];
+        final boolean sharing = previous != null && previousSource != null && previous.quantization == quantization;
+        for (int t = 0; t < tiles.length; t++)
+        {
+            if (sharing && source.sharesTile(previousSource, t))
+            {
+                if (eightBit)
+                {
+                    bytes[t] = previous.bytes[t];
+                }
+                else
+                {
+                    shorts[t] = previous.shorts[t];
+                }
+                continue;
+            }
+            final float[] tile = source.tiles[t];
+            if (eightBit)
+            {
+                bytes[t] = new byte[tile.length];
+                for (int i = 0; i < tile.length; i++)
+                {
+                    bytes[t][i] = (byte) quantization.encode(tile[i]);
+                }
+            }
+            else
+            {
+                shorts[t] = new short[tile.length];
+                for (int i = 0; i < tile.length; i++)
+                {
+                    shorts[t][i] = (short) quantization.encode(tile[i]);
+                }
+            }
+            encodedTiles++;
+        }
+    }
+
+    public Quantization getQuantization()
+    {
+        return quantization;
+    }
+
+    /**
+     * @return How many tiles were encoded rather than shared with the
+     *         layer before.
+     */
+    public int getEncodedTiles()
+    {
+        return encodedTiles;
+    }
+
+    @Override
+    public int getBytesPerCell()
+    {
+        return quantization.getBytesPerCell();
+    }
+
+    // Code of cell i of tile t.
+    int code(int t, int i)
+    {
+        return bytes != null ? bytes[t][i] & 0xff : shorts[t][i] & 0xffff;
+    }
+
+    private float decode(int t, int i)
+    {
+        return quantization.decode(code(t, i));
+    }
+
+    /**
+     * Write the codes of tile t to out, in the byte order of out.
+     */
+    void writeTile(int t, final ByteBuffer out)
+    {
+        final int cells = TILE_SIZE * TILE_SIZE;
+        for (int i = 0; i < cells; i++)
+        {
+            if (quantization.getBytesPerCell() == 1)
+            {
+                out.put((byte) code(t, i));
+            }
+            else
+            {
+                out.putShort((short) code(t, i));
+            }
+        }
+    }
+
+    @Override
+    public float get(int x, int y)
+    {
+        return decode((y / TILE_SIZE) * tilesX + x / TILE_SIZE, (y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE);
+    }
+
+    @Override
+    public float[] read(int x0, int y0, int x1, int y1, final float[] out)
+    {
+        checkRegion(x0, y0, x1, y1);
+        final int columns = x1 - x0;
+        for (int y = y0; y < y1; y++)
+        {
+            final int row = (y / TILE_SIZE) * tilesX;
+            final int offset = (y % TILE_SIZE) * TILE_SIZE;
+            for (int x = x0; x < x1; x++)
+            {
+                out[(y - y0) * columns + x - x0] = decode(row + x / TILE_SIZE, offset + x % TILE_SIZE);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public boolean sharesTile(final TiledLayer other, int t)
+    {
+        if (!(other instanceof QuantizedLayer))
+        {
+            return false;
+        }
+        final QuantizedLayer quantized = (QuantizedLayer) other;
+        return bytes != null ? quantized.bytes != null && bytes[t] == quantized.bytes[t]
+            : quantized.shorts != null && shorts[t] == quantized.shorts[t];
+    }
+
+    @Override
+    void copyTile(int t, final float[] data)
+    {
+        throw new UnsupportedOperationException("Quantized layers are read-only");
+    }
+
+    @Override
+    void shareTile(int t, final TiledLayer other)
+    {
+        throw new UnsupportedOperationException("Quantized layers are read-only");
+    }
+}
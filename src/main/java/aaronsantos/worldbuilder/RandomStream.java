@@ -0,0 +1,75 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * A stream of pseudorandom numbers from the SplitMix64 generator.
+ * See http://dx.doi.org/10.1145/2714064.2660195
+ * 
+ * Streams are cheap and are not thread safe; give every subsystem, tile
+ * or thread its own from WorldRandom rather than sharing one.
+ */
+public final class RandomStream
+{
+    static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    public RandomStream(long seed)
+    {
+        state = seed;
+    }
+
+    /**
+     * The SplitMix64 output function, a good 64 bit hash on its own.
+     */
+    static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public long nextLong()
+    {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    /**
+     * @return A number in [0, 1).
+     */
+    public double nextDouble()
+    {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * @return A number in [0, 1).
+     */
+    public float nextFloat()
+    {
+        return (nextLong() >>> 40) * 0x1.0p-24f;
+    }
+
+    /**
+     * @return A number in [low, high), like PApplet.random(low, high).
+     */
+    public float nextFloat(float low, float high)
+    {
+        return low + (high - low) * nextFloat();
+    }
+
+    // http://en.wikipedia.org/wiki/Poisson_distribution#Generating_Poisson-distributed_random_variables
+    public int nextPoisson(float expectedValue)
+    {
+        float l = (float)Util.fastpow(Math.E, -expectedValue);
+        int k = 0;
+        float p = 1;
+        do
+        {
+            k++;
+            p *= nextDouble();
+        }
+        while (p > l);
+        return k - 1;
+    }
+}
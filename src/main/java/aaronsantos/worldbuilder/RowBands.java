@@ -0,0 +1,102 @@
+package aaronsantos.worldbuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a grid into bands of rows and runs a kernel over every band.
+ * 
+ * A kernel may read any row of the grid but must only write cells in the
+ * rows it was handed, so the rows just above and below a band act as its
+ * halo: they were finished by the previous phase and are read-only for the
+ * current one. run() returns once every band is done, which makes each call
+ * a barrier between phases.
+ * 
+ * The band layout does not depend on the thread count, so a kernel that
+ * accumulates per-band results sees the same bands in serial and in
+ * parallel mode.
+ */
+class RowBands
+{
+    interface Kernel
+    {
+        /**
+         * Process rows [y0, y1).
+         */
+        void run(int y0, int y1);
+    }
+
+    // Rows per band.
+    static final int BAND_HEIGHT = 32;
+
+    private final ForkJoinPool pool;
+
+    RowBands(int threads)
+    {
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * @return The number of bands that rows [from, to) are split into.
+     */
+    static int bandCount(int from, int to)
+    {
+        return (to - from + BAND_HEIGHT - 1) / BAND_HEIGHT;
+    }
+
+    /**
+     * @return The index of the band starting at row y0 when rows from
+     * [from, to) are split into bands.
+     */
+    static int bandIndex(int from, int y0)
+    {
+        return (y0 - from) / BAND_HEIGHT;
+    }
+
+    /**
+     * Run the kernel over rows [from, to) and wait for it to finish.
+     */
+    void run(final int from, final int to, final Kernel kernel)
+    {
+        if (pool == null || bandCount(from, to) < 2)
+        {
+            for (int y = from; y < to; y += BAND_HEIGHT)
+            {
+                kernel.run(y, Math.min(to, y + BAND_HEIGHT));
+            }
+            return;
+        }
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int y = from; y < to; y += BAND_HEIGHT)
+        {
+            final int y0 = y;
+            final int y1 = Math.min(to, y + BAND_HEIGHT);
+            tasks.add(new RecursiveAction()
+            {
+                @Override
+                protected void compute()
+                {
+                    kernel.run(y0, y1);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    void shutdown()
+    {
+        if (pool != null)
+        {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * How the cells of a world width by height sample a wind solver's nx by ny
+ * grid, worked out once for every column and every row rather than for
+ * every cell: the grid cell each column or row falls in, the neighbouring
+ * cell it is blended with and the neighbour's weight. Grid cells are
+ * numbered from 1, inside the solvers' boundary cells.
+ */
+final class SampleGrid
+{
+    final int width, height;
+    final int[] column, neighbourColumn;
+    final float[] columnWeight;
+    final int[] row, neighbourRow;
+    final float[] rowWeight;
+
+    SampleGrid(int nx, int ny, int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        final float cellWidth = (float) width / nx;
+        final float cellHeight = (float) height / ny;
+        column = new int[width];
+        neighbourColumn = new int[width];
+        columnWeight = new float[width];
+        for (int x = 0; x < width; x++)
+        {
+            final int cellX = (int) (x / cellWidth);
+            final float lX = x - cellX * cellWidth - cellWidth / 2;
+            column[x] = cellX + 1;
+            neighbourColumn[x] = (lX > 0 ? Math.min(nx, cellX + 1) : Math.min(nx, cellX - 1)) + 1;
+            columnWeight[x] = (lX > 0 ? 1 : -1) * lX / cellWidth;
+        }
+        row = new int[height];
+        neighbourRow = new int[height];
+        rowWeight = new float[height];
+        for (int y = 0; y < height; y++)
+        {
+            final int cellY = (int) (y / cellHeight);
+            final float lY = y - cellY * cellHeight - cellHeight / 2;
+            row[y] = cellY + 1;
+            neighbourRow[y] = (lY > 0 ? Math.min(ny, cellY + 1) : Math.min(ny, cellY - 1)) + 1;
+            rowWeight[y] = (lY > 0 ? 1 : -1) * lY / cellHeight;
+        }
+    }
+
+    /**
+     * @return last if it was made for width by height, or a new grid.
+     */
+    static SampleGrid get(final SampleGrid last, int nx, int ny, int width, int height)
+    {
+        return last != null && last.width == width && last.height == height ? last
+            : new SampleGrid(nx, ny, width, height);
+    }
+}
@@ -0,0 +1,354 @@
+package aaronsantos.worldbuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs subsystems at different rates.
+ *
+ * Each subsystem is registered with a period, the number of world steps
+ * between its runs, and a number of substeps per run. A run covers all of
+ * the simulated time since the subsystem last ran, so a subsystem with
+ * period 20 is stepped with the sum of the last 20 world steps' dts, split
+ * evenly over its substeps.
+ *
+ * A subsystem may also be registered to run after others, which makes a
+ * step a small dependency graph. Serially, subsystems due on the same step
+ * run in the order they were registered, which the dependencies must
+ * agree with. Given threads, a subsystem starts as soon as the ones it
+ * runs after that are due on the same step have finished, so independent
+ * subsystems overlap. Either way a subsystem sees the same state, so the
+ * results don't depend on it.
+ *
+ * An adaptive scheduler gives an AdaptiveSubsystem more substeps when the
+ * dt of its run is more than it can take stably, up to a limit.
+ *
+ * The time of every run is recorded, along with the critical path through
+ * each step: the chain of runs that the step could not have finished
+ * sooner than.
+ */
+public class Scheduler
+{
+    private static class Entry
+    {
+        final Subsystem subsystem;
+        final int period;
+        final int substeps;
+        final Entry[] after;
+        // Time of this step's run, and when it would have finished had
+        // every run started the moment its dependencies were done.
+        long nanos, finish;
+        boolean due;
+        // Simulated time since the last run.
+        double elapsed;
+        // Over all steps: time spent, runs, and runs on the critical path.
+        long totalNanos, runs, criticalRuns;
+
+        Entry(Subsystem subsystem, int period, int substeps, Entry[] after)
+        {
+            this.subsystem = subsystem;
+            this.period = period;
+            this.substeps = substeps;
+            this.after = after;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private long step = 0;
+    // Most substeps an adaptive run may be split into, 0 when not adaptive.
+    private int maxSubsteps = 0;
+    // Runs independent subsystems at the same time, null to run them in order.
+    private ExecutorService executor;
+    private boolean overlap = false;
+    // Over all steps: wall time, time of all runs, and length of the critical paths.
+    private long wallNanos, busyNanos, criticalNanos;
+
+    /**
+     * @param period Steps between runs, at least 1.
+     * @param substeps Substeps per run, at least 1.
+     * @param after Registered subsystems that must finish first when they
+     *        run on the same step.
+     */
+    public void register(Subsystem subsystem, int period, int substeps, Subsystem... after)
+    {
+        if (period < 1 || substeps < 1)
+        {
+            throw new IllegalArgumentException(String.format("%s: period %d and substeps %d must be positive",
+                subsystem.getName(), period, substeps));
+        }
+        final Entry[] dependencies = new Entry[after.length];
+        for (int i = 0; i < after.length; i++)
+        {
+            dependencies[i] = entry(after[i]);
+            if (dependencies[i] == null)
+            {
+                throw new IllegalArgumentException(String.format("%s: %s must be registered first",
+                    subsystem.getName(), after[i].getName()));
+            }
+        }
+        entries.add(new Entry(subsystem, period, substeps, dependencies));
+    }
+
+    private Entry entry(Subsystem subsystem)
+    {
+        for (Entry entry : entries)
+        {
+            if (entry.subsystem == subsystem)
+            {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Split the runs of adaptive subsystems into up to maxSubsteps substeps
+     * to keep each one stable, or don't if maxSubsteps is 0.
+     */
+    public void setMaxSubsteps(int maxSubsteps)
+    {
+        this.maxSubsteps = Math.max(0, maxSubsteps);
+    }
+
+    /**
+     * Overlap independent subsystems on their own threads, or run them in
+     * order if overlap is false.
+     */
+    public void setOverlap(boolean overlap)
+    {
+        shutdown();
+        this.overlap = overlap;
+        // Every subsystem gets a thread, so one waiting on another never
+        // holds up a third. Like a ForkJoinPool's, they don't keep the VM alive.
+        executor = overlap ? Executors.newFixedThreadPool(Math.max(1, entries.size()), new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    /**
+     * Advance the world by one step of dt, running every subsystem that is due.
+     */
+    public void step(final float dt)
+    {
+        step++;
+        final long start = System.nanoTime();
+        if (executor == null)
+        {
+            for (Entry entry : entries)
+            {
+                entry.elapsed += dt;
+                entry.due = step % entry.period == 0;
+                if (entry.due)
+                {
+                    run(entry);
+                }
+            }
+        }
+        else
+        {
+            final Future<?>[] futures = new Future<?>[entries.size()];
+            for (int e = 0; e < entries.size(); e++)
+            {
+                final Entry entry = entries.get(e);
+                entry.elapsed += dt;
+                entry.due = step % entry.period == 0;
+                if (!entry.due)
+                {
+                    continue;
+                }
+                final List<Future<?>> dependencies = new ArrayList<Future<?>>();
+                for (Entry dependency : entry.after)
+                {
+                    if (dependency.due)
+                    {
+                        dependencies.add(futures[entries.indexOf(dependency)]);
+                    }
+                }
+                futures[e] = executor.submit(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        for (Future<?> dependency : dependencies)
+                        {
+                            dependency.get();
+                        }
+                        run(entry);
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future : futures)
+            {
+                await(future);
+            }
+        }
+        wallNanos += System.nanoTime() - start;
+        recordCriticalPath();
+    }
+
+    private void run(Entry entry)
+    {
+        final long start = System.nanoTime();
+        final float runDt = (float)entry.elapsed;
+        entry.elapsed = 0;
+        final int substeps = substeps(entry, runDt);
+        final float substepDt = runDt / substeps;
+        for (int i = 0; i < substeps; i++)
+        {
+            entry.subsystem.step(substepDt);
+        }
+        entry.nanos = System.nanoTime() - start;
+    }
+
+    private static void await(Future<?> future)
+    {
+        if (future == null)
+        {
+            return;
+        }
+        try
+        {
+            future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stepping", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+            if (e.getCause() instanceof Error)
+            {
+                throw (Error)e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private int substeps(Entry entry, float runDt)
+    {
+        if (maxSubsteps == 0 || !(entry.subsystem instanceof AdaptiveSubsystem))
+        {
+            return entry.substeps;
+        }
+        final float stableDt = ((AdaptiveSubsystem)entry.subsystem).getStableDt();
+        final double needed = Math.ceil(runDt / stableDt);
+        return (int)Math.min(Math.max(maxSubsteps, entry.substeps), Math.max(entry.substeps, needed));
+    }
+
+    // Find when each run of this step would have finished with unlimited
+    // threads, and walk the chain back from the last one.
+    private void recordCriticalPath()
+    {
+        Entry last = null;
+        for (Entry entry : entries)
+        {
+            if (!entry.due)
+            {
+                continue;
+            }
+            long start = 0;
+            for (Entry dependency : entry.after)
+            {
+                if (dependency.due)
+                {
+                    start = Math.max(start, dependency.finish);
+                }
+            }
+            entry.finish = start + entry.nanos;
+            entry.totalNanos += entry.nanos;
+            entry.runs++;
+            busyNanos += entry.nanos;
+            if (last == null || entry.finish > last.finish)
+            {
+                last = entry;
+            }
+        }
+        if (last != null)
+        {
+            criticalNanos += last.finish;
+        }
+        while (last != null)
+        {
+            last.criticalRuns++;
+            Entry previous = null;
+            for (Entry dependency : last.after)
+            {
+                if (dependency.due && (previous == null || dependency.finish > previous.finish))
+                {
+                    previous = dependency;
+                }
+            }
+            last = previous;
+        }
+    }
+
+    /**
+     * @return Time spent in every subsystem over all steps, how often each
+     *         was on the critical path, and how the critical path compares
+     *         to running everything in order.
+     */
+    public String getTimingReport()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (Entry entry : entries)
+        {
+            final String[] after = new String[entry.after.length];
+            for (int i = 0; i < after.length; i++)
+            {
+                after[i] = entry.after[i].subsystem.getName();
+            }
+            builder.append(String.format(Locale.ROOT, "%-12s %5d runs, %9.2f ms/run, %5.1f%% of time, "
+                + "critical in %5.1f%% of steps, after %s%n", entry.subsystem.getName(), entry.runs,
+                entry.runs > 0 ? entry.totalNanos / 1e6 / entry.runs : 0.0,
+                busyNanos > 0 ? 100.0 * entry.totalNanos / busyNanos : 0.0,
+                step > 0 ? 100.0 * entry.criticalRuns / step : 0.0, Arrays.toString(after)));
+        }
+        if (step > 0)
+        {
+            builder.append(String.format(Locale.ROOT,
+                "per step: %.2f ms in order, %.2f ms critical path, %.2f ms wall (%s)%n",
+                busyNanos / 1e6 / step, criticalNanos / 1e6 / step, wallNanos / 1e6 / step,
+                overlap ? "overlapped" : "in order"));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Stop the threads that overlap subsystems.
+     */
+    public void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * @return The number of steps taken.
+     */
+    public long getStep()
+    {
+        return step;
+    }
+}
@@ -0,0 +1,41 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * Moves a world's surface water downhill as outflow through four pipes per
+ * cell: left, right, top and bottom, laid out as in PipeModel.
+ *
+ * A step computes the outflow of the active parts of the grid, solves for
+ * any coupling between them, then moves the water:
+ * computeFlux and clearFlux, solve once, then updateWater.
+ */
+public interface ShallowWaterModel
+{
+    /**
+     * @return Outflow in m^3/s, four per cell.
+     */
+    float[] getFlux();
+
+    /**
+     * Update the outflow of columns [x0, x1) of rows [y0, y1).
+     * @param world Row-major terrain height.
+     * @param water Row-major water height.
+     */
+    void computeFlux(float[] world, float[] water, int x0, int x1, int y0, int y1, float dt);
+
+    /**
+     * Stop the outflow of columns [x0, x1) of rows [y0, y1).
+     */
+    void clearFlux(int x0, int x1, int y0, int y1);
+
+    /**
+     * Finish the outflow of every cell whose flux was computed this step.
+     */
+    void solve(float[] world, float[] water, float dt);
+
+    /**
+     * Move water according to the flux and derive the water velocity for
+     * columns [x0, x1) of rows [y0, y1).
+     * @return The largest flow into plus out of any of the cells, in m^3/s.
+     */
+    float updateWater(float[] water, float[] velocityX, float[] velocityY, int x0, int x1, int y0, int y1, float dt);
+}
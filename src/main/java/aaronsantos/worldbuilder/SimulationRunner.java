@@ -0,0 +1,257 @@
+package aaronsantos.worldbuilder;
+
+import aaronsantos.worldbuilder.io.GeoJSONWriter;
+import aaronsantos.worldbuilder.io.GeoTIFFWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs a World without a display as fast as it will go, then writes the
+ * requested exports and timing stats.
+ * 
+ * Usage: SimulationRunner [--width N] [--height N] [--steps N | --days N]
+ *   [--max-dt N] [--threads N] [--seed N] [--out DIR] [--export geojson,geotiff]
+ *   [--history DIR] [--history-every N]
+ *
+ * --max-dt sizes every step from the speed of the water and wind, up to N,
+ * so a quiet world covers more days in the same time.
+ *
+ * --history records a snapshot every N steps, 10 by default, to a
+ * SnapShotHistory in DIR that WorldBuilder can scrub through.
+ */
+public class SimulationRunner
+{
+    private int width = 600;
+    private int height = 600;
+    private long steps = 100;
+    private boolean stepsGiven = false;
+    // World time to run for instead of a number of steps, or -1.
+    private double days = -1;
+    private File out = new File(".");
+    private boolean geoJSON = false;
+    private boolean geoTIFF = false;
+    private File history = null;
+    private int historyEvery = 10;
+    private final WorldSettings settings = new WorldSettings();
+
+    public static void main(String[] args) throws IOException
+    {
+        final SimulationRunner runner = new SimulationRunner();
+        try
+        {
+            runner.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: SimulationRunner [--width N] [--height N] [--steps N | --days N]");
+            System.err.println("  [--max-dt N] [--threads N] [--seed N] [--out DIR] [--export geojson,geotiff]");
+            System.err.println("  [--history DIR] [--history-every N]");
+            System.exit(1);
+        }
+        runner.run();
+    }
+
+    void parse(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            final String option = args[i];
+            if (i + 1 >= args.length)
+            {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            final String value = args[++i];
+            try
+            {
+                if (option.equals("--width"))
+                {
+                    width = Integer.parseInt(value);
+                }
+                else if (option.equals("--height"))
+                {
+                    height = Integer.parseInt(value);
+                }
+                else if (option.equals("--steps"))
+                {
+                    steps = Long.parseLong(value);
+                    stepsGiven = true;
+                }
+                else if (option.equals("--days"))
+                {
+                    days = Double.parseDouble(value);
+                    if (!(days > 0))
+                    {
+                        throw new IllegalArgumentException("--days must be positive: " + value);
+                    }
+                }
+                else if (option.equals("--max-dt"))
+                {
+                    settings.setAdaptiveDt(true);
+                    settings.setMaxDt(Float.parseFloat(value));
+                }
+                else if (option.equals("--threads"))
+                {
+                    settings.setThreads(Integer.parseInt(value));
+                }
+                else if (option.equals("--seed"))
+                {
+                    settings.setSeed(Long.parseLong(value));
+                }
+                else if (option.equals("--out"))
+                {
+                    out = new File(value);
+                }
+                else if (option.equals("--history"))
+                {
+                    history = new File(value);
+                }
+                else if (option.equals("--history-every"))
+                {
+                    historyEvery = Integer.parseInt(value);
+                }
+                else if (option.equals("--export"))
+                {
+                    for (String format : value.split(","))
+                    {
+                        if (format.equalsIgnoreCase("geojson"))
+                        {
+                            geoJSON = true;
+                        }
+                        else if (format.equalsIgnoreCase("geotiff"))
+                        {
+                            geoTIFF = true;
+                        }
+                        else
+                        {
+                            throw new IllegalArgumentException("Unknown export format " + format);
+                        }
+                    }
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Bad value for " + option + ": " + value);
+            }
+        }
+        if (stepsGiven && days > 0)
+        {
+            throw new IllegalArgumentException("Give --steps or --days, not both");
+        }
+        if (width < 1 || height < 1 || steps < 0 || settings.getMaxDt() <= 0
+            || historyEvery < 1)
+        {
+            throw new IllegalArgumentException("Width, height, steps, max dt and history every must be positive");
+        }
+    }
+
+    void run() throws IOException
+    {
+        if (!out.isDirectory() && !out.mkdirs())
+        {
+            throw new IOException("Can't create " + out);
+        }
+        final long setupStart = System.nanoTime();
+        final World world = new World(width, height, settings);
+        final SnapShotHistory recorder = history != null ? new SnapShotHistory(history) : null;
+        final long setupNanos = System.nanoTime() - setupStart;
+
+        // Adaptive steps vary in length, so a run of days takes as many steps as it needs.
+        long[] stepNanos = new long[days < 0 ? (int)steps : 1024];
+        int stepsRun = 0;
+        long historyNanos = 0;
+        try
+        {
+            while (days < 0 ? stepsRun < steps : world.getElapsedMinutes() < days * 24 * 60)
+            {
+                if (stepsRun == stepNanos.length)
+                {
+                    stepNanos = Arrays.copyOf(stepNanos, 2 * stepsRun);
+                }
+                final long start = System.nanoTime();
+                world.step();
+                stepNanos[stepsRun++] = System.nanoTime() - start;
+                if (recorder != null && stepsRun % historyEvery == 0)
+                {
+                    final long recordStart = System.nanoTime();
+                    recorder.record(world.getSnapShot());
+                    historyNanos += System.nanoTime() - recordStart;
+                }
+            }
+        }
+        finally
+        {
+            world.shutdown();
+            if (recorder != null)
+            {
+                recorder.close();
+            }
+        }
+
+        final long exportStart = System.nanoTime();
+        if (geoJSON || geoTIFF)
+        {
+            final WorldSnapShot snapShot = world.getSnapShot();
+            if (geoJSON)
+            {
+                new GeoJSONWriter().write(snapShot, out);
+            }
+            if (geoTIFF)
+            {
+                new GeoTIFFWriter().write(snapShot, out);
+            }
+        }
+        final long exportNanos = System.nanoTime() - exportStart;
+
+        final String stats = stats(Arrays.copyOf(stepNanos, stepsRun), world.getElapsedMinutes(), setupNanos,
+            exportNanos) + (recorder != null ? String.format(Locale.ROOT, "history %d frames, %.1f MB, %.1f ms%n",
+            recorder.getFrameCount(), recorder.getSize() / 1e6, historyNanos / 1e6) : "") + world.getTimingReport();
+        System.out.print(stats);
+        final PrintWriter writer = new PrintWriter(new FileWriter(new File(out, "timing.txt")));
+        try
+        {
+            writer.print(stats);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private String stats(final long[] stepNanos, double minutes, long setupNanos, long exportNanos)
+    {
+        long total = 0;
+        for (long nanos : stepNanos)
+        {
+            total += nanos;
+        }
+        final long[] sorted = stepNanos.clone();
+        Arrays.sort(sorted);
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, "world %dx%d, seed %d, %d threads%n",
+            width, height, settings.getSeed(), settings.getThreads()));
+        builder.append(String.format(Locale.ROOT, "steps %d (%.2f days%s)%n",
+            stepNanos.length, minutes / (24 * 60), settings.isAdaptiveDt() ? ", adaptive dt" : ""));
+        builder.append(String.format(Locale.ROOT, "setup %.1f ms%n", setupNanos / 1e6));
+        if (sorted.length > 0)
+        {
+            builder.append(String.format(Locale.ROOT, "simulation %.3f s, %.2f steps/s, %.3g cell-steps/s%n",
+                total / 1e9, sorted.length / (total / 1e9), (double)width * height * sorted.length / (total / 1e9)));
+            builder.append(String.format(Locale.ROOT, "step ms: mean %.2f, min %.2f, median %.2f, max %.2f%n",
+                total / 1e6 / sorted.length, sorted[0] / 1e6, sorted[sorted.length / 2] / 1e6,
+                sorted[sorted.length - 1] / 1e6));
+            builder.append(String.format(Locale.ROOT, "%.1f simulated days/hour%n",
+                minutes / (24 * 60) / (total / 3.6e12)));
+        }
+        builder.append(String.format(Locale.ROOT, "export %.1f ms%n", exportNanos / 1e6));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,460 @@
+package aaronsantos.worldbuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records snapshots to disk as they are taken and reads any of them back,
+ * for scrubbing through and replaying a run.
+ *
+ * A history is a directory holding an index and numbered segment files of
+ * a fixed size. Each frame is quantized with a SnapShotQuantizer and its
+ * tiles are appended to the current segment, which is memory-mapped; when
+ * it fills up the next segment is started. A tile that didn't change since
+ * the last frame isn't written again, the frame just points at the earlier
+ * copy. After the tiles comes the frame's header, with the position of
+ * every tile and the cities and citizens, and the index gets the frame's
+ * step and where its header is.
+ *
+ * Frames read back decode their layers straight from the mapped segments.
+ * Recording only holds on to the last frame, and reading only to the
+ * frame being looked at, so the heap stays the same size however long the
+ * history grows.
+ */
+public class SnapShotHistory implements Closeable
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private static final int MAGIC = 0x57424853;
+    private static final int VERSION = 1;
+    // Magic, version and segment size.
+    private static final int INDEX_HEADER = 16;
+    // Step, position of the frame's header and the end of the frame.
+    private static final int INDEX_RECORD = 24;
+    // Segments kept mapped for reading, besides the one being written.
+    private static final int MAPPED_SEGMENTS = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final RandomAccessFile indexFile;
+    private final FileChannel index;
+    private final int segmentSize;
+    private final SnapShotQuantizer quantizer = new SnapShotQuantizer();
+    private final ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD);
+    private final Map<Integer, MappedByteBuffer> mapped = new LinkedHashMap<Integer, MappedByteBuffer>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest)
+        {
+            return size() > MAPPED_SEGMENTS;
+        }
+    };
+    private int frames;
+    // Where the next write goes, over all segments.
+    private long end;
+    // The segment being written.
+    private int writeSegmentNumber = -1;
+    private MappedByteBuffer writeSegment;
+    // The last frame recorded and the positions of its tiles.
+    private WorldSnapShot lastFrame;
+    private long[][] lastPositions;
+
+    /**
+     * Open the history in a directory, or start one with the default
+     * segment size.
+     */
+    public SnapShotHistory(final File directory) throws IOException
+    {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open the history in a directory, or start one whose segments are
+     * segmentSize bytes. An existing history keeps its segment size, and
+     * frames recorded go after its frames, unless the first one can't
+     * follow them: one from a step no later than its last frame's, as from
+     * a world that started over, or of a different size. Then the frames
+     * already there are dropped and the history starts again.
+     */
+    public SnapShotHistory(final File directory, int segmentSize) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Can't create " + directory);
+        }
+        this.directory = directory;
+        indexFile = new RandomAccessFile(new File(directory, "index"), "rw");
+        index = indexFile.getChannel();
+        final ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+        if (index.size() == 0)
+        {
+            header.putInt(MAGIC).putInt(VERSION).putLong(segmentSize).flip();
+            index.write(header, 0);
+            this.segmentSize = segmentSize;
+        }
+        else
+        {
+            index.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            {
+                throw new IOException(directory + " doesn't hold a history this version can read");
+            }
+            this.segmentSize = (int) header.getLong();
+            frames = (int) ((index.size() - INDEX_HEADER) / INDEX_RECORD);
+            if (frames > 0)
+            {
+                end = record(frames - 1).getLong(16);
+            }
+        }
+    }
+
+    public synchronized int getFrameCount()
+    {
+        return frames;
+    }
+
+    /**
+     * @return The bytes the frames take up in the segments.
+     */
+    public synchronized long getSize()
+    {
+        return end;
+    }
+
+    /**
+     * @return The step the world had taken when the frame was recorded.
+     */
+    public synchronized long getStep(int frame) throws IOException
+    {
+        return record(frame).getLong(0);
+    }
+
+    /**
+     * @return The last frame recorded at or before the step, or -1 if there
+     *         is none.
+     */
+    public synchronized int find(long step) throws IOException
+    {
+        // Steps only grow, so the index is sorted.
+        int low = 0, high = frames - 1, found = -1;
+        while (low <= high)
+        {
+            final int middle = (low + high) >>> 1;
+            if (getStep(middle) <= step)
+            {
+                found = middle;
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Append a frame. Snapshots from World.getSnapShot or World.getView,
+     * recorded in the order they were taken, only write the tiles that
+     * changed between them.
+     */
+    public synchronized void record(final WorldSnapShot snapShot) throws IOException
+    {
+        if (frames > 0 && lastFrame == null)
+        {
+            final ByteBuffer header = header(frames - 1);
+            final long step = header.getLong();
+            if (snapShot.step <= step || snapShot.width != header.getInt() || snapShot.height != header.getInt())
+            {
+                index.truncate(INDEX_HEADER);
+                frames = 0;
+                end = 0;
+            }
+        }
+        if (frames > 0 && snapShot.step < getStep(frames - 1))
+        {
+            throw new IllegalArgumentException(String.format("Step %d is before the last frame's", snapShot.step));
+        }
+        final WorldSnapShot frame = quantizer.quantize(snapShot);
+        final TiledLayer[] layers = frame.layers();
+        final TiledLayer[] lastLayers = lastFrame != null ? lastFrame.layers() : null;
+        final long[][] positions = new long[layers.length][];
+        for (int l = 0; l < layers.length; l++)
+        {
+            final QuantizedLayer layer = (QuantizedLayer) layers[l];
+            positions[l] = new long[layer.getTileCount()];
+            for (int t = 0; t < positions[l].length; t++)
+            {
+                if (lastLayers != null && layer.sharesTile(lastLayers[l], t))
+                {
+                    positions[l][t] = lastPositions[l][t];
+                }
+                else
+                {
+                    final int bytes = TiledLayer.TILE_SIZE * TiledLayer.TILE_SIZE * layer.getBytesPerCell();
+                    positions[l][t] = reserve(bytes);
+                    layer.writeTile(t, writer(positions[l][t]));
+                }
+            }
+        }
+
+        // Cultures are stored once per frame, and cities and citizens refer to them.
+        final Map<Culture, Integer> cultures = new IdentityHashMap<Culture, Integer>();
+        final List<byte[]> names = new ArrayList<byte[]>();
+        int headerSize = 4 + 8 + 4 + 4 + 4 + 4 + 4;
+        for (int l = 0; l < layers.length; l++)
+        {
+            headerSize += 1 + 4 + 4 + 8 * positions[l].length;
+        }
+        for (City city : frame.cities)
+        {
+            headerSize += 16 + culture(city.getCulture(), cultures, names);
+        }
+        for (Citizen citizen : frame.citizens)
+        {
+            headerSize += 12 + culture(citizen.getCulture(), cultures, names);
+        }
+        if (headerSize > segmentSize)
+        {
+            throw new IllegalArgumentException(String.format("A frame header of %d bytes doesn't fit in segments of %d",
+                headerSize, segmentSize));
+        }
+        final long headerPosition = reserve(headerSize);
+        final ByteBuffer out = writer(headerPosition);
+        out.putInt(MAGIC).putLong(frame.step).putInt(frame.width).putInt(frame.height);
+        for (int l = 0; l < layers.length; l++)
+        {
+            final Quantization quantization = ((QuantizedLayer) layers[l]).getQuantization();
+            out.put((byte) quantization.getFormat().ordinal()).putFloat(quantization.offset)
+                .putFloat(quantization.scale);
+            for (long position : positions[l])
+            {
+                out.putLong(position);
+            }
+        }
+        out.putInt(names.size());
+        final Culture[] numbered = new Culture[names.size()];
+        for (Map.Entry<Culture, Integer> culture : cultures.entrySet())
+        {
+            numbered[culture.getValue()] = culture.getKey();
+        }
+        for (int c = 0; c < numbered.length; c++)
+        {
+            out.putShort((short) names.get(c).length).put(names.get(c)).putInt(numbered[c].getColor());
+        }
+        out.putInt(frame.cities.size());
+        for (City city : frame.cities)
+        {
+            out.putInt(city.getX()).putInt(city.getY()).putInt(city.getPopulation())
+                .putInt(cultureIndex(city.getCulture(), cultures));
+        }
+        out.putInt(frame.citizens.size());
+        for (Citizen citizen : frame.citizens)
+        {
+            out.putInt(citizen.getX()).putInt(citizen.getY()).putInt(cultureIndex(citizen.getCulture(), cultures));
+        }
+
+        record.clear();
+        record.putLong(frame.step).putLong(headerPosition).putLong(end).flip();
+        index.write(record, INDEX_HEADER + (long) frames * INDEX_RECORD);
+        frames++;
+        lastFrame = frame;
+        lastPositions = positions;
+    }
+
+    // Number a culture the first time it's seen, returning the bytes it adds to the header.
+    private static int culture(final Culture culture, final Map<Culture, Integer> cultures, final List<byte[]> names)
+    {
+        if (culture == null || cultures.containsKey(culture))
+        {
+            return 0;
+        }
+        final byte[] name = culture.getName().getBytes(UTF8);
+        cultures.put(culture, names.size());
+        names.add(name);
+        return 2 + name.length + 4;
+    }
+
+    private static int cultureIndex(final Culture culture, final Map<Culture, Integer> cultures)
+    {
+        return culture != null ? cultures.get(culture) : -1;
+    }
+
+    /**
+     * Read a frame back. Its layers are decoded from the mapped segments as
+     * they are read; the frame stays valid after the history is closed.
+     */
+    public synchronized WorldSnapShot read(int frame) throws IOException
+    {
+        final ByteBuffer in = header(frame);
+        final long step = in.getLong();
+        final int width = in.getInt();
+        final int height = in.getInt();
+        final TiledLayer[] layers = new TiledLayer[6];
+        for (int l = 0; l < layers.length; l++)
+        {
+            final Quantization.Format format = Quantization.Format.values()[in.get()];
+            final float offset = in.getFloat();
+            final float scale = in.getFloat();
+            final MappedLayer layer = new MappedLayer(width, height, new Quantization(format, offset, scale));
+            for (int t = 0; t < layer.getTileCount(); t++)
+            {
+                final long position = in.getLong();
+                layer.setTile(t, segment(segmentOf(position)), offsetOf(position));
+            }
+            layers[l] = layer;
+        }
+        final Culture[] cultures = new Culture[in.getInt()];
+        for (int c = 0; c < cultures.length; c++)
+        {
+            final byte[] name = new byte[in.getShort()];
+            in.get(name);
+            cultures[c] = new Culture(new String(name, UTF8), in.getInt());
+        }
+        final List<City> cities = new ArrayList<City>();
+        for (int count = in.getInt(), c = 0; c < count; c++)
+        {
+            final int x = in.getInt(), y = in.getInt(), population = in.getInt(), culture = in.getInt();
+            cities.add(new City(x, y, population, culture >= 0 ? cultures[culture] : null));
+        }
+        final List<Citizen> citizens = new ArrayList<Citizen>();
+        for (int count = in.getInt(), c = 0; c < count; c++)
+        {
+            final int x = in.getInt(), y = in.getInt(), culture = in.getInt();
+            citizens.add(new Citizen(x, y, culture >= 0 ? cultures[culture] : null));
+        }
+        final WorldSnapShot snapShot = new WorldSnapShot(width, height, layers[0], layers[1], layers[2], layers[3],
+            layers[4], layers[5], citizens, cities);
+        snapShot.step = step;
+        return snapShot;
+    }
+
+    // The header of a frame, from just after its magic number.
+    private ByteBuffer header(int frame) throws IOException
+    {
+        final long headerPosition = record(frame).getLong(8);
+        final ByteBuffer in = segment(segmentOf(headerPosition)).duplicate();
+        in.position(offsetOf(headerPosition));
+        if (in.getInt() != MAGIC)
+        {
+            throw new IOException(String.format("Frame %d of %s is damaged", frame, directory));
+        }
+        return in;
+    }
+
+    private ByteBuffer record(int frame) throws IOException
+    {
+        if (frame < 0 || frame >= frames)
+        {
+            throw new IndexOutOfBoundsException(String.format("Frame %d of %d", frame, frames));
+        }
+        record.clear();
+        while (record.hasRemaining())
+        {
+            if (index.read(record, INDEX_HEADER + (long) frame * INDEX_RECORD + record.position()) < 0)
+            {
+                throw new IOException(String.format("The index of %s is truncated", directory));
+            }
+        }
+        return record;
+    }
+
+    // Make room for bytes at the end, starting a new segment if they don't
+    // fit in this one, and return where they go.
+    private long reserve(int bytes)
+    {
+        if (offsetOf(end) + (long) bytes > segmentSize)
+        {
+            end = (segmentOf(end) + 1L) * segmentSize;
+        }
+        final long position = end;
+        end += bytes;
+        return position;
+    }
+
+    private ByteBuffer writer(long position) throws IOException
+    {
+        // Writes only go at the end, so the segment written is kept mapped
+        // however many segments are read in between.
+        final int number = segmentOf(position);
+        if (number != writeSegmentNumber)
+        {
+            writeSegment = segment(number);
+            writeSegmentNumber = number;
+        }
+        final ByteBuffer out = writeSegment.duplicate();
+        out.position(offsetOf(position));
+        return out;
+    }
+
+    private int segmentOf(long position)
+    {
+        return (int) (position / segmentSize);
+    }
+
+    private int offsetOf(long position)
+    {
+        return (int) (position % segmentSize);
+    }
+
+    private MappedByteBuffer segment(int number) throws IOException
+    {
+        if (number == writeSegmentNumber)
+        {
+            return writeSegment;
+        }
+        MappedByteBuffer segment = mapped.get(number);
+        if (segment == null)
+        {
+            final RandomAccessFile file = new RandomAccessFile(new File(directory,
+                String.format("segment-%05d", number)), "rw");
+            try
+            {
+                if (file.length() < segmentSize)
+                {
+                    file.setLength(segmentSize);
+                }
+                // The mapping outlives the file being closed.
+                segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            finally
+            {
+                file.close();
+            }
+            mapped.put(number, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Flush what has been recorded to disk.
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (writeSegment != null)
+        {
+            writeSegment.force();
+        }
+        index.force(false);
+    }
+
+    public synchronized void close() throws IOException
+    {
+        flush();
+        indexFile.close();
+        writeSegment = null;
+        mapped.clear();
+    }
+}
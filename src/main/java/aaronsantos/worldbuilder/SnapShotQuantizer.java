@@ -0,0 +1,83 @@
+package aaronsantos.worldbuilder;
+
+import java.util.ArrayList;
+
+/**
+ * Makes compact copies of snapshots, with every layer quantized to 8 or 16
+ * bits per cell. The copies decode through the usual WorldSnapShot getters,
+ * so they can be drawn and written like any other snapshot.
+ *
+ * Given snapshots from World.getSnapShot or World.getView in the order they
+ * were taken, each copy shares the tiles that didn't change with the copy
+ * before it, so only the changed tiles are encoded and held again.
+ */
+public class SnapShotQuantizer
+{
+    private final Quantization world, water, snow, waterVapor, vegetation, shade;
+    // The last snapshot quantized and its copy.
+    private WorldSnapShot lastSource, lastCopy;
+
+    /**
+     * Quantize each layer the default way: a quarter of a meter of
+     * elevation, half precision water, snow and vapor, and 8 bits of
+     * vegetation and shade.
+     */
+    public SnapShotQuantizer()
+    {
+        this(Quantization.ELEVATION, Quantization.WATER, Quantization.SNOW, Quantization.WATER_VAPOR,
+            Quantization.VEGETATION, Quantization.SHADE);
+    }
+
+    public SnapShotQuantizer
+    (
+        final Quantization world,
+        final Quantization water,
+        final Quantization snow,
+        final Quantization waterVapor,
+        final Quantization vegetation,
+        final Quantization shade
+    )
+    {
+        this.world = world;
+        this.water = water;
+        this.snow = snow;
+        this.waterVapor = waterVapor;
+        this.vegetation = vegetation;
+        this.shade = shade;
+    }
+
+    /**
+     * @return A quantized copy of the snapshot.
+     */
+    public WorldSnapShot quantize(final WorldSnapShot snapShot)
+    {
+        if (snapShot.world instanceof QuantizedLayer)
+        {
+            throw new IllegalArgumentException("The snapshot is already quantized");
+        }
+        // A snapshot refilled by World.copyTo changes its tiles in place, so
+        // its tiles can't be told apart from the last time it was quantized.
+        final boolean sharing = lastSource != null && snapShot != lastSource;
+        final TiledLayer[] sources = snapShot.layers();
+        final TiledLayer[] previousSources = sharing ? lastSource.layers() : null;
+        final TiledLayer[] previous = sharing ? lastCopy.layers() : null;
+        final Quantization[] quantizations = { world, water, snow, waterVapor, vegetation, shade };
+        final QuantizedLayer[] layers = new QuantizedLayer[sources.length];
+        int encodedTiles = 0;
+        for (int l = 0; l < layers.length; l++)
+        {
+            layers[l] = new QuantizedLayer(sources[l], quantizations[l], sharing ? previousSources[l] : null,
+                sharing ? (QuantizedLayer) previous[l] : null);
+            encodedTiles += layers[l].getEncodedTiles();
+        }
+        final WorldSnapShot copy = new WorldSnapShot(snapShot.width, snapShot.height, layers[0], layers[1], layers[2],
+            layers[3], layers[4], layers[5], new ArrayList<Citizen>(snapShot.citizens),
+            new ArrayList<City>(snapShot.cities));
+        copy.step = snapShot.step;
+        copy.epoch = snapShot.epoch;
+        copy.copiedTiles = encodedTiles;
+        lastSource = snapShot;
+        lastCopy = copy;
+        return copy;
+    }
+}
@@ -0,0 +1,63 @@
+package aaronsantos.worldbuilder;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands snapshots of a World from the thread stepping it to one thread
+ * reading them, such as the renderer, through three snapshots that are
+ * allocated once and reused.
+ *
+ * The producer fills its back snapshot and swaps it for the published one;
+ * the consumer swaps its front snapshot for the published one when that's
+ * newer. Each snapshot is only ever the back, the published or the front
+ * one, so neither side waits for the other or sees a snapshot being
+ * written. The producer only copies the world when the consumer has asked
+ * for a snapshot since the last one, so the copying keeps pace with the
+ * reader rather than the simulation.
+ */
+public class SnapShotRing
+{
+    private final AtomicReference<WorldSnapShot> published;
+    private final AtomicBoolean requested = new AtomicBoolean(true);
+    // Owned by the producer and the consumer.
+    private WorldSnapShot back, front;
+
+    public SnapShotRing(final int width, final int height)
+    {
+        back = new WorldSnapShot(width, height);
+        front = new WorldSnapShot(width, height);
+        published = new AtomicReference<WorldSnapShot>(new WorldSnapShot(width, height));
+    }
+
+    /**
+     * Called by the producer: if the consumer has asked for a snapshot,
+     * copy the world into the back snapshot and publish it.
+     * @return Whether a snapshot was published.
+     */
+    public boolean publish(final World world)
+    {
+        if (!requested.getAndSet(false))
+        {
+            return false;
+        }
+        world.copyTo(back);
+        back = published.getAndSet(back);
+        return true;
+    }
+
+    /**
+     * Called by the consumer: ask for the next snapshot and take the newest
+     * one published. The snapshot stays valid until the next call.
+     * @return The newest snapshot, or null if none has been published yet.
+     */
+    public WorldSnapShot acquire()
+    {
+        requested.set(true);
+        if (published.get().step > front.step)
+        {
+            front = published.getAndSet(front);
+        }
+        return front.step >= 0 ? front : null;
+    }
+}
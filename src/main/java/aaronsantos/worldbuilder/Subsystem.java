@@ -0,0 +1,17 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * A part of the simulation that a Scheduler advances at its own rate.
+ */
+public interface Subsystem
+{
+    /**
+     * @return The name used to configure the subsystem's period and substeps.
+     */
+    String getName();
+
+    /**
+     * Advance the subsystem by dt.
+     */
+    void step(float dt);
+}
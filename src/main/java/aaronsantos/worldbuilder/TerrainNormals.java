@@ -0,0 +1,141 @@
+package aaronsantos.worldbuilder;
+
+import java.util.Arrays;
+
+/**
+ * Per-cell terrain incidence, kept up to date as erosion reshapes the land.
+ * 
+ * Two values are stored for every cell:
+ * - incidence, the cosine between the terrain normal and straight up, used
+ *   by erosion to find the transport capacity of water on a slope.
+ * - shade, the cosine between the normal and the sun, used to hillshade the
+ *   maps. It is taken over two cells with heights scaled down so relief
+ *   reads well at display resolution.
+ * 
+ * Both only depend on the elevation of the cell and the cells above and to
+ * the left of it. Elevation is compared against the elevation the values
+ * were last computed from, and only cells whose stencil moved by more than
+ * epsilon are recomputed.
+ * 
+ * The epoch of the WorldGrid each tile of the shade was last recomputed in
+ * is recorded the same way the grid records writes to its layers.
+ */
+public class TerrainNormals
+{
+    // Direction to the sun, normalized.
+    private static final float SUN_X = -1 / 1.5f, SUN_Y = -1 / 1.5f, SUN_Z = 0.5f / 1.5f;
+    // Vertical exaggeration divisor for shading.
+    private static final float SHADE_SCALE = 200;
+
+    final int width, height;
+    private final float epsilon;
+    // Elevation the normals were computed from.
+    private final float[] reference;
+    private final float[] incidence;
+    private final float[] shade;
+    // Cells whose reference elevation moved since the last update.
+    private final boolean[] changed;
+    private final int tilesX;
+    // Epoch each tile of the shade was last recomputed in.
+    private final int[] shadeWritten;
+    private int epoch = 0;
+
+    public TerrainNormals(int width, int height, float epsilon)
+    {
+        this.width = width;
+        this.height = height;
+        this.epsilon = epsilon;
+        reference = new float[width * height];
+        incidence = new float[width * height];
+        shade = new float[width * height];
+        changed = new boolean[width * height];
+        tilesX = (width + WorldGrid.TILE_SIZE - 1) / WorldGrid.TILE_SIZE;
+        shadeWritten = new int[tilesX * ((height + WorldGrid.TILE_SIZE - 1) / WorldGrid.TILE_SIZE)];
+        // Nothing has been computed yet, so every cell is out of date.
+        Arrays.fill(reference, Float.NaN);
+    }
+
+    public float[] getIncidence()
+    {
+        return incidence;
+    }
+
+    public float[] getShade()
+    {
+        return shade;
+    }
+
+    /**
+     * @return The epoch each tile of the shade was last recomputed in, laid
+     *         out as WorldGrid's tiles.
+     */
+    public int[] getShadeWritten()
+    {
+        return shadeWritten;
+    }
+
+    /**
+     * Record the cells recomputed from now on as written in this epoch.
+     */
+    public void setEpoch(int epoch)
+    {
+        this.epoch = epoch;
+    }
+
+    /**
+     * Flag the cells of rows [y0, y1) whose elevation moved by more than
+     * epsilon since the normals were computed, clearing the flags of the
+     * rest. Only touches the given rows.
+     */
+    public void mark(final float[] world, int y0, int y1)
+    {
+        for (int i = y0 * width; i < y1 * width; i++)
+        {
+            // NaN compares false, so !(<=) also catches the first pass.
+            changed[i] = !(Math.abs(world[i] - reference[i]) <= epsilon);
+            if (changed[i])
+            {
+                reference[i] = world[i];
+            }
+        }
+    }
+
+    /**
+     * Recompute the cells of rows [y0, y1) that depend on a flagged cell.
+     * Reads the flags of the two rows above, so every row must be marked
+     * before any is updated.
+     */
+    public void update(int y0, int y1)
+    {
+        for (int y = y0; y < y1; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                final int i = y * width + x;
+                if (changed[i]
+                    || (x > 0 && changed[i - 1]) || (x > 1 && changed[i - 2]) || (x == 0 && width > 1 && changed[i + 1])
+                    || (y > 0 && changed[i - width]) || (y > 1 && changed[i - 2 * width]) || (y == 0 && height > 1 && changed[i + width]))
+                {
+                    compute(x, y, i);
+                    shadeWritten[(y / WorldGrid.TILE_SIZE) * tilesX + x / WorldGrid.TILE_SIZE] = epoch;
+                }
+            }
+        }
+    }
+
+    private void compute(int x, int y, int i)
+    {
+        final float h = reference[i];
+
+        // Slope against the neighbouring cell, or the next one in at the edge.
+        final float zx = (x == 0 ? reference[Math.min(i + 1, i + width - 1)] : reference[i - 1]) - h;
+        final float zy = (y == 0 ? reference[Math.min(i + width, width * height - 1)] : reference[i - width]) - h;
+        // Up component of (-1, 0, zx) x (0, -1, zy), both normalized.
+        incidence[i] = 1 / (float) Math.sqrt((1 + zx * zx) * (1 + zy * zy));
+
+        final float a = (reference[y * width + Math.max(0, x - 2)] - h) / SHADE_SCALE;
+        final float b = (reference[Math.max(0, y - 2) * width + x] - h) / SHADE_SCALE;
+        // The normal is (a, b, 1) / (|(-1, 0, a)| |(0, -1, b)|).
+        shade[i] = (SUN_X * a + SUN_Y * b + SUN_Z) / (float) Math.sqrt((1 + a * a) * (1 + b * b));
+    }
+}
@@ -0,0 +1,191 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * Interpolated tables for the temperature and the saturation vapor mass of
+ * a World's cells, so the closed-form functions in Util don't have to be
+ * evaluated for every cell every step.
+ *
+ * Temperature is baked per latitude row and elevation bucket without the
+ * diurnal term, which is the same for every cell and is added as an offset
+ * set once per step. Saturation mass is baked by elevation (which sets the
+ * pressure) and temperature. Lookups outside the tables, or with the
+ * tables disabled, fall back to the closed-form functions.
+ */
+public class ThermoTables
+{
+    // Elevation range of both tables in meters.
+    static final float H_MIN = -500, H_MAX = 16000;
+    static final int H_BUCKETS = 64;
+    static final float H_STEP = (H_MAX - H_MIN) / H_BUCKETS;
+
+    // Temperature range of the saturation table in Kelvin.
+    static final float T_MIN = 150, T_MAX = 350;
+    static final int T_BUCKETS = 800;
+    static final float T_STEP = (T_MAX - T_MIN) / T_BUCKETS;
+
+    private final int height;
+    private final float volume;
+    private final boolean enabled;
+
+    // Temperature without the diurnal term, (H_BUCKETS+1) per row.
+    private final float[] temperature;
+    // Saturation mass in grams, (H_BUCKETS+1) per temperature.
+    private final float[] saturationMass;
+
+    private float minutesElapsedInDay;
+    private float diurnalOffset;
+
+    private float maxTemperatureError;
+    private float maxSaturationMassError;
+
+    /**
+     * @param height Number of latitude rows.
+     * @param volume Volume of air above a cell in m^3.
+     * @param enabled false always uses the closed-form functions.
+     */
+    public ThermoTables(int height, float volume, boolean enabled)
+    {
+        this.height = height;
+        this.volume = volume;
+        this.enabled = enabled;
+        temperature = new float[enabled ? height * (H_BUCKETS + 1) : 0];
+        saturationMass = new float[enabled ? (T_BUCKETS + 1) * (H_BUCKETS + 1) : 0];
+        if (enabled)
+        {
+            bake();
+            measureErrors();
+        }
+    }
+
+    private void bake()
+    {
+        for (int y = 0; y < height; y++)
+        {
+            for (int b = 0; b <= H_BUCKETS; b++)
+            {
+                temperature[y * (H_BUCKETS + 1) + b] = baseTemperature(H_MIN + b * H_STEP, y);
+            }
+        }
+        for (int t = 0; t <= T_BUCKETS; t++)
+        {
+            for (int b = 0; b <= H_BUCKETS; b++)
+            {
+                saturationMass[t * (H_BUCKETS + 1) + b] = exactSaturationMass(H_MIN + b * H_STEP, T_MIN + t * T_STEP);
+            }
+        }
+    }
+
+    // Interpolation error peaks between table entries, so compare there.
+    private void measureErrors()
+    {
+        setTimeOfDay(0);
+        for (int y = 0; y < height; y++)
+        {
+            for (int b = 0; b < H_BUCKETS; b++)
+            {
+                final float h = H_MIN + (b + 0.5f) * H_STEP;
+                final float error = Math.abs(temperature(h, y) - exactTemperature(h, y));
+                maxTemperatureError = Math.max(maxTemperatureError, error);
+            }
+        }
+        for (int t = 0; t < T_BUCKETS; t++)
+        {
+            for (int b = 0; b < H_BUCKETS; b++)
+            {
+                final float h = H_MIN + (b + 0.5f) * H_STEP;
+                final float T = T_MIN + (t + 0.5f) * T_STEP;
+                final float exact = exactSaturationMass(h, T);
+                final float error = Math.abs(saturationMass(h, T) - exact) / exact;
+                maxSaturationMassError = Math.max(maxSaturationMassError, error);
+            }
+        }
+    }
+
+    /**
+     * Set the time of day for the lookups of the coming step. Not thread
+     * safe; call it before the step's phases run.
+     */
+    public void setTimeOfDay(float minutesElapsedInDay)
+    {
+        this.minutesElapsedInDay = minutesElapsedInDay;
+        // Same day/night swing as Util.temperatureByHeightAndLattitudeAndTime.
+        diurnalOffset = (float)(-7 * Math.sin(minutesElapsedInDay * 2 * Math.PI / 720));
+    }
+
+    /**
+     * @return Temperature in Kelvin at height h in meters in latitude row y.
+     */
+    public float temperature(float h, int y)
+    {
+        final float fh = (h - H_MIN) / H_STEP;
+        if (!enabled || !(fh >= 0 && fh < H_BUCKETS))
+        {
+            return exactTemperature(h, y);
+        }
+        final int b = (int)fh;
+        final int k = y * (H_BUCKETS + 1) + b;
+        final float T = temperature[k] + (fh - b) * (temperature[k + 1] - temperature[k]);
+        return Math.max(0.01f, T + diurnalOffset);
+    }
+
+    /**
+     * @return Mass of water vapor in grams that saturates the air above a
+     *         cell at height h in meters and temperature T in Kelvin.
+     */
+    public float saturationMass(float h, float T)
+    {
+        final float fh = (h - H_MIN) / H_STEP;
+        final float fT = (T - T_MIN) / T_STEP;
+        if (!enabled || !(fh >= 0 && fh < H_BUCKETS && fT >= 0 && fT < T_BUCKETS))
+        {
+            return exactSaturationMass(h, T);
+        }
+        final int b = (int)fh;
+        final int t = (int)fT;
+        final float sh = fh - b;
+        final float sT = fT - t;
+        final int k = t * (H_BUCKETS + 1) + b;
+        final float m0 = saturationMass[k] + sh * (saturationMass[k + 1] - saturationMass[k]);
+        final float m1 = saturationMass[k + H_BUCKETS + 1] + sh * (saturationMass[k + H_BUCKETS + 2] - saturationMass[k + H_BUCKETS + 1]);
+        return m0 + sT * (m1 - m0);
+    }
+
+    /**
+     * @return Largest difference in Kelvin between a table and a closed-form temperature.
+     */
+    public float getMaxTemperatureError()
+    {
+        return maxTemperatureError;
+    }
+
+    /**
+     * @return Largest difference between a table and a closed-form
+     *         saturation mass, relative to the closed-form mass.
+     */
+    public float getMaxSaturationMassError()
+    {
+        return maxSaturationMassError;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    private float exactTemperature(float h, int y)
+    {
+        return Util.temperatureByHeightAndLattitudeAndTime(h, (float)y / height, minutesElapsedInDay);
+    }
+
+    private float exactSaturationMass(float h, float T)
+    {
+        return Util.waterVaporPartialPressureToMass(volume,
+            Util.waterVaporSaturationThreshold(Util.pressurePaByHeightM(h), T), T);
+    }
+
+    // Temperature with the diurnal term left out, which it is at midnight.
+    private float baseTemperature(float h, int y)
+    {
+        return Util.temperatureByHeightAndLattitudeAndTime(h, (float)y / height, 0);
+    }
+}
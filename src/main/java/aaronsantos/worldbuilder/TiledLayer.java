@@ -0,0 +1,166 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * One layer of a WorldSnapShot, stored as square tiles of WorldGrid's tile
+ * size so snapshots can share the tiles that didn't change between them.
+ *
+ * Tiles on the right and bottom edges are padded out to full size. A tile
+ * is only written in place by the layer that allocated it, and only until
+ * it is shared; after that it is read-only, and a layer that needs to
+ * change it copies it first.
+ *
+ * Subclasses may keep the cells some other way, overriding the reads.
+ */
+public class TiledLayer
+{
+    static final int TILE_SIZE = WorldGrid.TILE_SIZE;
+
+    final int width, height;
+    final int tilesX, tilesY;
+    final float[][] tiles;
+    // Tiles this layer may write in place.
+    private final boolean[] owned;
+
+    /**
+     * A layer of zeroes.
+     */
+    public TiledLayer(final int width, final int height)
+    {
+        this(width, height, true);
+    }
+
+    /**
+     * @param allocate false leaves every tile to be copied or shared in.
+     */
+    TiledLayer(final int width, final int height, boolean allocate)
+    {
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new float[tilesX * tilesY][];
+        owned = new boolean[tiles.length];
+        for (int t = 0; allocate && t < tiles.length; t++)
+        {
+            tiles[t] = new float[TILE_SIZE * TILE_SIZE];
+            owned[t] = true;
+        }
+    }
+
+    /**
+     * A layer holding a copy of row-major data.
+     */
+    public TiledLayer(final int width, final int height, final float[] data)
+    {
+        this(width, height);
+        for (int t = 0; t < tiles.length; t++)
+        {
+            copyTile(t, data);
+        }
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getTileCount()
+    {
+        return tiles.length;
+    }
+
+    public int getBytesPerCell()
+    {
+        return 4;
+    }
+
+    public float get(int x, int y)
+    {
+        return tiles[(y / TILE_SIZE) * tilesX + x / TILE_SIZE][(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE];
+    }
+
+    /**
+     * @return Whether tile t is the same array in both layers, which means
+     *         it didn't change between them.
+     */
+    public boolean sharesTile(final TiledLayer other, int t)
+    {
+        return tiles[t] == other.tiles[t];
+    }
+
+    /**
+     * @return A row-major copy of the layer.
+     */
+    public float[] toArray()
+    {
+        return read(0, 0, width, height, new float[width * height]);
+    }
+
+    /**
+     * Copy columns [x0, x1) of rows [y0, y1) into out, row-major.
+     * @return out.
+     */
+    public float[] read(int x0, int y0, int x1, int y1, final float[] out)
+    {
+        checkRegion(x0, y0, x1, y1);
+        final int columns = x1 - x0;
+        for (int y = y0; y < y1; y++)
+        {
+            final int row = (y / TILE_SIZE) * tilesX;
+            final int offset = (y % TILE_SIZE) * TILE_SIZE;
+            // Each row is split where it crosses into the next tile.
+            for (int x = x0; x < x1; x = (x / TILE_SIZE + 1) * TILE_SIZE)
+            {
+                final int end = Math.min(x1, (x / TILE_SIZE + 1) * TILE_SIZE);
+                System.arraycopy(tiles[row + x / TILE_SIZE], offset + x % TILE_SIZE, out,
+                    (y - y0) * columns + x - x0, end - x);
+            }
+        }
+        return out;
+    }
+
+    final void checkRegion(int x0, int y0, int x1, int y1)
+    {
+        if (x0 < 0 || y0 < 0 || x1 > width || y1 > height || x0 > x1 || y0 > y1)
+        {
+            throw new IllegalArgumentException(String.format("Region [%d, %d) x [%d, %d) is outside %dx%d",
+                x0, x1, y0, y1, width, height));
+        }
+    }
+
+    /**
+     * Copy tile t out of row-major data, in place if this layer owns the
+     * tile and into a new one if it's shared.
+     */
+    void copyTile(int t, final float[] data)
+    {
+        if (!owned[t])
+        {
+            tiles[t] = new float[TILE_SIZE * TILE_SIZE];
+            owned[t] = true;
+        }
+        final float[] tile = tiles[t];
+        final int ty = t / tilesX, tx = t % tilesX;
+        final int rows = Math.min(TILE_SIZE, height - ty * TILE_SIZE);
+        final int columns = Math.min(TILE_SIZE, width - tx * TILE_SIZE);
+        for (int r = 0; r < rows; r++)
+        {
+            System.arraycopy(data, (ty * TILE_SIZE + r) * width + tx * TILE_SIZE, tile, r * TILE_SIZE, columns);
+        }
+    }
+
+    /**
+     * Use the other layer's tile t, which from now on neither layer writes.
+     */
+    void shareTile(int t, final TiledLayer other)
+    {
+        tiles[t] = other.tiles[t];
+        owned[t] = false;
+        other.owned[t] = false;
+    }
+}
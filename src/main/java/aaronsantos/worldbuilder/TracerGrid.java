@@ -0,0 +1,121 @@
+package aaronsantos.worldbuilder;
+
+import java.util.Arrays;
+
+/**
+ * Moves a per-cell amount, such as grams of water vapor, between a world's
+ * cells and the coarser grid of a FluidSolver that carries it as a tracer.
+ *
+ * Each world cell belongs to the solver cell it falls in, the same one
+ * NavierStokesSolver.sample reads. Depositing sums a solver cell's world
+ * cells; gathering scales them so they add up to what the solver moved
+ * into that cell, which keeps their detail and conserves mass exactly.
+ */
+class TracerGrid
+{
+    private final int nx, ny, width, height;
+    // Solver column of each world column and solver row of each world row.
+    private final int[] column, row;
+    // World cells in each solver cell.
+    private final int[] count;
+    // Per solver cell, the factor on a world cell's amount and the amount
+    // added to each of its world cells by the coming gather.
+    private final double[] scale, spread;
+
+    TracerGrid(int nx, int ny, int width, int height)
+    {
+        this.nx = nx;
+        this.ny = ny;
+        this.width = width;
+        this.height = height;
+        final float cellWidth = (float)width / nx;
+        final float cellHeight = (float)height / ny;
+        column = new int[width];
+        for (int x = 0; x < width; x++)
+        {
+            column[x] = Math.min(nx - 1, (int)(x / cellWidth));
+        }
+        row = new int[height];
+        for (int y = 0; y < height; y++)
+        {
+            row[y] = Math.min(ny - 1, (int)(y / cellHeight));
+        }
+        count = new int[nx * ny];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                count[row[y] * nx + column[x]]++;
+            }
+        }
+        scale = new double[nx * ny];
+        spread = new double[nx * ny];
+    }
+
+    /**
+     * Sum the world's field into amounts, nx*ny solver cells in row-major order.
+     */
+    void deposit(final float[] field, final double[] amounts)
+    {
+        Arrays.fill(amounts, 0);
+        for (int y = 0; y < height; y++)
+        {
+            final int offset = row[y] * nx;
+            for (int x = 0; x < width; x++)
+            {
+                amounts[offset + column[x]] += field[y * width + x];
+            }
+        }
+    }
+
+    /**
+     * Set up the next gathers to take the amounts deposited in each solver
+     * cell to the amounts after.
+     */
+    void prepare(final double[] deposited, final double[] after)
+    {
+        // A world smaller than the solver grid leaves solver cells without
+        // world cells; hand what was moved into them to the others.
+        double total = 0, stranded = 0;
+        for (int g = 0; g < nx * ny; g++)
+        {
+            total += after[g];
+            if (count[g] == 0)
+            {
+                stranded += after[g];
+            }
+        }
+        final double correction = total > stranded ? total / (total - stranded) : 1;
+        for (int g = 0; g < nx * ny; g++)
+        {
+            if (deposited[g] > 0)
+            {
+                scale[g] = correction * after[g] / deposited[g];
+                spread[g] = 0;
+            }
+            else
+            {
+                // Nothing to scale, so share the new amount out evenly.
+                scale[g] = 0;
+                spread[g] = count[g] > 0 ? correction * after[g] / count[g] : 0;
+            }
+        }
+    }
+
+    /**
+     * Rescale rows [y0, y1) of the world's field as set up by prepare.
+     */
+    void gather(final float[] field, int y0, int y1)
+    {
+        for (int y = y0; y < y1; y++)
+        {
+            final int offset = row[y] * nx;
+            for (int x = 0; x < width; x++)
+            {
+                final int g = offset + column[x];
+                final int i = y * width + x;
+                field[i] = (float)(field[i] * scale[g] + spread[g]);
+            }
+        }
+    }
+}
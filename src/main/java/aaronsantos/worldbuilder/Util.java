@@ -16,25 +16,21 @@ public class Util
       return Double.longBitsToDouble(tmp2);
   }
   
-  public static double random(float low, float high)
+  public static float constrain(float value, float low, float high)
   {
-      return (high - low) * Math.random() + low;
+    return value < low ? low : (value > high ? high : value);
   }
   
-  // http://en.wikipedia.org/wiki/Poisson_distribution#Generating_Poisson-distributed_random_variables
-  public static double poissonRandom(float expectedValue)
+  public static int constrain(int value, int low, int high)
   {
-    float l = (float)fastpow(Math.E, -expectedValue);
-    int k = 0;
-    float p = 1;
-    do
-    {
-      k++;
-      p*=Math.random();
-    }
-    while (p > l);
-    return k - 1;
+    return value < low ? low : (value > high ? high : value);
   }
+  
+  public static float lerp(float start, float stop, float amount)
+  {
+    return start + (stop - start) * amount;
+  }
+  
   /**
    * Calculate pressure in Pa given height in m.
    * @see http://en.wikipedia.org/wiki/Atmospheric_pressure
@@ -0,0 +1,83 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * The wind of a FluidSolver upsampled to one velocity per world cell, so the
+ * transport kernel and renderers index flat arrays instead of interpolating
+ * the solver's grid cell by cell.
+ *
+ * The field goes stale whenever the solver ticks or is forced and is
+ * resampled, in parallel bands of rows, the next time it is updated.
+ */
+public class WindField
+{
+    private final int width, height;
+    private final FluidSolver solver;
+    private final RowBands bands;
+    // Velocity in world cells per step of World.baseDt, width*height in row-major order.
+    private final float[] dx, dy;
+    private boolean stale = true;
+
+    private final RowBands.Kernel sampleKernel = new RowBands.Kernel()
+    {
+        public void run(int y0, int y1)
+        {
+            solver.sample(dx, dy, width, height, y0, y1);
+        }
+    };
+
+    WindField(int width, int height, FluidSolver solver, RowBands bands)
+    {
+        this.width = width;
+        this.height = height;
+        this.solver = solver;
+        this.bands = bands;
+        dx = new float[width * height];
+        dy = new float[width * height];
+    }
+
+    /**
+     * Mark the field out of date with the solver.
+     */
+    void invalidate()
+    {
+        stale = true;
+    }
+
+    /**
+     * Resample the solver if it changed since the last update.
+     */
+    void update()
+    {
+        if (stale)
+        {
+            bands.run(0, height, sampleKernel);
+            stale = false;
+        }
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return Velocity across of every cell, indexed y*width + x. Read only.
+     */
+    public float[] getDx()
+    {
+        return dx;
+    }
+
+    /**
+     * @return Velocity down of every cell, indexed y*width + x. Read only.
+     */
+    public float[] getDy()
+    {
+        return dy;
+    }
+}
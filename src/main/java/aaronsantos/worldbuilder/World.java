@@ -1,11 +1,13 @@
 package aaronsantos.worldbuilder;
 
+import aaronsantos.worldbuilder.WorldGrid.Layer;
+import java.awt.Color;
+import java.awt.Point;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
-import processing.core.PApplet;
-import processing.core.PVector;
 
 public class World
 {
@@ -24,36 +26,38 @@ public class World
   // Atmosphere extends 10000m above elevation
   static final float atmosphericHeight = 10000;
   
+  // World time that passes every step of baseDt
+  public static final int minutesPerStep = 10;
+  // Time step of every step, or the shortest one when adaptive
+  static final float baseDt = 0.005f;
+  
   final int width, height;
 
-  // Height of world
-  private float[][] world;
-  // Height of water 
-  private float[][] water;
-  private float[][] suspendedSediment;
-  private float[][] outflowFluxL;
-  private float[][] outflowFluxR;
-  private float[][] outflowFluxT;
-  private float[][] outflowFluxB;
-  // Velocity of water
-  private float[][] waterVelocityX;
-  private float[][] waterVelocityY;
-  
-  float[][] tmpOutflowFluxL = null;
-  float[][] tmpOutflowFluxR = null;
-  float[][] tmpOutflowFluxT = null;
-  float[][] tmpOutflowFluxB = null;
-  float[][] tmpSediment = null;
-  float[][] tmpWaterVapor = null;
-  
-  // Amount of snow on ground
-  private float[][] snow;
-  
-  // Amount of water vapor in the air in grams.
-  private float[][] waterVapor;
-  
-  // Amount of vegetation
-  private float[][] vegetation;
+  // Per-cell layers of the world
+  private final WorldGrid grid;
+  
+  // Shallow-water flow between cells
+  private final ShallowWaterModel waterModel;
+  
+  // Slope of the terrain, shared by erosion and the renderers
+  private final TerrainNormals normals;
+  
+  // Randomness of the world, and the streams of the subsystems drawing from it
+  private final WorldRandom random;
+  private final RandomStream gustRandom;
+  private final RandomStream agentRandom;
+  // Key of the counter-based draws that move sea ice
+  private final long seaIceKey;
+  
+  // Temperature and saturation lookups
+  private final ThermoTables thermo;
+  
+  // Tiles where water is moving, the only ones the hydrology visits
+  private final ActiveTiles activeTiles;
+  private final float activityEpsilon;
+  // Water at the start of the hydrology step, to wake the tiles whose water
+  // changed by the end of it.
+  private final float[] waterBefore;
   
   // Cultures of the world
   private List<Culture> cultures = new ArrayList<Culture>();
@@ -65,72 +69,382 @@ public class World
   private List<City> cities = new ArrayList<City>();
   
   // Fluid solver for water vapor transport
-  private NavierStokesSolver fluidSolver;
+  private FluidSolver fluidSolver;
+  // The solver's wind at world resolution, read by transport.
+  private WindField windField;
   
-  private PApplet applet;
+  // Water vapor carried by the wind solver instead of transport, and
+  // whether it currently lives on the solver's grid.
+  private final boolean solverVapor;
+  private TracerGrid tracerGrid;
+  private int vaporTracer;
+  private double[] vaporDeposited, vaporMoved;
+  private boolean vaporOnSolver = false;
   
   private float visc = 0.00006f;
-  private float diff = 0.35f;
+  private float vaporDiffusion = 0.00006f;
   private float velocityScale = 1.0f;
   
   private long stepCount = 0;
   
+  // The last snapshot getSnapShot handed out, which the next one shares
+  // unchanged tiles with.
+  private WorldSnapShot lastSnapShot;
+  // The view of the last step, published at the end of every step once
+  // one has been asked for.
+  private volatile WorldView view;
+  private boolean publishViews = false;
+  
+  // Runs the phases of a step over bands of rows.
+  private final RowBands bands;
+  // Runs the wind solver's rows, null when it relaxes serially.
+  private final RowBands windBands;
+  
+  // Runs the subsystems of a step at their own rates.
+  private final Scheduler scheduler = new Scheduler();
+  
+  // Time steps and time of day of the step being run, read by the phase kernels.
+  private float dt;
+  private float vegetationDt;
+  private float minutesElapsedSinceMidnight;
+  
+  // Size steps from the fastest water and wind instead of taking baseDt.
+  private final boolean adaptiveDt;
+  private final float cfl, windCfl, maxDt;
+  // Whether the water model is the explicit pipe model, whose steps gravity
+  // waves limit as well as the flow.
+  private final boolean explicitWater;
+  // Fastest signal of each band in the last water phase, in cells per unit
+  // of dt: the flow up to the terminal velocity erosion uses, gravity waves
+  // riding on it, and the rate cells drain at. Only kept when adaptiveDt.
+  private final float[] waterSpeed;
+  // Time step of the last step and the world time it has advanced by.
+  private float stepDt = baseDt;
+  private long elapsedMillis = 0;
+  
+  private boolean citizensReleased = false;
+  // Citizens are released once this much world time has passed.
+  private static final long releaseMillis = 30L * minutesPerStep * 60000;
+  // Gusts and agent ticks come once per period of fixed steps' worth of
+  // world time, however long the steps are, so adaptive runs see as many
+  // per day. World time of the last of each.
+  private final long gustInterval, agentInterval;
+  private long gustMillis = 0, agentMillis = 0;
+  
+  private boolean waterCycle = true;
+  private boolean wind = true;
+  
+  private final RowBands.Kernel vegetationKernel = new RowBands.Kernel()
+  {
+    public void run(int y0, int y1)
+    {
+      vegetation(y0, y1);
+    }
+  };
+  
+  private final RowBands.Kernel precipitationKernel = new RowBands.Kernel()
+  {
+    public void run(int y0, int y1)
+    {
+      precipitation(y0, y1);
+    }
+  };
+  
+  private final RowBands.Kernel outflowFluxKernel = new RowBands.Kernel()
+  {
+    public void run(int y0, int y1)
+    {
+      outflowFlux(y0, y1);
+    }
+  };
+  
+  private final RowBands.Kernel waterKernel = new RowBands.Kernel()
+  {
+    public void run(int y0, int y1)
+    {
+      water(y0, y1);
+    }
+  };
+  
+  private final RowBands.Kernel normalsKernel = new RowBands.Kernel()
+  {
+    public void run(int y0, int y1)
+    {
+      normals.update(y0, y1);
+    }
+  };
+  
+  private final RowBands.Kernel transportKernel = new RowBands.Kernel()
+  {
+    public void run(int y0, int y1)
+    {
+      transport(y0, y1);
+    }
+  };
+  
+  private final RowBands.Kernel gatherVaporKernel = new RowBands.Kernel()
+  {
+    public void run(int y0, int y1)
+    {
+      tracerGrid.gather(grid.data(Layer.WaterVapor), y0, y1);
+      grid.touchRows(Layer.WaterVapor, y0, y1);
+    }
+  };
+  
+  private final RowBands.Kernel conservationKernel = new RowBands.Kernel()
+  {
+    public void run(int y0, int y1)
+    {
+      conserveTransported(y0, y1);
+    }
+  };
+  
+  // Atmosphere
+  private final AdaptiveSubsystem windSubsystem = new AdaptiveSubsystem()
+  {
+    public String getName()
+    {
+      return "wind";
+    }
+    
+    public float getStableDt()
+    {
+      // The semi-Lagrangian advection is stable at any dt, but loses detail
+      // as air crosses more than a few solver cells in one tick.
+      final double speed = fluidSolver.getMaxSpeed() * fluidSolver.getGridWidth();
+      return windCfl > 0 && speed > 0 ? (float)(windCfl / speed) : Float.POSITIVE_INFINITY;
+    }
+    
+    public void step(float dt)
+    {
+      if (solverVapor && wind && !vaporOnSolver)
+      {
+        tracerGrid.deposit(grid.data(Layer.WaterVapor), vaporDeposited);
+        fluidSolver.setTracer(vaporTracer, vaporDeposited);
+        vaporOnSolver = true;
+      }
+      fluidSolver.tick(dt, visc);
+      windField.invalidate();
+    }
+  };
+  
+  private final Subsystem gustSubsystem = new Subsystem()
+  {
+    public String getName()
+    {
+      return "gust";
+    }
+    
+    public void step(float dt)
+    {
+      for (; elapsedMillis - gustMillis >= gustInterval; gustMillis += gustInterval)
+      {
+        gust();
+      }
+    }
+  };
+  
+  private final Subsystem vegetationSubsystem = new Subsystem()
+  {
+    public String getName()
+    {
+      return "vegetation";
+    }
+    
+    public void step(float dt)
+    {
+      vegetationDt = dt;
+      bands.run(0, height, vegetationKernel);
+    }
+  };
+  
+  // Water, erosion, and vapor and sediment transport
+  private final AdaptiveSubsystem hydrologySubsystem = new AdaptiveSubsystem()
+  {
+    public String getName()
+    {
+      return "hydrology";
+    }
+    
+    public float getStableDt()
+    {
+      // Water, sediment and gravity waves shouldn't cross more than a
+      // fraction of a cell, nor a cell lose more than that fraction of its
+      // water.
+      float speed = 0;
+      for (float bandSpeed : waterSpeed)
+      {
+        speed = Math.max(speed, bandSpeed);
+      }
+      return speed > 0 ? cfl * l / speed : Float.POSITIVE_INFINITY;
+    }
+    
+    public void step(float dt)
+    {
+      hydrology(dt);
+    }
+  };
+  
+  // Water, terrain and vegetation as of the start of the step, which the
+  // agents read so they can run alongside the hydrology.
+  private final float[] agentWater, agentElevation, agentVegetation;
+  
+  private final Subsystem agentInputsSubsystem = new Subsystem()
+  {
+    public String getName()
+    {
+      return "agentInputs";
+    }
+    
+    public void step(float dt)
+    {
+      System.arraycopy(grid.data(Layer.Water), 0, agentWater, 0, agentWater.length);
+      System.arraycopy(grid.data(Layer.Elevation), 0, agentElevation, 0, agentElevation.length);
+      System.arraycopy(grid.data(Layer.Vegetation), 0, agentVegetation, 0, agentVegetation.length);
+    }
+  };
+  
+  // Citizens and cities
+  private final Subsystem agentsSubsystem = new Subsystem()
+  {
+    public String getName()
+    {
+      return "agents";
+    }
+    
+    public void step(float dt)
+    {
+      while (elapsedMillis - agentMillis >= agentInterval)
+      {
+        agentMillis += agentInterval;
+        agents();
+      }
+    }
+  };
+  
+  // Per-band totals of water vapor and suspended sediment before and after
+  // transport, summed in band order so the totals don't depend on threading.
+  private final double[] vaporBefore, vaporAfter, sedimentBefore, sedimentAfter;
+  // Factors that restore the transported totals.
+  private float vaporCorrection, sedimentCorrection;
+  
   // Measure the elapsed time
   Date date = null;
   
   // For adding more time to the elapsed time.
   Calendar calendar = Calendar.getInstance() ;
   
-  public World(final PApplet applet, final int width, final int height)
+  public World(final int width, final int height)
   {
-    world = new float[width][height];
-    water = new float[width][height];
-    suspendedSediment = new float[width][height];
-    outflowFluxL = new float[width][height];
-    outflowFluxR = new float[width][height];
-    outflowFluxT = new float[width][height];
-    outflowFluxB = new float[width][height];
-    
+    this(width, height, new WorldSettings());
+  }
   
-    tmpOutflowFluxL = new float[width][height];
-    tmpOutflowFluxR = new float[width][height];
-    tmpOutflowFluxT = new float[width][height];
-    tmpOutflowFluxB = new float[width][height];
-    tmpSediment = new float[width][height];
-    tmpWaterVapor = new float[width][height];
-    
-    waterVelocityX = new float[width][height];
-    waterVelocityY = new float[width][height];
-    snow = new float[width][height];
-    waterVapor = new float[width][height];
-    vegetation = new float[width][height];
+  public World(final int width, final int height, final WorldSettings settings)
+  {
+    // Checked before any threads are started.
+    if (settings.isWindFloat() && settings.getWindSolver() != NavierStokesSolver.LinearSolver.GAUSS_SEIDEL)
+    {
+      throw new IllegalArgumentException(String.format("The %s wind solver has no single precision version",
+        settings.getWindSolver()));
+    }
+    grid = new WorldGrid(width, height);
+    normals = new TerrainNormals(width, height, settings.getNormalEpsilon());
+    bands = new RowBands(settings.getThreads());
+    activeTiles = new ActiveTiles(width, height, settings.isActiveTiles());
+    activityEpsilon = settings.getActivityEpsilon();
+    waterBefore = new float[width * height];
+    thermo = new ThermoTables(height, atmosphericHeight*V, settings.isThermoTables());
+    if (thermo.isEnabled())
+    {
+      System.out.println(String.format("thermo tables: max temperature error %g K, max saturation error %g",
+        thermo.getMaxTemperatureError(), thermo.getMaxSaturationMassError()));
+    }
+    final int bandCount = RowBands.bandCount(0, height);
+    vaporBefore = new double[bandCount];
+    vaporAfter = new double[bandCount];
+    sedimentBefore = new double[bandCount];
+    sedimentAfter = new double[bandCount];
+    waterSpeed = new float[bandCount];
+    adaptiveDt = settings.isAdaptiveDt();
+    cfl = settings.getCfl();
+    windCfl = settings.getWindCfl();
+    maxDt = settings.getMaxDt();
+    gustInterval = settings.getPeriod(gustSubsystem.getName(), 1) * minutesPerStep * 60000L;
+    agentInterval = settings.getPeriod(agentsSubsystem.getName(), 1) * minutesPerStep * 60000L;
+    explicitWater = settings.getWaterModel() == WorldSettings.WaterModel.PIPE;
     
-    this.applet = applet;
     this.width = width;
     this.height = height;
-    fluidSolver = new NavierStokesSolver(width, height);
+    waterModel = createWaterModel(settings);
+    
+    random = new WorldRandom(settings.getSeed());
+    gustRandom = random.stream("gust");
+    agentRandom = random.stream("agents");
+    seaIceKey = random.key("seaIce");
+    System.out.println(String.format("seed %d", random.getSeed()));
+    windBands = settings.isWindRedBlack() && settings.getWindSolver() != NavierStokesSolver.LinearSolver.FFT
+      ? (settings.getWindThreads() == settings.getThreads() ? bands : new RowBands(settings.getWindThreads()))
+      : null;
+    fluidSolver = createFluidSolver(settings);
+    windField = new WindField(width, height, fluidSolver, bands);
+    solverVapor = settings.getVaporTransport() == WorldSettings.VaporTransport.SOLVER_TRACER;
+    if (solverVapor)
+    {
+      final int gridSize = fluidSolver.getGridWidth() * fluidSolver.getGridHeight();
+      tracerGrid = new TracerGrid(fluidSolver.getGridWidth(), fluidSolver.getGridHeight(), width, height);
+      vaporTracer = fluidSolver.addTracer(vaporDiffusion);
+      vaporDeposited = new double[gridSize];
+      vaporMoved = new double[gridSize];
+    }
+    
+    agentWater = new float[width * height];
+    agentElevation = new float[width * height];
+    agentVegetation = new float[width * height];
+    
+    // A step's phases, each after the ones whose results it reads or whose
+    // inputs it writes. The wind and the vegetation are independent, and
+    // the agents only read the start of the step, so they overlap with
+    // everything but the copy of their inputs.
+    // The wind used to take two half steps every step.
+    scheduler.register(agentInputsSubsystem, settings.getPeriod(agentsSubsystem.getName(), 1), 1);
+    register(settings, windSubsystem, 1, 2);
+    register(settings, gustSubsystem, 1, 1, windSubsystem);
+    register(settings, vegetationSubsystem, 1, 1, agentInputsSubsystem);
+    register(settings, hydrologySubsystem, 1, 1, agentInputsSubsystem, windSubsystem, gustSubsystem,
+      vegetationSubsystem);
+    register(settings, agentsSubsystem, 1, 1, agentInputsSubsystem);
+    scheduler.setOverlap(settings.isOverlapPhases() && settings.getThreads() > 1);
+    if (adaptiveDt)
+    {
+      scheduler.setMaxSubsteps(settings.getMaxSubsteps());
+    }
     
     calendar.set(1970, 1, 1, 12, 1);
     
-    applet.noiseDetail(9, 0.4f);
-    for(int j = 0; j<width; j++) 
+    final float[] world = grid.data(Layer.Elevation);
+    final float[] water = grid.data(Layer.Water);
+    
+    final PerlinNoise noise = new PerlinNoise(random.stream("terrain").nextLong());
+    noise.noiseDetail(9, 0.4f);
+    for(int k = 0; k<height; k++) 
     {
-      for(int k = 0; k<height; k++)
+      for(int j = 0; j<width; j++)
       {
-        world[j][k]=(float)5000*applet.noise((float)(j*8.0/width), (float)(k*8.0/height));
+        final int i = grid.index(j, k);
+        world[i]=(float)5000*noise.noise((float)(j*8.0/width), (float)(k*8.0/height));
         
-        if(world[j][k]<2500)
+        if(world[i]<2500)
         {
-          water[j][k]=2500-world[j][k];
+          water[i]=2500-world[i];
         }
         else
         {
-          world[j][k] = (float)Math.pow(1.009, world[j][k]-2600)+2501;
-          if (world[j][k] > 10000)
+          world[i] = (float)Math.pow(1.009, world[i]-2600)+2501;
+          if (world[i] > 10000)
           {
-            world[j][k]=(float)(100*Math.log(world[j][k])+10000);
+            world[i]=(float)(100*Math.log(world[i])+10000);
           }
-          //println("land "+world[j][k]);
+          //println("land "+world[i]);
         }
       }
     }
@@ -139,303 +453,582 @@ public class World
     for (int step = 0; step<0; step++)
     {
       // smooth the terrain a little
-      for(int x = 0; x<width; x++)
+      for(int y = 0; y<height; y++)
       {
-        for(int y = 0; y<height; y++)
+        for(int x = 0; x<width; x++)
         {
           // Interior
           if (x>0 && y>0 && x<width-1 && y<height-1)
           {
-            world[x][y]=(world[x][y]+Ks*world[x-1][y]+Ks*world[x+1][y]+Ks*world[x][y-1]+Ks*world[x][y+1])/(1+4*Ks);
+            final int i = grid.index(x, y);
+            world[i]=(world[i]+Ks*world[i-1]+Ks*world[i+1]+Ks*world[i-width]+Ks*world[i+width])/(1+4*Ks);
           }
         }
       }
     }
+    normals.mark(world, 0, height);
+    normals.update(0, height);
+
+    // The sea is still, but the first step is already limited by the
+    // gravity waves that cross it.
+    if (adaptiveDt && explicitWater)
+    {
+      for (int y = 0; y<height; y++)
+      {
+        final int band = RowBands.bandIndex(0, y);
+        for (int x = 0; x<width; x++)
+        {
+          waterSpeed[band] = Math.max(waterSpeed[band], (float)Math.sqrt(g*water[grid.index(x, y)]));
+        }
+      }
+    }
   }
   
+  /**
+   * @return A new snapshot of the current state. It shares the tiles that
+   * weren't written since the last one with it, so only those that were
+   * are copied.
+   */
   public synchronized WorldSnapShot getSnapShot()
   {
-     float[][] worldClone = new float[world.length][world[0].length];
-     for(int i = 0; i < world.length; i++)
-     {
-       System.arraycopy(world[i], 0, worldClone[i], 0, world[0].length);
-     }
-       
-     float[][] waterClone = new float[water.length][water[0].length];
-     for(int i = 0; i < water.length; i++)
-     {
-       System.arraycopy(water[i], 0, waterClone[i], 0, snow[0].length);
-     }
-       
-     float[][] snowClone = new float[snow.length][snow[0].length];
-     for(int i = 0; i < snow.length; i++)
-     {
-       System.arraycopy(snow[i], 0, snowClone[i], 0, snow[0].length);
-     }
-     
-     float[][] waterVaporClone = new float[waterVapor.length][waterVapor[0].length];
-     for(int i = 0; i < waterVapor.length; i++)
-     {
-       System.arraycopy(waterVapor[i], 0, waterVaporClone[i], 0, waterVapor[0].length);
-     }
-     
-     float[][] vegetationClone = new float[vegetation.length][vegetation[0].length];
-     for(int i = 0; i < vegetation.length; i++)
-     {
-       System.arraycopy(vegetation[i], 0, vegetationClone[i], 0, vegetation[0].length);
-     }
-     List<Citizen> citizensClone = new ArrayList<Citizen>(citizens);
-     List<City> citiesClone = new ArrayList<City>(cities);
-     return (new WorldSnapShot(worldClone, waterClone, snowClone, waterVaporClone, vegetationClone,
-       citizensClone, citiesClone));
+    final WorldSnapShot snapShot = new WorldSnapShot(width, height, false);
+    fill(snapShot, lastSnapShot);
+    lastSnapShot = snapShot;
+    return snapShot;
+  }
+  
+  /**
+   * @return A view of the world as of the end of the latest step. Only the
+   * first call waits for the world; after that, views are published at the
+   * end of every step and this doesn't lock.
+   */
+  public WorldView getView()
+  {
+    final WorldView latest = view;
+    if (latest != null)
+    {
+      return latest;
+    }
+    synchronized (this)
+    {
+      if (view == null)
+      {
+        publishViews = true;
+        view = new WorldView(getSnapShot());
+      }
+      return view;
+    }
+  }
+  
+  /**
+   * Overwrite a snapshot of this world's size with the current state,
+   * reusing its layers. Only the tiles written since it was last filled
+   * are copied.
+   */
+  public synchronized void copyTo(final WorldSnapShot snapShot)
+  {
+    fill(snapShot, snapShot);
+  }
+  
+  // Copy the tiles written since base was filled into the snapshot, and
+  // take the rest from base. With no base every tile is copied.
+  private void fill(final WorldSnapShot snapShot, final WorldSnapShot base)
+  {
+    gatherVapor();
+    final int since = base != null ? base.epoch : -1;
+    int copied = 0;
+    copied += fill(Layer.Elevation, snapShot.world, base != null ? base.world : null, since);
+    copied += fill(Layer.Water, snapShot.water, base != null ? base.water : null, since);
+    copied += fill(Layer.Snow, snapShot.snow, base != null ? base.snow : null, since);
+    copied += fill(Layer.WaterVapor, snapShot.waterVapor, base != null ? base.waterVapor : null, since);
+    copied += fill(Layer.Vegetation, snapShot.vegetation, base != null ? base.vegetation : null, since);
+    copied += fill(normals.getShadeWritten(), normals.getShade(), snapShot.shade, base != null ? base.shade : null,
+      since);
+    snapShot.citizens.clear();
+    snapShot.citizens.addAll(citizens);
+    snapShot.cities.clear();
+    snapShot.cities.addAll(cities);
+    snapShot.step = stepCount;
+    snapShot.copiedTiles = copied;
+    snapShot.epoch = grid.advanceEpoch();
+  }
+  
+  private int fill(final Layer layer, final TiledLayer to, final TiledLayer base, int since)
+  {
+    return fill(grid.written(layer), grid.data(layer), to, base, since);
+  }
+  
+  private static int fill(final int[] written, final float[] data, final TiledLayer to, final TiledLayer base,
+    int since)
+  {
+    int copied = 0;
+    for (int t = 0; t < to.getTileCount(); t++)
+    {
+      if (base == null || written[t] > since)
+      {
+        to.copyTile(t, data);
+        copied++;
+      }
+      else if (base != to)
+      {
+        to.shareTile(t, base);
+      }
+    }
+    return copied;
+  }
+  
+  /**
+   * @return The time step of the last step.
+   */
+  public synchronized float getStepDt()
+  {
+    return stepDt;
+  }
+  
+  /**
+   * @return World time that has passed since the world was created.
+   */
+  public synchronized double getElapsedMinutes()
+  {
+    return elapsedMillis / 60000.0;
+  }
+  
+  /**
+   * @return The wind at world resolution, brought up to date with the solver.
+   * Only valid until the next step.
+   */
+  public synchronized WindField getWindField()
+  {
+    windField.update();
+    return windField;
+  }
+  
+  private ShallowWaterModel createWaterModel(final WorldSettings settings)
+  {
+    if (settings.getWaterModel() == WorldSettings.WaterModel.IMPLICIT)
+    {
+      final ImplicitShallowWaterModel model = new ImplicitShallowWaterModel(width, height);
+      model.setBands(bands);
+      return model;
+    }
+    return new PipeModel(width, height);
+  }
+  
+  private void register(final WorldSettings settings, final Subsystem subsystem, int period, int substeps,
+    Subsystem... after)
+  {
+    scheduler.register(subsystem,
+      settings.getPeriod(subsystem.getName(), period),
+      settings.getSubsteps(subsystem.getName(), substeps), after);
+  }
+  
+  /**
+   * @return Time spent in each phase of the steps so far and their critical path.
+   */
+  public synchronized String getTimingReport()
+  {
+    return scheduler.getTimingReport();
   }
   
-  // See http://www-evasion.imag.fr/Publications/2007/MDH07/FastErosion_PG07.pdf
-  // and http://www2.tech.purdue.edu/cgt/facstaff/bbenes/private/papers/Stava08SCA.pdf
   public synchronized void step()
   {
-    
-    PApplet.println(String.format("step %d", stepCount++));
-    
+    stepCount++;
    
-    final float dt = 0.005f;
-    //  0.05;
+    // Quiet water lets the step grow up to maxDt. Fast water doesn't shrink
+    // it below baseDt; the scheduler splits the hydrology into substeps instead.
+    final float dt = adaptiveDt ? Util.constrain(hydrologySubsystem.getStableDt(), baseDt, maxDt) : baseDt;
+    stepDt = dt;
     
-    calendar.add(Calendar.MINUTE, 10);
+    // World time passes in proportion to dt, however often each subsystem runs.
+    final int millis = Math.round(minutesPerStep * 60000f * dt / baseDt);
+    calendar.add(Calendar.MILLISECOND, millis);
+    elapsedMillis += millis;
     date = calendar.getTime();
-    float minutesElapsedSinceMidnight = calendar.get(Calendar.MINUTE);
+    minutesElapsedSinceMidnight = calendar.get(Calendar.MINUTE);
+    thermo.setTimeOfDay(minutesElapsedSinceMidnight);
     
-    // move the wind
-    final int windSteps = 2;
-    for (int i = 0; i < windSteps; i++)
+    scheduler.step(dt);
+    if (publishViews)
     {
-      fluidSolver.tick(dt/windSteps, visc, diff);
+      view = new WorldView(getSnapShot());
     }
     
-    boolean waterCycle = true;
+    System.out.println(String.format("step %d (dt %.4f, %d/%d tiles active, wind %d iterations, residual %.2g)",
+      stepCount - 1, dt, activeTiles.getActiveCount(), activeTiles.getTileCount(),
+      fluidSolver.getTickIterations(), fluidSolver.getTickResidual()));
+  }
+  
+  // See http://www-evasion.imag.fr/Publications/2007/MDH07/FastErosion_PG07.pdf
+  // and http://www2.tech.purdue.edu/cgt/facstaff/bbenes/private/papers/Stava08SCA.pdf
+  void hydrology(float dt)
+  {
+    gatherVapor();
+    activeTiles.advance();
+    this.dt = dt;
     
     // Run the evaporation/precipitation part of the sim?
     if (true)
     {
-      // Maximum rate of precipitation in g/m^s/s
-      // http://en.wikipedia.org/wiki/Rain#Intensity
-      // 10mm = 1cm = .1m/hr
-      // = 0.000277777778 m/s
-      // = 277g/m^2/s
-      float maxRainRate = 277*A/dt;
-
+      bands.run(0, height, precipitationKernel);
+    }
+    
+    // Flow is simulated with the shallow-water model. Then
+    // the velocity field and the water surface are updated.
+    // Pipe cross-sectional area.
+    if (waterCycle)
+    {
+      bands.run(0, height, outflowFluxKernel);
+      waterModel.solve(grid.data(Layer.Elevation), grid.data(Layer.Water), dt);
+    }
+    
+    // Water surface and velocity field
+    bands.run(0, height, waterKernel);
+    // Erosion moved the terrain; bring the normals up to date for the next
+    // step and for snapshots.
+    normals.setEpoch(grid.getEpoch());
+    bands.run(0, height, normalsKernel);
+    
+    // Water vapor and suspended sediment are pulled into tmp buffers, then
+    // copied back scaled so that transport neither creates nor destroys mass.
+    if (wind && !solverVapor)
+    {
+      windField.update();
+    }
+    bands.run(0, height, transportKernel);
+    vaporCorrection = Advection.correction(total(vaporBefore), total(vaporAfter));
+    sedimentCorrection = Advection.correction(total(sedimentBefore), total(sedimentAfter));
+    bands.run(0, height, conservationKernel);
+    
+    // Sea ice is pushed into other cells, so the order cells are visited in
+    // matters and this part stays serial.
+    driftSeaIce();
+  }
+  
+  // Bring the vapor the wind solver moved back to the world's cells.
+  private void gatherVapor()
+  {
+    if (vaporOnSolver)
+    {
+      fluidSolver.getTracer(vaporTracer, vaporMoved);
+      tracerGrid.prepare(vaporDeposited, vaporMoved);
+      bands.run(0, height, gatherVaporKernel);
+      vaporOnSolver = false;
+    }
+  }
+  
+  // Push the wind around at a random spot.
+  void gust()
+  {
+    if (wind)
+    {
+      // Idea for wind
+      // http://www.octas.statkart.no/archive/octas_study_course_2005/Ocean1_Basics.pdf
+      int cellX = (int)gustRandom.nextFloat(0, fluidSolver.getGridWidth());
+      int cellY = (int)gustRandom.nextFloat(0, fluidSolver.getGridHeight());
+      float force = 2000;
+      float mouseDx =  force;
+      float mouseDy = force* gustRandom.nextFloat(0, 1) > 0.5 ? -1 : 1;
+   
+      fluidSolver.applyForce(cellX, cellY, mouseDx, mouseDy);
+      windField.invalidate();
+    }
+  }
+  
+  void agents()
+  {
+    if (!citizensReleased && agentMillis >= releaseMillis)
+    {
+      citizensReleased = true;
+      for (int i=0; i<10; i++)
+      {
+        releaseCitizen();
+      }
+    }
+    
+    for(City city : cities)
+    {
+      stepCity(city);
+    }
+    
+    List<Citizen> citizensToDelete = new ArrayList<Citizen>();
+    for (Citizen citizen : citizens)
+    {
+      if (stepCitizen(citizen))
+      {
+        citizensToDelete.add(citizen);
+      }
+    }
+    citizens.removeAll(citizensToDelete);
+  }
+  
+  private FluidSolver createFluidSolver(final WorldSettings settings)
+  {
+    if (settings.getWindSolver() == NavierStokesSolver.LinearSolver.FFT)
+    {
+      return new FFTFluidSolver(settings.getWindGridWidth(), settings.getWindGridHeight());
+    }
+    if (settings.isWindFloat())
+    {
+      final FloatNavierStokesSolver solver = new FloatNavierStokesSolver(settings.getWindGridWidth(), settings.getWindGridHeight());
+      if (windBands != null)
+      {
+        solver.useRedBlack(windBands);
+      }
+      return solver;
+    }
+    final NavierStokesSolver solver = new NavierStokesSolver(settings.getWindGridWidth(), settings.getWindGridHeight());
+    if (settings.getWindSolver() == NavierStokesSolver.LinearSolver.MULTIGRID)
+    {
+      solver.useMultigrid(settings.getWindTolerance(), settings.getWindMaxCycles());
+    }
+    if (windBands != null)
+    {
+      solver.useRedBlack(windBands);
+    }
+    return solver;
+  }
+  
+  /**
+   * Stops the threads used to run steps.
+   */
+  public void shutdown()
+  {
+    scheduler.shutdown();
+    bands.shutdown();
+    if (windBands != null && windBands != bands)
+    {
+      windBands.shutdown();
+    }
+  }
+  
+  // Vegetation decay and growth for rows [y0, y1).
+  void vegetation(int y0, int y1)
+  {
+    final float dt = vegetationDt;
+    final float[] world = grid.data(Layer.Elevation);
+    final float[] water = grid.data(Layer.Water);
+    final float[] vegetation = grid.data(Layer.Vegetation);
+    final int[] vegetationWritten = grid.written(Layer.Vegetation);
+    final int epoch = grid.getEpoch();
+    
+    for(int y = y0; y<y1; y++)
+    {
       for(int x = 0; x<width; x++)
       {
-        for(int y = 0; y<height; y++)
+        final int i = grid.index(x, y);
+        final float before = vegetation[i];
+        
+        // Vegetation decay rate.
+        float Vk = 0.2f;
+        vegetation[i]*=1-Vk*dt;
+        
+        if (vegetation[i] < 0)
         {
+          vegetation[i] = 0;
+        }
+        
+        // Temperature for the given cell
+        float Tk = thermo.temperature(world[i]+water[i], y);
+        
+        // Grow vegetation
+        if (water[i]>0 && water[i]<0.05)
+        {
+          // Amount of vegetation based on temperature.
+          // positive from about 44F to 80F
+          float Dv = Math.max(0, (-(float)Util.fastpow(0.15*(Tk-290), 2)+2)*dt);
           
-          tmpWaterVapor[x][y] = 0;
-          
-          // Vegetation decay rate.
-          float Vk = 0.2f;
-          vegetation[x][y]*=1-Vk*dt;
-          
-          if (vegetation[x][y] < 0)
-          {
-            vegetation[x][y] = 0;
-          }
-          
-          // Temperature for the given cell
-          float Tk = Util.temperatureByHeightAndLattitudeAndTime(world[x][y]+water[x][y], (float)y/height, minutesElapsedSinceMidnight);
-          
-          // Grow vegetation
-          if (water[x][y]>0 && water[x][y]<0.05)
-          {
-            // Amount of vegetation based on temperature.
-            // positive from about 44F to 80F
-            float Dv = Math.max(0, (-(float)Util.fastpow(0.15*(Tk-290), 2)+2)*dt);
-            
-            // Adjustment for water
-            // positive between 0 and 0.1 m of water, peaking at 0.05m of water
-            float Wadj = Math.max(0, -(float)Util.fastpow(20*(water[x][y]-0.05), 2)+1);
-            if (Dv*Wadj > 0)
-              //println("adding vegetation:"+1000000*Dv*Wadj+" Dv:"+Dv+"  Wadj:"+Wadj);
-              
-              vegetation[x][y]+=10*Dv*Wadj;
-              
-              if (vegetation[x][y]>3)
-              {
-                vegetation[x][y] = 3;
-              }
-          }
-          
-          // Condenstation threshold of water in grams.
-          float Kc = Util.waterVaporPartialPressureToMass(atmosphericHeight*V, Util.waterVaporSaturationThreshold(Util.pressurePaByHeightM(world[x][y]+water[x][y]), Tk), Tk);
-          
-          // Water vapor greater than carrying capacity of the air?
-          if (waterVapor[x][y] > Kc/2)
-          {
-            // Amount of precipitation in grams
-            float precipitation = Math.min(waterVapor[x][y], waterVapor[x][y]*maxRainRate*dt);
-            float precipitationHeight = Util.waterMassToWaterHeight(precipitation, A);
+          // Adjustment for water
+          // positive between 0 and 0.1 m of water, peaking at 0.05m of water
+          float Wadj = Math.max(0, -(float)Util.fastpow(20*(water[i]-0.05), 2)+1);
+          if (Dv*Wadj > 0)
+            //println("adding vegetation:"+1000000*Dv*Wadj+" Dv:"+Dv+"  Wadj:"+Wadj);
             
-            if (precipitation < 0)
-            {
-              applet.println("precipitation<0");
-            }
-            waterVapor[x][y]-=precipitation;
+            vegetation[i]+=10*Dv*Wadj;
             
-            // Rain.
-            if (Tk > 273)
-            {
-              water[x][y]+=precipitationHeight;
-            }
-            // Snow.
-            else
+            if (vegetation[i]>3)
             {
-              snow[x][y]+=precipitationHeight;
+              vegetation[i] = 3;
             }
-          }
-          // Freezing?
-          if (Tk < 273)
-          {
-            float Kf = 0.1f;
-            float freeze = Math.min(water[x][y]*Kf*dt, water[x][y]);
-            snow[x][y] += freeze;
-            water[x][y] -= freeze;
-          }
+        }
+        if (vegetation[i] != before)
+        {
+          vegetationWritten[grid.tile(x, y)] = epoch;
         }
       }
     }
+  }
+  
+  // Precipitation and freezing for rows [y0, y1).
+  void precipitation(int y0, int y1)
+  {
+    final float[] world = grid.data(Layer.Elevation);
+    final float[] water = grid.data(Layer.Water);
+    final float[] snow = grid.data(Layer.Snow);
+    final float[] waterVapor = grid.data(Layer.WaterVapor);
+    final int[] waterWritten = grid.written(Layer.Water);
+    final int[] snowWritten = grid.written(Layer.Snow);
+    final int[] waterVaporWritten = grid.written(Layer.WaterVapor);
+    final int epoch = grid.getEpoch();
+    System.arraycopy(water, grid.index(0, y0), waterBefore, grid.index(0, y0), (y1 - y0) * width);
     
-    // Flow is simulated with the shallow-water model. Then
-    // the velocity field and the water surface are updated.
-    // Pipe cross-sectional area.
-    if (waterCycle)
+    // Maximum rate of precipitation in g/m^s/s
+    // http://en.wikipedia.org/wiki/Rain#Intensity
+    // 10mm = 1cm = .1m/hr
+    // = 0.000277777778 m/s
+    // = 277g/m^2/s
+    float maxRainRate = 277*A/dt;
+
+    for(int y = y0; y<y1; y++)
     {
       for(int x = 0; x<width; x++)
       {
-        for(int y = 0; y<height; y++)
+        final int i = grid.index(x, y);
+        
+        // Temperature for the given cell
+        float Tk = thermo.temperature(world[i]+water[i], y);
+        
+        // Condenstation threshold of water in grams.
+        float Kc = thermo.saturationMass(world[i]+water[i], Tk);
+        
+        // Water vapor greater than carrying capacity of the air?
+        if (waterVapor[i] > Kc/2)
         {
-          // Left
-          if (x > 0)
+          // Amount of precipitation in grams
+          float precipitation = Math.min(waterVapor[i], waterVapor[i]*maxRainRate*dt);
+          float precipitationHeight = Util.waterMassToWaterHeight(precipitation, A);
+          
+          if (precipitation < 0)
           {
-            float dh = world[x][y]+water[x][y]-world[x-1][y]-water[x-1][y];
-            tmpOutflowFluxL[x][y] = Math.max(0, outflowFluxL[x][y]+dt*A*g*dh/l);
+            System.out.println("precipitation<0");
           }
+          waterVapor[i]-=precipitation;
+          waterVaporWritten[grid.tile(x, y)] = epoch;
           
-          // Right
-          if (x < width-1)
+          // Rain.
+          if (Tk > 273)
           {
-            float dh = world[x][y]+water[x][y]-world[x+1][y]-water[x+1][y];
-            tmpOutflowFluxR[x][y] = Math.max(0, outflowFluxR[x][y]+dt*A*g*dh/l);
+            water[i]+=precipitationHeight;
+            waterWritten[grid.tile(x, y)] = epoch;
           }
-          // Top
-          if (y > 0)
+          // Snow.
+          else
           {
-              float dh = world[x][y]+water[x][y]-world[x][y-1]-water[x][y-1];
-              tmpOutflowFluxT[x][y] = Math.max(0, outflowFluxT[x][y]+dt*A*g*dh/l);
+            snow[i]+=precipitationHeight;
+            snowWritten[grid.tile(x, y)] = epoch;
           }
-          // Bottomn
-          if (y < height-1)
+        }
+        // Freezing?
+        if (Tk < 273)
+        {
+          float Kf = 0.1f;
+          float freeze = Math.min(water[i]*Kf*dt, water[i]);
+          snow[i] += freeze;
+          water[i] -= freeze;
+          if (freeze != 0)
           {
-            float dh = world[x][y]+water[x][y]-world[x][y+1]-water[x][y+1];
-            tmpOutflowFluxB[x][y] = Math.max(0, outflowFluxB[x][y]+dt*A*g*dh/l);
+            snowWritten[grid.tile(x, y)] = epoch;
+            waterWritten[grid.tile(x, y)] = epoch;
           }
         }
       }
-      // Scaling factor.
-      for(int x = 0; x<width; x++)
+    }
+  }
+  
+  // Scaled outflow through the four pipes of each cell in rows [y0, y1).
+  // Only active tiles have outflow; tiles that just went dormant are stilled.
+  void outflowFlux(int y0, int y1)
+  {
+    final float[] waterVelocityX = grid.data(Layer.WaterVelocityX);
+    final float[] waterVelocityY = grid.data(Layer.WaterVelocityY);
+    final int ty = y0 / ActiveTiles.TILE_SIZE;
+    for (int tx = 0; tx < activeTiles.tilesX; tx++)
+    {
+      final int x0 = tx * ActiveTiles.TILE_SIZE;
+      final int x1 = Math.min(width, x0 + ActiveTiles.TILE_SIZE);
+      if (activeTiles.isActive(tx, ty))
+      {
+        waterModel.computeFlux(grid.data(Layer.Elevation), grid.data(Layer.Water), x0, x1, y0, y1, dt);
+      }
+      else if (activeTiles.isDormant(tx, ty))
       {
-        for(int y = 0; y<height; y++)
+        waterModel.clearFlux(x0, x1, y0, y1);
+        for (int y = y0; y < y1; y++)
         {
-          if(tmpOutflowFluxL[x][y]+tmpOutflowFluxR[x][y]+tmpOutflowFluxT[x][y]+tmpOutflowFluxB[x][y] > 0)
-          {
-            float K = Math.min(1, water[x][y]*l*l/((tmpOutflowFluxL[x][y]+tmpOutflowFluxR[x][y]+tmpOutflowFluxT[x][y]+tmpOutflowFluxB[x][y])*dt));
-            
-            outflowFluxL[x][y] = K * tmpOutflowFluxL[x][y];
-            outflowFluxR[x][y] = K * tmpOutflowFluxR[x][y];
-            outflowFluxT[x][y] = K * tmpOutflowFluxT[x][y];
-            outflowFluxB[x][y] = K * tmpOutflowFluxB[x][y];
-          }
+          Arrays.fill(waterVelocityX, grid.index(x0, y), grid.index(x1, y), 0.0f);
+          Arrays.fill(waterVelocityY, grid.index(x0, y), grid.index(x1, y), 0.0f);
         }
       }
     }
+  }
+  
+  // Water surface, velocity field, erosion, evaporation and melt for rows [y0, y1).
+  void water(int y0, int y1)
+  {
+    final float[] world = grid.data(Layer.Elevation);
+    // Incidence as of the end of the last step, so erosion in one band
+    // doesn't change the slopes another band sees.
+    final float[] terrainIncidence = normals.getIncidence();
+    final float[] water = grid.data(Layer.Water);
+    final float[] suspendedSediment = grid.data(Layer.SuspendedSediment);
+    final float[] waterVelocityX = grid.data(Layer.WaterVelocityX);
+    final float[] waterVelocityY = grid.data(Layer.WaterVelocityY);
+    final float[] snow = grid.data(Layer.Snow);
+    final float[] waterVapor = grid.data(Layer.WaterVapor);
+    final int[] worldWritten = grid.written(Layer.Elevation);
+    final int[] waterWritten = grid.written(Layer.Water);
+    final int[] snowWritten = grid.written(Layer.Snow);
+    final int[] waterVaporWritten = grid.written(Layer.WaterVapor);
+    final int epoch = grid.getEpoch();
+    final float[] flux = waterModel.getFlux();
     
-    boolean wind = true;
-    if (wind && stepCount%1 == 0)
-    {
-      // Idea for wind
-      // http://www.octas.statkart.no/archive/octas_study_course_2005/Ocean1_Basics.pdf
-      int n = NavierStokesSolver.N;
-      float cellHeight = height / n;
-      float cellWidth = width / n;
-   
-      int cellX = (int)applet.random(0, n);
-      int cellY = (int)applet.random(0, n);
-      float force = 2000;
-      float mouseDx =  force;
-      float mouseDy = force* applet.random(0, 1) > 0.5 ? -1 : 1;
-   
-      fluidSolver.applyForce(cellX, cellY, mouseDx, mouseDy);
-    }
-
-    // Water surface and velocity field
-    for (int x = 0; x<width; x++)
+    final int ty = y0 / ActiveTiles.TILE_SIZE;
+    float maxWaterSpeed = 0;
+    for (int y = y0; y<y1; y++)
     {
-      for (int y = 0; y<height; y++)
+      for (int tx = 0; waterCycle && tx < activeTiles.tilesX; tx++)
       {
-        if (waterCycle)
+        // Only tiles with moving water, and those that might receive it.
+        if (!activeTiles.isVisited(tx, ty))
         {
-           // Change in water volume
-           float dV = dt*(
-              (x<=0?0.0f:outflowFluxR[x-1][y])
-              + (y<=0?0.0f:outflowFluxB[x][y-1])
-              + (x>=width-1?0.0f:outflowFluxL[x+1][y])
-              + (y>=height-1?0.0f:outflowFluxT[x][y+1])
-            - (
-              outflowFluxL[x][y]
-              +outflowFluxR[x][y]
-              +outflowFluxT[x][y]
-              +outflowFluxB[x][y]
-              ));
-            // Move water according to flow
-            water[x][y]+=dV/(l*l);
-            // Don't have negative water ever.
-            if(water[x][y]<0)
-            {
-              water[x][y] = 0;
-            }
-            
-            // Use flow to calculate water velocity
-            
-            waterVelocityX[x][y] = (
-              (x<=0?0.0f:outflowFluxR[x-1][y])
-              - outflowFluxL[x][y]
-              + outflowFluxR[x][y]
-              - (x>=width-1?0.0f:outflowFluxL[x+1][y])
-              )/2;
-            waterVelocityY[x][y] = (
-              (y==0?0.0f:outflowFluxB[x][y-1])
-              - outflowFluxT[x][y]
-              + outflowFluxB[x][y]
-              - (y>=height-1?0.0f:outflowFluxT[x][y+1])
-            )/2;
-            
+          continue;
+        }
+        final int x0 = tx * ActiveTiles.TILE_SIZE;
+        final int x1 = Math.min(width, x0 + ActiveTiles.TILE_SIZE);
+        // Water surface and velocity of the row
+        float throughput = waterModel.updateWater(water, waterVelocityX, waterVelocityY, x0, x1, y, y+1, dt);
+        boolean busy = throughput > activityEpsilon;
+        if (throughput > 0)
+        {
+          waterWritten[grid.tile(x0, y)] = epoch;
+        }
+        for (int x = x0; x<x1; x++)
+        {
+            final int i = grid.index(x, y);
             // Calculate transport capacity
-            float waterVelocity = (new PVector(waterVelocityX[x][y], waterVelocityY[x][y])).mag();
+            float waterVelocity = (float)Math.sqrt(waterVelocityX[i]*waterVelocityX[i] + waterVelocityY[i]*waterVelocityY[i]);
             //Terminal water velocity
             float Ktw = (float)(90*Math.sqrt(l));
             if (waterVelocity>Ktw)
             {
               waterVelocity = Ktw;
             }
+            maxWaterSpeed = Math.max(maxWaterSpeed, waterVelocity);
+            if (adaptiveDt && water[i] > 0)
+            {
+              // A cell that drains in time T limits dt like a speed of l/T.
+              final float outflow = flux[4*i] + flux[4*i+1] + flux[4*i+2] + flux[4*i+3];
+              maxWaterSpeed = Math.max(maxWaterSpeed, outflow*l/(A*water[i]));
+              if (explicitWater)
+              {
+                maxWaterSpeed = Math.max(maxWaterSpeed, waterVelocity + (float)Math.sqrt(g*water[i]));
+              }
+            }
             
             if (waterVelocity > 0)
             {
-              // calculate slope of cell
-              PVector nx = new PVector(-1, 0, (x==0?world[x+1][y]:world[x-1][y]) - world[x][y]);
-              nx.normalize();
-              PVector ny = new PVector(0, -1, (y==0?world[x][y+1]:world[x][y-1]) - world[x][y]);
-              ny.normalize();
-              PVector n = (nx).cross(ny);
-              PVector vup = new PVector(0,0,1);
-              float incidence = vup.dot(n);
+              final float before = world[i];
+              // slope of cell
+              float incidence = terrainIncidence[i];
               
               // Transport capacity.
               float Kc = 0.2f;
@@ -445,25 +1038,38 @@ public class World
               // Dissolving constant
               float Ks = 0.1f;
               // Erosion
-              if (C > suspendedSediment[x][y])
+              if (C > suspendedSediment[i])
               {
-                float erodedAmount = Math.max(0, Math.min(world[x][y], Ks*(C-suspendedSediment[x][y])));
-                world[x][y]-=erodedAmount;
-                suspendedSediment[x][y]+=erodedAmount;
+                float erodedAmount = Math.max(0, Math.min(world[i], Ks*(C-suspendedSediment[i])));
+                world[i]-=erodedAmount;
+                suspendedSediment[i]+=erodedAmount;
               }
               // Deposition
               else
               {
-                float depositionAmount = Math.max(0, Math.min(Ks*(C-suspendedSediment[x][y]), suspendedSediment[x][y]));
-                world[x][y]+=depositionAmount;
-                suspendedSediment[x][y]-=depositionAmount;
+                float depositionAmount = Math.max(0, Math.min(Ks*(C-suspendedSediment[i]), suspendedSediment[i]));
+                world[i]+=depositionAmount;
+                suspendedSediment[i]-=depositionAmount;
+              }
+              if (world[i] != before)
+              {
+                worldWritten[grid.tile(x, y)] = epoch;
               }
             }
-          }
+            busy |= suspendedSediment[i] > activityEpsilon;
+        }
+        if (busy)
+        {
+          activeTiles.wakeTile(tx, ty);
+        }
+      }
+      for (int x = 0; x<width; x++)
+      {
+          final int i = grid.index(x, y);
           // Run the evaporation/precipitation part of the sim?
-          float elevation = world[x][y]+water[x][y];
+          float elevation = world[i]+water[i];
           // Temperature for the given cell by height and by lattitude
-          float Tk = Util.temperatureByHeightAndLattitudeAndTime(elevation, (float)y/height, minutesElapsedSinceMidnight);
+          float Tk = thermo.temperature(elevation, y);
           // Rate of evaporation.
           float Re = 0.1f;
           // Water decreases due to evaporation.
@@ -471,221 +1077,255 @@ public class World
           float Ke = Re*Math.max(0, Tk)*dt;
           
           // The amount of water vapor in grams if the air was to be saturated.
-          float waterVaporMassSat = Util.waterVaporPartialPressureToMass(atmosphericHeight*V,
-            Util.waterVaporSaturationThreshold(Util.pressurePaByHeightM(elevation), Tk), Tk);
+          float waterVaporMassSat = thermo.saturationMass(elevation, Tk);
                 
           // Adjust the temperature by the humidity to account for cloud coverage
-          //Tk = temperatureByHeightAndLattitudeAndTime(world[x][y]+water[x][y], y, 100*waterVapor[x][y]/waterVaporMassSat, minutesElapsedSinceMidnight);
+          //Tk = temperatureByHeightAndLattitudeAndTime(world[i]+water[i], y, 100*waterVapor[i]/waterVaporMassSat, minutesElapsedSinceMidnight);
           
           // The amount of water (in grams) that it would be needed to evaporate so
           // that the air was saturated.
-          float dWMax = waterVaporMassSat-waterVapor[x][y];
+          float dWMax = waterVaporMassSat-waterVapor[i];
 
           
           // The amount of water in grams that is evaporated this step.
           // Don't evaporate less than 0 water.
-          float evaporationMass = applet.constrain(dWMax*Ke, 0, dWMax);
+          float evaporationMass = Util.constrain(dWMax*Ke, 0, dWMax);
 
           // Maximum allowable water vapor in air in height of meters of water.
           float waterHeight = Util.waterMassToWaterHeight(evaporationMass, A);
 
           // The amount of water evaporated in meters of height
           // Don't evaporate more water than what exists.
-          float evaporation = Math.min(water[x][y], waterHeight);
+          float evaporation = Math.min(water[i], waterHeight);
           
           
           if (x == 300 && y == 300 && stepCount%10000==0)
           {
-            applet.println(String.format("evaopration in g %f", evaporationMass));
-            applet.println(String.format("water height in m %f", waterHeight));
-            applet.println(String.format("water in m %f", water[x][y]));
-            applet.println(String.format("waterVaporMassSat in g %f", waterVaporMassSat));
-            applet.println(String.format("Tk %f", Tk));
-            applet.println(String.format("waterVapor[x][y] %f", waterVapor[x][y]));
-            applet.println(String.format("elevation %f",elevation));
+            System.out.println(String.format("evaopration in g %f", evaporationMass));
+            System.out.println(String.format("water height in m %f", waterHeight));
+            System.out.println(String.format("water in m %f", water[i]));
+            System.out.println(String.format("waterVaporMassSat in g %f", waterVaporMassSat));
+            System.out.println(String.format("Tk %f", Tk));
+            System.out.println(String.format("waterVapor[i] %f", waterVapor[i]));
+            System.out.println(String.format("elevation %f",elevation));
           }
           
           // Take evaporation from water and add it to the air as water vapor.
-          water[x][y]-=evaporation;
-          waterVapor[x][y]+=evaporationMass;
+          water[i]-=evaporation;
+          waterVapor[i]+=evaporationMass;
+          if (evaporation != 0)
+          {
+            waterWritten[grid.tile(x, y)] = epoch;
+          }
+          if (evaporationMass != 0)
+          {
+            waterVaporWritten[grid.tile(x, y)] = epoch;
+          }
         
         // Water increase due to snow melt.
         // Melting constant
-        if (snow[x][y]>0)
+        if (snow[i]>0)
         {
           float Km = 100.1f;
-          float melt = Math.min(snow[x][y]*Km*dt, snow[x][y]);
-          //snow[x][y]=-melt;
-          water[x][y]+=melt;
-          if (snow[x][y] < 0.00001)
+          float melt = Math.min(snow[i]*Km*dt, snow[i]);
+          //snow[i]=-melt;
+          water[i]+=melt;
+          if (melt != 0)
           {
-            snow[x][y]=0;
+            waterWritten[grid.tile(x, y)] = epoch;
           }
+          if (snow[i] < 0.00001)
+          {
+            snow[i]=0;
+            snowWritten[grid.tile(x, y)] = epoch;
+          }
+        }
+
+        // Rain, melt, evaporation and flow together changed the water by
+        // more than a pipe at the activity threshold would bring.
+        if (Math.abs(water[i] - waterBefore[i]) > activityEpsilon*dt)
+        {
+          activeTiles.wake(x, y);
+        }
+      }
+    }
+    waterSpeed[RowBands.bandIndex(0, y0)] = maxWaterSpeed;
+    // Flag the cells erosion moved far enough to need new normals.
+    normals.mark(world, y0, y1);
+  }
+  
+  // Semi-Lagrangian transport of rows [y0, y1). Every cell pulls its new
+  // water vapor and suspended sediment from where it came from into the tmp
+  // buffers.
+  void transport(int y0, int y1)
+  {
+    final float[] suspendedSediment = grid.data(Layer.SuspendedSediment);
+    final float[] tmpSediment = grid.data(Layer.TmpSediment);
+    final float[] waterVelocityX = grid.data(Layer.WaterVelocityX);
+    final float[] waterVelocityY = grid.data(Layer.WaterVelocityY);
+    final float[] waterVapor = grid.data(Layer.WaterVapor);
+    final float[] tmpWaterVapor = grid.data(Layer.TmpWaterVapor);
+    final float[] windDx = windField.getDx();
+    final float[] windDy = windField.getDy();
+    // The wind is in cells per step of baseDt; this step, or substep, may be longer or shorter.
+    final float windScale = dt / baseDt;
+    
+    final int ty = y0 / ActiveTiles.TILE_SIZE;
+    for (int y = y0; y<y1; y++)
+    {
+      for (int x = 0; x<width; x++)
+      {
+        final int i = grid.index(x, y);
+        
+        // Suspended sediment is transported by the velocity field, which is
+        // only kept up to date where the hydrology ran.
+        if (activeTiles.isVisited(x / ActiveTiles.TILE_SIZE, ty))
+        {
+          tmpSediment[i] = Advection.sample(suspendedSediment, width, height,
+            x-waterVelocityX[i]*dt, y-waterVelocityY[i]*dt);
+        }
+        else
+        {
+          tmpSediment[i] = suspendedSediment[i];
         }
         
-        // Suspended sediment is transported by the velocity field.
-        if (water[x][y] > 0)
+        // Water vapor is transported by wind velocity field inside the fluid solver
+        if (wind && !solverVapor)
         {
-          int u = (int)(x-waterVelocityX[x][y]*dt);
-          int v = (int)(y-waterVelocityY[x][y]*dt);
+          float dx = windDx[i]*windScale;
+          float dy = windDy[i]*windScale;
           
-          if(u>=0 && u<width && v>=0 && v<height)
+          if(x==300 && y==300 && stepCount%10==0)
           {
-            tmpSediment[x][y] = suspendedSediment[u][v];
-          }
-          else if(x>0 && x<width-1 && y>0 && y<height-1)
-          {
-            tmpSediment[x][y] = (suspendedSediment[x-1][y]+suspendedSediment[x+1][y]+suspendedSediment[x][y-1]+suspendedSediment[x][y+1])/4;
+            System.out.println("moving "+(x-dx)+","+(y-dy)+" to "+x+","+y);
+            System.out.println("amount "+waterVapor[i]+" g");
           }
+          tmpWaterVapor[i] = Advection.sample(waterVapor, width, height, x-dx, y-dy);
+        }
+        else
+        {
+          tmpWaterVapor[i] = waterVapor[i];
+        }
+      }
+    }
+    final int band = RowBands.bandIndex(0, y0);
+    final int from = grid.index(0, y0);
+    final int to = grid.index(0, y1);
+    vaporBefore[band] = Advection.sum(waterVapor, from, to);
+    vaporAfter[band] = Advection.sum(tmpWaterVapor, from, to);
+    sedimentBefore[band] = Advection.sum(suspendedSediment, from, to);
+    sedimentAfter[band] = Advection.sum(tmpSediment, from, to);
+  }
+  
+  // Copy the transported values of rows [y0, y1) back, scaled to conserve mass.
+  void conserveTransported(int y0, int y1)
+  {
+    final float[] suspendedSediment = grid.data(Layer.SuspendedSediment);
+    final float[] tmpSediment = grid.data(Layer.TmpSediment);
+    final float[] waterVapor = grid.data(Layer.WaterVapor);
+    final float[] tmpWaterVapor = grid.data(Layer.TmpWaterVapor);
+    
+    final int[] waterVaporWritten = grid.written(Layer.WaterVapor);
+    final int epoch = grid.getEpoch();
+    for (int y = y0; y<y1; y++)
+    {
+      for (int x = 0; x<width; x++)
+      {
+        final int i = grid.index(x, y);
+        final float vapor = tmpWaterVapor[i]*vaporCorrection;
+        if (vapor != waterVapor[i])
+        {
+          waterVapor[i] = vapor;
+          waterVaporWritten[grid.tile(x, y)] = epoch;
         }
+        suspendedSediment[i] = tmpSediment[i]*sedimentCorrection;
+      }
+    }
+  }
+  
+  private static double total(final double[] bandTotals)
+  {
+    double total = 0;
+    for (double bandTotal : bandTotals)
+    {
+      total += bandTotal;
+    }
+    return total;
+  }
+  
+  // Sea ice drifts away from the poles.
+  void driftSeaIce()
+  {
+    final float[] water = grid.data(Layer.Water);
+    final float[] snow = grid.data(Layer.Snow);
+    
+    for (int y = 0; y<height; y++)
+    {
+      for (int x = 0; x<width; x++)
+      {
+        final int i = grid.index(x, y);
         
         // Move sea ice
-        if (snow[x][y] > 0 && water[x][y] > 20 && applet.random(0, 10)<1)
+        // Drawn by step and cell, so the draws don't depend on the visiting order.
+        if (snow[i] > 0 && water[i] > 20 && 10*WorldRandom.uniform(seaIceKey, stepCount*grid.size()+i)<1)
         {
           float v = (float)y/height;
           // North pole?
           if (v < 0.5)
           {
              // no ice to the south?
-             if (snow[x][y+1] == 0 && water[x][y+1] > 20)
+             if (snow[i+width] == 0 && water[i+width] > 20)
              {
                // move berg south
-               snow[x][y+1] = snow[x][y];
-               snow[x][y] = 0;
+               snow[i+width] = snow[i];
+               snow[i] = 0;
+               grid.touch(Layer.Snow, x, y);
+               grid.touch(Layer.Snow, x, y+1);
              }
           }
           else
           {
             // no ice to the north?
-             if (snow[x][y-1] == 0 && water[x][y-1] > 20)
+             if (snow[i-width] == 0 && water[i-width] > 20)
              {
                // move berg north
-               snow[x][y-1] = snow[x][y];
-               snow[x][y] = 0;
+               snow[i-width] = snow[i];
+               snow[i] = 0;
+               grid.touch(Layer.Snow, x, y);
+               grid.touch(Layer.Snow, x, y-1);
              }
           }
         }  
-        
-        // Water vapor is transported by wind velocity field inside the fluid solver
-        if (wind)
-        {
-          if (x<width-1 && y<height-1)
-          {
-            float dx = (float) fluidSolver.getDx(x, y, width, height);
-            float dy = (float) fluidSolver.getDy(x, y, width, height);
-            
-            // Move water vapor
-            if ((int)(x+dx)>=0 && (int)(x+dx)<=width-1 && (int)(y+dy)>=0 && (int)(y+dy)<=height-1)
-            {
-              float fx = x+dx;
-              float fy = y+dy;
-              int tx = (int)fx;
-              int ty = (int)fy;
-              float lX = fx - tx - 0.5f;
-              float lY = fy - ty - 0.5f;
-              int v, h;
-              // upper left?
-              if (lY > lX)
-              {
-                // upper right?
-                if (lY > -lX) { v = 1; h = 0; }
-                // lower left?
-                else { v = 0; h = -1; }
-              }
-              // lower right?
-              else
-              {
-                // upper right?
-                if (lY > -lX) { v = 0; h = 1; }
-                // lower right?
-                else { v = -1; h = 0; }
-              }
-              // other cell amount
-              float oca = lX * h + lY * v;
-              // this cell amount
-              float tca = 1 - oca;
-              
-              int ocx = applet.constrain(tx+h, 0, width-1);
-              int ocy = applet.constrain(ty+v, 0, height-1);
-              
-              
-              if(x==300 && y==300 && stepCount%10==0)
-              {
-                applet.println("moving "+(x+dx)+","+(y+dy)+" to "+x+","+y);
-                applet.println("amount "+waterVapor[x][y]+" g");
-              }
-            
-              tmpWaterVapor[x][y] += tca * waterVapor[tx][ty] + oca * waterVapor[ocx][ocy];
-              waterVapor[tx][ty]-=tca * waterVapor[tx][ty];
-              waterVapor[ocx][ocy]-=oca * waterVapor[ocx][ocy];
-            }
-            else if(x>0 && x<width-1 && y>0 && y<height-1)
-            {
-              tmpWaterVapor[x][y] += (waterVapor[x-1][y]+waterVapor[x+1][y]+waterVapor[x][y-1]+waterVapor[x][y+1])/4;
-            }
-          }
-        }
-      }
-    }
-    // Copy tmp values into real values.
-    for(int i = 0; i<waterVapor.length; i++)
-    {
-      System.arraycopy(tmpWaterVapor[i], 0, waterVapor[i], 0, tmpWaterVapor[i].length);
-      System.arraycopy(tmpSediment[i], 0, suspendedSediment[i], 0, tmpSediment[i].length);
-    }
-    
-    if (stepCount == 30)
-    {
-      for (int i=0; i<10; i++)
-      {
-        releaseCitizen();
-      }
-    }
-    
-    for(City city : cities)
-    {
-      stepCity(city);
-    }
-    
-    List<Citizen> citizensToDelete = new ArrayList<Citizen>();
-    for (Citizen citizen : citizens)
-    {
-      if (stepCitizen(citizen))
-      {
-        citizensToDelete.add(citizen);
       }
     }
-    citizens.removeAll(citizensToDelete);
   }
   
   void releaseCitizen()
   {
-    applet.colorMode(applet.HSB);
     boolean embarcationFound = false;
     while (!embarcationFound)
     {
-      int x = (int)applet.random(0, width-1);
-      int y = (int)applet.random(0, height-1);
+      int x = (int)agentRandom.nextFloat(0, width-1);
+      int y = (int)agentRandom.nextFloat(0, height-1);
       // Don't start people off in the ocean. They will drown :(
       // Don't start people off at high altitude, they will get sick.
-      if (water[x][y] < 0.01 && world[x][y] < 5000)
+      if (agentWater[grid.index(x, y)] < 0.01 && agentElevation[grid.index(x, y)] < 5000)
       {
         embarcationFound = true;
-        Culture culture = new Culture("", applet.color(applet.random(0, 255), 255, 255));
+        Culture culture = new Culture("", Color.HSBtoRGB(agentRandom.nextFloat(0, 255)/255, 1, 1));
         cultures.add(culture);
         // Create a new citizen here with a random urban affinity between 0 and 1.
         citizens.add(new Citizen(x, y, culture));
-        applet.println(String.format("Citizen released at %d, %d", x, y));
+        System.out.println(String.format("Citizen released at %d, %d", x, y));
       }
     }
-    applet.colorMode(applet.RGB);
   }
 
   boolean stepCitizen(final Citizen citizen)
   {
-    PVector cp = new PVector(citizen.getX(), citizen.getY());
+    Point cp = new Point(citizen.getX(), citizen.getY());
     // find nearby most habitable point.
-    PVector p = mostHabitablePoint(citizen);
+    Point p = mostHabitablePoint(citizen);
     if (p == null)
     {
       return false;
@@ -697,8 +1337,8 @@ public class World
     // No? loop to next most habitable point.
     
     // Move one step closer to most habitable point
-    citizen.setX((int)p.x);
-    citizen.setY((int)p.y);
+    citizen.setX(p.x);
+    citizen.setY(p.y);
     // At most habitable point?
     if (cp.equals(p))
     {
@@ -716,9 +1356,9 @@ public class World
       }
       if (foundCity == null)
       {
-        foundCity = new City((int)p.x, (int)p.y, 0, citizen.getCulture());
+        foundCity = new City(p.x, p.y, 0, citizen.getCulture());
         cities.add(foundCity);
-        applet.println(String.format("City created at %d, %d", (int)p.x, (int)p.y));
+        System.out.println(String.format("City created at %d, %d", p.x, p.y));
       }
       foundCity.setPopulation(1+foundCity.getPopulation());
     }
@@ -727,7 +1367,7 @@ public class World
   
   void stepCity(final City city)
   {
-    if (applet.random(0, 2) < 1)
+    if (agentRandom.nextFloat(0, 2) < 1)
     {
       boolean foundEmbarcation = false;
       int x = 0;
@@ -735,8 +1375,8 @@ public class World
       while (!foundEmbarcation)
       {
         // release citizen away from city
-        float theta = applet.random(0.0f, (float)(2*Math.PI));
-        double r = Util.poissonRandom(15f);
+        float theta = agentRandom.nextFloat(0.0f, (float)(2*Math.PI));
+        double r = agentRandom.nextPoisson(15f);
         int dx = (int)(r*Math.cos(theta));
         int dy = (int)(r*Math.sin(theta));
         x = city.getX()+dx;
@@ -745,7 +1385,7 @@ public class World
         {
           continue;
         }
-        if (water[x][y] < 0.01 && world[x][y] < 5000)
+        if (agentWater[grid.index(x, y)] < 0.01 && agentElevation[grid.index(x, y)] < 5000)
         {
           foundEmbarcation = true;
         }
@@ -754,24 +1394,24 @@ public class World
     }
   }
   
-  PVector mostHabitablePoint(final Citizen citizen)
+  Point mostHabitablePoint(final Citizen citizen)
   {
     int x = citizen.getX();
     int y = citizen.getY();
     int w = 20;
     int h = 20;
-    PVector bestMatch = null;
+    Point bestMatch = null;
     float bestScore = 0;
     for (int i = x-w/2; i<x+w/2; i++)
     {
       for (int j = y-h/2; j<y+h/2; j++)
       {
         float score = habitability(
-          applet.constrain(i, 0, width-1),
-          applet.constrain(j, 0, height-1));
+          Util.constrain(i, 0, width-1),
+          Util.constrain(j, 0, height-1));
         if (score > bestScore)
         {
-          bestMatch = new PVector(i, j);
+          bestMatch = new Point(i, j);
           bestScore = score;
         }
       }
@@ -781,22 +1421,22 @@ public class World
   
   float habitability(int x, int y)
   {
-    if (water[x][y] > 0.01)
+    if (agentWater[grid.index(x, y)] > 0.01)
     {
       return -1;
     }
     float dToNearestCity = width+height;
     for (City city : cities)
     {
-      float d = applet.dist((float)x, (float)y, (float)city.getX(), (float)city.getY());
+      float d = (float)Math.hypot(x-city.getX(), y-city.getY());
       if (d < dToNearestCity)
       {
         dToNearestCity = d;
       }
     }
     // Add non-affinity to edges of map
-    float temperatureIndex = -Math.abs(290-Util.temperatureByHeightAndLattitudeAndTime(world[x][y], (float)y/height, 660)) + 10;
-    float cityIndex = PApplet.constrain((float)(applet.sq(dToNearestCity/3)/2+1000/(dToNearestCity+0.5+0.1)-8), -10.0f, 100.0f);
-    return cityIndex + 100*vegetation[x][y] + 10*temperatureIndex;
+    float temperatureIndex = -Math.abs(290-Util.temperatureByHeightAndLattitudeAndTime(agentElevation[grid.index(x, y)], (float)y/height, 660)) + 10;
+    float cityIndex = Util.constrain((float)((dToNearestCity/3)*(dToNearestCity/3)/2+1000/(dToNearestCity+0.5+0.1)-8), -10.0f, 100.0f);
+    return cityIndex + 100*agentVegetation[grid.index(x, y)] + 10*temperatureIndex;
   }
 }
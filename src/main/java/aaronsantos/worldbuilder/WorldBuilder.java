@@ -2,10 +2,10 @@ package aaronsantos.worldbuilder;
 
 import aaronsantos.worldbuilder.io.GeoJSONWriter;
 import aaronsantos.worldbuilder.io.GeoTIFFWriter;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import processing.core.PApplet;
@@ -26,7 +26,7 @@ public class WorldBuilder extends PApplet
 // Atmosphere extends 10000m above elevation
     static final float atmosphericHeight = 10000;
     World world = null;
-    Vector<WorldSnapShot> snapShots = new Vector<WorldSnapShot>();
+    SnapShotRing snapShots = null;
     WorldSnapShot snapShot = null;
     Thread t = null;
     PFont font;
@@ -34,6 +34,14 @@ public class WorldBuilder extends PApplet
     PImage c, e, r, temp;
     boolean writeGeoJSON = false;
     boolean writeGeoTIFF = false;
+    // Set with -Dworldbuilder.history=DIR, recorded every historyEvery steps.
+    SnapShotHistory history = null;
+    volatile boolean recording = false;
+    int historyEvery = Integer.getInteger("worldbuilder.history.every", 10);
+    // The history frame shown instead of the live world, or -1.
+    int frame = -1;
+    WorldSnapShot frameSnapShot = null;
+    boolean replay = false;
 
     @Override
     public void setup()
@@ -42,7 +50,8 @@ public class WorldBuilder extends PApplet
         background(0);
         frameRate(60);
 
-        world = new World(this, width, height);
+        world = new World(width, height);
+        snapShots = new SnapShotRing(width, height);
         font = createFont("Arial Bold", 48);
         println("Analyzing colors");
         c = loadImage("color.png");
@@ -57,6 +66,20 @@ public class WorldBuilder extends PApplet
 
         mapper = new ColorMapper(this, c, e, r, temp);
 
+        final String historyDirectory = System.getProperty("worldbuilder.history");
+        if (historyDirectory != null)
+        {
+            try
+            {
+                history = new SnapShotHistory(new File(historyDirectory));
+                recording = true;
+            }
+            catch (IOException e)
+            {
+                Logger.getLogger(WorldBuilder.class.getName()).log(Level.SEVERE, "Error opening history", e);
+            }
+        }
+
         println("Rendering");
         //noLoop();
 
@@ -65,28 +88,53 @@ public class WorldBuilder extends PApplet
             @Override
             public void run()
             {
-                for (;;)
+                for (long steps = 1;; steps++)
                 {
                     world.step();
-                    if (snapShots.size() > 3)
+                    // Only copies the world when draw() has asked for it.
+                    snapShots.publish(world);
+                    if (recording && steps % historyEvery == 0)
                     {
-                        snapShots.clear();
+                        record();
                     }
-                    snapShots.add(world.getSnapShot());
                 }
             }
         };
         t.start();
     }
 
+    // Called from the simulation thread.
+    void record()
+    {
+        try
+        {
+            history.record(world.getSnapShot());
+        }
+        catch (IOException e)
+        {
+            Logger.getLogger(WorldBuilder.class.getName()).log(Level.SEVERE, "Error recording history", e);
+            recording = false;
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Keep the simulation going without the history.
+            Logger.getLogger(WorldBuilder.class.getName()).log(Level.SEVERE, "Error recording history", e);
+            recording = false;
+        }
+    }
+
     @Override
     public synchronized void draw()
     {
-        if (snapShots.size() > 0)
+        final WorldSnapShot latest = snapShots.acquire();
+        if (latest != null)
         {
+            snapShot = latest;
+        }
 
-            snapShot = snapShots.get(0);
-            snapShots.clear();
+        if (frame >= 0)
+        {
+            showFrame();
         }
 
         if (snapShot == null)
@@ -140,6 +188,44 @@ public class WorldBuilder extends PApplet
             case Political:
                 drawPolitical(snapShot);
         }
+        if (frame >= 0)
+        {
+            textFont(font, 12);
+            shadowedText(String.format("%s frame %d/%d, step %d", replay ? "Replaying" : "History", frame + 1,
+                history.getFrameCount(), frameSnapShot.getStep()), 20, height - 20);
+        }
+    }
+
+    // Draw the history frame rather than the live world, moving on a frame
+    // when replaying.
+    void showFrame()
+    {
+        try
+        {
+            // The history starts over when it can't follow on from what it
+            // held, so the frame may be gone.
+            if (frame >= history.getFrameCount())
+            {
+                frame = -1;
+                frameSnapShot = null;
+                replay = false;
+                return;
+            }
+            if (replay && frameSnapShot != null && frame + 1 < history.getFrameCount())
+            {
+                frame++;
+            }
+            if (frameSnapShot == null || frameSnapShot.getStep() != history.getStep(frame))
+            {
+                frameSnapShot = history.read(frame);
+            }
+            snapShot = frameSnapShot;
+        }
+        catch (IOException e)
+        {
+            Logger.getLogger(WorldBuilder.class.getName()).log(Level.SEVERE, "Error reading history", e);
+            frame = -1;
+        }
     }
 
     @Override
@@ -164,6 +250,35 @@ public class WorldBuilder extends PApplet
         {
             writeGeoTIFF = true;
         }
+        else if (history != null && history.getFrameCount() > 0)
+        {
+            // Scrub through the history, replay it, or go back to the live world.
+            final int last = history.getFrameCount() - 1;
+            if (key == '[')
+            {
+                frame = frame < 0 ? last : Math.max(frame - 1, 0);
+                replay = false;
+            }
+            else if (key == ']' && frame >= 0)
+            {
+                frame = Math.min(frame + 1, last);
+                replay = false;
+            }
+            else if (key == 'p')
+            {
+                replay = !replay;
+                if (frame < 0)
+                {
+                    frame = 0;
+                }
+            }
+            else if (key == 'l')
+            {
+                frame = -1;
+                frameSnapShot = null;
+                replay = false;
+            }
+        }
     }
 
     void drawGeographical(final WorldSnapShot snapShot)
@@ -212,16 +327,8 @@ public class WorldBuilder extends PApplet
                     // Not an edge pixel?
                     if (x > 2 && y > 2 && x < (width - 2) && y < (height - 2))
                     {
-                        // Calculate slope 
-                        PVector nx = new PVector(-1, 0, (snapShot.getWorld(u - (2.0f / width), v) - landHeight) / 200);
-                        nx.normalize();
-                        PVector ny = new PVector(0, -1, (snapShot.getWorld(u, v - (2.0f / height)) - landHeight) / 200);
-                        ny.normalize();
-                        PVector n = (nx).cross(ny);
-                        PVector sun = new PVector(-1, -1, 0.5f);
-                        sun.normalize();
                         //n*l lighting
-                        float incidence = sun.dot(n);
+                        float incidence = snapShot.getShade(u, v);
                         //incidence = 0.5;
                         // c=n*l+a
                         float Kambient = 0.4f;
@@ -388,16 +495,8 @@ public class WorldBuilder extends PApplet
                     // Not an edge pixel?
                     if (x > 2 && y > 2 && x < (width - 2) && y < (height - 2))
                     {
-                        // Calculate slope 
-                        PVector nx = new PVector(-1, 0, (snapShot.getWorld(u - (2.0f / width), v) - landHeight) / 200);
-                        nx.normalize();
-                        PVector ny = new PVector(0, -1, (snapShot.getWorld(u, v - (2.0f / height)) - landHeight) / 200);
-                        ny.normalize();
-                        PVector n = (nx).cross(ny);
-                        PVector sun = new PVector(-1, -1, 0.5f);
-                        sun.normalize();
                         //n*l lighting
-                        float incidence = sun.dot(n);
+                        float incidence = snapShot.getShade(u, v);
                         //incidence = 0.5;
                         // c=n*l+a
                         float Kambient = 0.4f;
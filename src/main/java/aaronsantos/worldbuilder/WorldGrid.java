@@ -0,0 +1,182 @@
+package aaronsantos.worldbuilder;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Contiguous storage for the per-cell layers of a World.
+ * Every layer is a single float[] of width*height cells in row-major order,
+ * so cell (x, y) lives at index y*width + x and the cells of a row are
+ * adjacent in memory.
+ *
+ * The grid also records when each square tile of each layer was last
+ * written, as an epoch that advances every time a snapshot is taken, so a
+ * snapshot only needs to copy the tiles written since the one before it.
+ * Tiles are as tall as a RowBands band, so a band only ever stamps its own
+ * row of tiles.
+ */
+public class WorldGrid
+{
+    public enum Layer
+    {
+        // Height of the land
+        Elevation,
+        // Height of water
+        Water,
+        SuspendedSediment,
+        TmpSediment,
+        TmpWaterVapor,
+        // Velocity of water
+        WaterVelocityX,
+        WaterVelocityY,
+        // Amount of snow on ground
+        Snow,
+        // Amount of water vapor in the air in grams
+        WaterVapor,
+        // Amount of vegetation
+        Vegetation
+    };
+
+    public static final int TILE_SIZE = RowBands.BAND_HEIGHT;
+
+    final int width, height;
+    final int tilesX, tilesY;
+    private final Map<Layer, float[]> layers = new EnumMap<Layer, float[]>(Layer.class);
+    // Epoch each tile of a layer was last written in. Everything starts at 0,
+    // which is after any snapshot.
+    private final Map<Layer, int[]> written = new EnumMap<Layer, int[]>(Layer.class);
+    private int epoch = 0;
+
+    public WorldGrid(final int width, final int height)
+    {
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        for (Layer layer : Layer.values())
+        {
+            layers.put(layer, new float[width * height]);
+            written.put(layer, new int[tilesX * tilesY]);
+        }
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return The number of cells in each layer.
+     */
+    public int size()
+    {
+        return width * height;
+    }
+
+    /**
+     * @return The offset of cell (x, y) within a layer's data.
+     */
+    public final int index(int x, int y)
+    {
+        return y * width + x;
+    }
+
+    /**
+     * Direct access to the backing array of a layer. Hot loops should fetch
+     * the array once and index it with index(x, y) rather than going through
+     * get/set per cell.
+     */
+    public final float[] data(final Layer layer)
+    {
+        return layers.get(layer);
+    }
+
+    public final float get(final Layer layer, int x, int y)
+    {
+        return layers.get(layer)[y * width + x];
+    }
+
+    public final void set(final Layer layer, int x, int y, float value)
+    {
+        layers.get(layer)[y * width + x] = value;
+    }
+
+    public final void add(final Layer layer, int x, int y, float value)
+    {
+        layers.get(layer)[y * width + x] += value;
+    }
+
+    /**
+     * @return The offset of the tile holding cell (x, y) within a layer's
+     *         tile epochs.
+     */
+    public final int tile(int x, int y)
+    {
+        return (y / TILE_SIZE) * tilesX + x / TILE_SIZE;
+    }
+
+    /**
+     * Direct access to the epoch each tile of a layer was last written in.
+     * Hot loops that write a layer should set written[tile(x, y)] to
+     * getEpoch() for the cells they change.
+     */
+    public final int[] written(final Layer layer)
+    {
+        return written.get(layer);
+    }
+
+    /**
+     * Record that cell (x, y) of a layer was written.
+     */
+    public final void touch(final Layer layer, int x, int y)
+    {
+        written.get(layer)[tile(x, y)] = epoch;
+    }
+
+    /**
+     * Record that every cell of rows [y0, y1) of a layer was written.
+     */
+    public final void touchRows(final Layer layer, int y0, int y1)
+    {
+        if (y0 < y1)
+        {
+            Arrays.fill(written.get(layer), tile(0, y0), tile(0, y1 - 1) + tilesX, epoch);
+        }
+    }
+
+    /**
+     * @return The epoch writes are being recorded in.
+     */
+    public final int getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * Close the current epoch, so later writes are seen as newer than
+     * anything copied up to now. Must not be called while the layers are
+     * being written.
+     * @return The epoch that was closed.
+     */
+    public int advanceEpoch()
+    {
+        return epoch++;
+    }
+
+    /**
+     * @return A copy of the layer's data.
+     */
+    public float[] copyOf(final Layer layer)
+    {
+        final float[] data = layers.get(layer);
+        final float[] copy = new float[data.length];
+        System.arraycopy(data, 0, copy, 0, data.length);
+        return copy;
+    }
+}
@@ -0,0 +1,62 @@
+package aaronsantos.worldbuilder;
+
+/**
+ * The source of all of a World's randomness.
+ * 
+ * Every stream is derived from the master seed and a name, and optionally
+ * an index such as a tile or thread number, so the same seed reproduces
+ * the same world and the streams don't share any state. Code that visits
+ * cells in parallel can draw from uniform(key, counter), which depends
+ * only on its arguments and not on the order cells are visited in.
+ */
+public class WorldRandom
+{
+    private final long seed;
+
+    public WorldRandom(long seed)
+    {
+        this.seed = seed;
+    }
+
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    /**
+     * @return A stream for the named subsystem.
+     */
+    public RandomStream stream(String name)
+    {
+        return new RandomStream(key(name));
+    }
+
+    /**
+     * @return A stream for one tile, band or thread of the named subsystem.
+     */
+    public RandomStream stream(String name, long index)
+    {
+        return new RandomStream(RandomStream.mix(key(name) + index * RandomStream.GOLDEN_GAMMA));
+    }
+
+    /**
+     * @return A key for counter-based draws by the named subsystem.
+     */
+    public long key(String name)
+    {
+        long h = seed;
+        for (int i = 0; i < name.length(); i++)
+        {
+            h = RandomStream.mix(h + name.charAt(i) * RandomStream.GOLDEN_GAMMA);
+        }
+        return h;
+    }
+
+    /**
+     * @return A number in [0, 1) determined by key and counter alone.
+     */
+    public static float uniform(long key, long counter)
+    {
+        return (RandomStream.mix(key ^ RandomStream.mix(counter)) >>> 40) * 0x1.0p-24f;
+    }
+}
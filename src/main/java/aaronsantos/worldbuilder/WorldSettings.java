@@ -0,0 +1,357 @@
+package aaronsantos.worldbuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tunable options for a World. Defaults can be overridden with
+ * -Dworldbuilder.&lt;option&gt;=value system properties.
+ */
+public class WorldSettings
+{
+    /**
+     * Where water vapor is moved by the wind.
+     */
+    public enum VaporTransport
+    {
+        // Every world cell samples the upsampled wind.
+        WORLD_GRID,
+        // The wind solver carries the vapor as a tracer on its own grid.
+        SOLVER_TRACER
+    }
+
+    /**
+     * How surface water flows.
+     */
+    public enum WaterModel
+    {
+        // The explicit virtual pipe model.
+        PIPE,
+        // The pipe model with its fluxes solved implicitly, stable at much larger steps.
+        IMPLICIT
+    }
+
+    // Master seed of all of the world's randomness. Unset, every run makes a new world.
+    private long seed = Long.getLong("worldbuilder.seed", System.nanoTime());
+
+    // Number of threads used to run the phases of a step. 1 runs serially.
+    private int threads = Integer.getInteger("worldbuilder.threads", Runtime.getRuntime().availableProcessors());
+
+    // Elevation change in meters before a cell's terrain normal is recomputed.
+    private float normalEpsilon = Float.parseFloat(System.getProperty("worldbuilder.normalEpsilon", "0.01"));
+
+    // Skip the hydrology of tiles where no water is moving. Stopping their
+    // small flows changes the results from those with every tile active.
+    private boolean activeTiles = Boolean.parseBoolean(System.getProperty("worldbuilder.activeTiles", "true"));
+
+    // Flow in m^3/s, net water change in m^3/s per cell, or suspended
+    // sediment, below which a tile may go dormant.
+    private float activityEpsilon = Float.parseFloat(System.getProperty("worldbuilder.activityEpsilon", "0.0001"));
+
+    // Cells across and down the grid the wind is solved on, independent of the world's size.
+    private int windGridWidth = Integer.getInteger("worldbuilder.windGridWidth", 100);
+    private int windGridHeight = Integer.getInteger("worldbuilder.windGridHeight", 100);
+
+    // How the wind solver's diffusion and projection are solved, and when multigrid stops.
+    private NavierStokesSolver.LinearSolver windSolver = NavierStokesSolver.LinearSolver.valueOf(
+        System.getProperty("worldbuilder.windSolver", "GAUSS_SEIDEL").toUpperCase());
+    private double windTolerance = Double.parseDouble(System.getProperty("worldbuilder.windTolerance", "1e-4"));
+    private int windMaxCycles = Integer.getInteger("worldbuilder.windMaxCycles", 10);
+    // Relax the wind in red-black order over bands of rows, on windThreads
+    // threads. 0 threads uses the same pool as the rest of the step.
+    private boolean windRedBlack = Boolean.parseBoolean(System.getProperty("worldbuilder.windRedBlack", "false"));
+    private int windThreads = Integer.getInteger("worldbuilder.windThreads", 0);
+    // Run the Gauss-Seidel wind solver in single precision. Only the
+    // Gauss-Seidel solver has a single precision version, so World rejects
+    // this with MULTIGRID or FFT.
+    private boolean windFloat = Boolean.parseBoolean(System.getProperty("worldbuilder.windFloat", "false"));
+
+    private VaporTransport vaporTransport = VaporTransport.valueOf(
+        System.getProperty("worldbuilder.vaporTransport", "WORLD_GRID").toUpperCase());
+
+    // Size each step from the current water and wind speeds instead of the
+    // fixed base step: steps may grow to maxDt, and a subsystem that can't
+    // take a whole step stably is split into up to maxSubsteps substeps.
+    private boolean adaptiveDt = Boolean.parseBoolean(System.getProperty("worldbuilder.adaptiveDt", "false"));
+    private float cfl = Float.parseFloat(System.getProperty("worldbuilder.cfl", "0.5"));
+    private float windCfl = Float.parseFloat(System.getProperty("worldbuilder.windCfl", "0"));
+    private float maxDt = Float.parseFloat(System.getProperty("worldbuilder.maxDt", "0.05"));
+    private int maxSubsteps = Integer.getInteger("worldbuilder.maxSubsteps", 8);
+
+    private WaterModel waterModel = WaterModel.valueOf(
+        System.getProperty("worldbuilder.waterModel", "PIPE").toUpperCase());
+
+    // Run the independent phases of a step at the same time when there's more than one thread.
+    private boolean overlapPhases = Boolean.parseBoolean(System.getProperty("worldbuilder.overlapPhases", "true"));
+
+    // Look temperatures and saturation up in tables instead of evaluating the closed-form functions.
+    private boolean thermoTables = Boolean.parseBoolean(System.getProperty("worldbuilder.thermoTables", "true"));
+
+    // Scheduler periods and substeps set in code, by subsystem name.
+    private final Map<String, Integer> periods = new HashMap<String, Integer>();
+    private final Map<String, Integer> substeps = new HashMap<String, Integer>();
+
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    public float getNormalEpsilon()
+    {
+        return normalEpsilon;
+    }
+
+    public void setNormalEpsilon(float normalEpsilon)
+    {
+        this.normalEpsilon = normalEpsilon;
+    }
+
+    public boolean isActiveTiles()
+    {
+        return activeTiles;
+    }
+
+    public void setActiveTiles(boolean activeTiles)
+    {
+        this.activeTiles = activeTiles;
+    }
+
+    public float getActivityEpsilon()
+    {
+        return activityEpsilon;
+    }
+
+    public void setActivityEpsilon(float activityEpsilon)
+    {
+        this.activityEpsilon = activityEpsilon;
+    }
+
+    public int getWindGridWidth()
+    {
+        return windGridWidth;
+    }
+
+    public void setWindGridWidth(int windGridWidth)
+    {
+        this.windGridWidth = Math.max(1, windGridWidth);
+    }
+
+    public int getWindGridHeight()
+    {
+        return windGridHeight;
+    }
+
+    public void setWindGridHeight(int windGridHeight)
+    {
+        this.windGridHeight = Math.max(1, windGridHeight);
+    }
+
+    public NavierStokesSolver.LinearSolver getWindSolver()
+    {
+        return windSolver;
+    }
+
+    public void setWindSolver(NavierStokesSolver.LinearSolver windSolver)
+    {
+        this.windSolver = windSolver;
+    }
+
+    /**
+     * @return Residual, relative to the right hand side, at which multigrid stops.
+     */
+    public double getWindTolerance()
+    {
+        return windTolerance;
+    }
+
+    public void setWindTolerance(double windTolerance)
+    {
+        this.windTolerance = windTolerance;
+    }
+
+    public int getWindMaxCycles()
+    {
+        return windMaxCycles;
+    }
+
+    public void setWindMaxCycles(int windMaxCycles)
+    {
+        this.windMaxCycles = Math.max(1, windMaxCycles);
+    }
+
+    public boolean isWindRedBlack()
+    {
+        return windRedBlack;
+    }
+
+    public void setWindRedBlack(boolean windRedBlack)
+    {
+        this.windRedBlack = windRedBlack;
+    }
+
+    /**
+     * @return Threads the wind solver runs on when it is red-black ordered.
+     */
+    public int getWindThreads()
+    {
+        return windThreads > 0 ? windThreads : threads;
+    }
+
+    public void setWindThreads(int windThreads)
+    {
+        this.windThreads = Math.max(0, windThreads);
+    }
+
+    public boolean isWindFloat()
+    {
+        return windFloat;
+    }
+
+    public void setWindFloat(boolean windFloat)
+    {
+        this.windFloat = windFloat;
+    }
+
+    public VaporTransport getVaporTransport()
+    {
+        return vaporTransport;
+    }
+
+    public void setVaporTransport(VaporTransport vaporTransport)
+    {
+        this.vaporTransport = vaporTransport;
+    }
+
+    public WaterModel getWaterModel()
+    {
+        return waterModel;
+    }
+
+    public void setWaterModel(WaterModel waterModel)
+    {
+        this.waterModel = waterModel;
+    }
+
+    public boolean isOverlapPhases()
+    {
+        return overlapPhases;
+    }
+
+    public void setOverlapPhases(boolean overlapPhases)
+    {
+        this.overlapPhases = overlapPhases;
+    }
+
+    public boolean isAdaptiveDt()
+    {
+        return adaptiveDt;
+    }
+
+    public void setAdaptiveDt(boolean adaptiveDt)
+    {
+        this.adaptiveDt = adaptiveDt;
+    }
+
+    /**
+     * @return Fraction of a cell water may move in one hydrology substep.
+     */
+    public float getCfl()
+    {
+        return cfl;
+    }
+
+    public void setCfl(float cfl)
+    {
+        this.cfl = cfl;
+    }
+
+    /**
+     * @return Wind solver cells air may move in one wind substep, or 0 to
+     *         never split the wind. The solver's advection stays stable
+     *         beyond 1, and the gusts already move air many cells a tick.
+     */
+    public float getWindCfl()
+    {
+        return windCfl;
+    }
+
+    public void setWindCfl(float windCfl)
+    {
+        this.windCfl = windCfl;
+    }
+
+    public float getMaxDt()
+    {
+        return maxDt;
+    }
+
+    public void setMaxDt(float maxDt)
+    {
+        this.maxDt = maxDt;
+    }
+
+    public int getMaxSubsteps()
+    {
+        return maxSubsteps;
+    }
+
+    public void setMaxSubsteps(int maxSubsteps)
+    {
+        this.maxSubsteps = Math.max(1, maxSubsteps);
+    }
+
+    public boolean isThermoTables()
+    {
+        return thermoTables;
+    }
+
+    public void setThermoTables(boolean thermoTables)
+    {
+        this.thermoTables = thermoTables;
+    }
+
+    /**
+     * @return Steps between runs of the named subsystem, from
+     *         -Dworldbuilder.&lt;subsystem&gt;.period if not set.
+     */
+    public int getPeriod(String subsystem, int defaultPeriod)
+    {
+        final Integer period = periods.get(subsystem);
+        return period != null ? period : Integer.getInteger("worldbuilder." + subsystem + ".period", defaultPeriod);
+    }
+
+    public void setPeriod(String subsystem, int period)
+    {
+        periods.put(subsystem, Math.max(1, period));
+    }
+
+    /**
+     * @return Substeps per run of the named subsystem, from
+     *         -Dworldbuilder.&lt;subsystem&gt;.substeps if not set.
+     */
+    public int getSubsteps(String subsystem, int defaultSubsteps)
+    {
+        final Integer count = substeps.get(subsystem);
+        return count != null ? count : Integer.getInteger("worldbuilder." + subsystem + ".substeps", defaultSubsteps);
+    }
+
+    public void setSubsteps(String subsystem, int count)
+    {
+        substeps.put(subsystem, Math.max(1, count));
+    }
+}
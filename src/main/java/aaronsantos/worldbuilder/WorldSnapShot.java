@@ -1,103 +1,281 @@
 package aaronsantos.worldbuilder;
 
+import java.util.ArrayList;
 import java.util.List;
-import processing.core.PApplet;
 
+/**
+ * The state of a World after some step, for drawing and writing out.
+ *
+ * Layers are stored as TiledLayers: snapshots taken with World.getSnapShot
+ * share the tiles nothing wrote to with the snapshot before them, and a
+ * snapshot refilled with World.copyTo only copies the tiles written since
+ * it was last filled. SnapShotQuantizer makes compact copies of snapshots
+ * whose layers are decoded as they are read.
+ */
 public class WorldSnapShot
 {
+    // Dimensions of the layers.
+    final int width, height;
     // Height of world
-
-    float[][] world;
+    final TiledLayer world;
     // Height of water 
-    float[][] water;
+    final TiledLayer water;
     // Height of snow.
-    float[][] snow;
+    final TiledLayer snow;
     // Mass of water vapor.
-    float[][] waterVapor;
+    final TiledLayer waterVapor;
     // Amount of vegetation
-    float[][] vegetation;
+    final TiledLayer vegetation;
+    // Hillshading of the terrain by the sun.
+    final TiledLayer shade;
     // People in the world
     List<Citizen> citizens;
     // Cities of the world
     List<City> cities;
+    // Step of the world the snapshot was taken after, -1 before it's filled.
+    long step = -1;
+    // Epoch of the world's grid the layers were copied in, -1 before they are.
+    int epoch = -1;
+    // Tiles copied, over all layers, the last time the snapshot was filled.
+    int copiedTiles = 0;
 
     public WorldSnapShot
     (
-        final float[][] world,
-        final float[][] water,
-        final float[][] snow,
-        final float[][] waterVapor,
-        float[][] vegetation,
+        final int width,
+        final int height,
+        final float[] world,
+        final float[] water,
+        final float[] snow,
+        final float[] waterVapor,
+        float[] vegetation,
+        float[] shade,
+        List<Citizen> citizens,
+        List<City> cities
+    )
+    {
+        this(width, height, new TiledLayer(width, height, world), new TiledLayer(width, height, water),
+            new TiledLayer(width, height, snow), new TiledLayer(width, height, waterVapor),
+            new TiledLayer(width, height, vegetation), new TiledLayer(width, height, shade), citizens, cities);
+    }
+
+    /**
+     * An empty snapshot whose layers World.copyTo fills in.
+     */
+    public WorldSnapShot(final int width, final int height)
+    {
+        this(width, height, true);
+    }
+
+    /**
+     * @param allocate false leaves the tiles of every layer to be copied or
+     *        shared in.
+     */
+    WorldSnapShot(final int width, final int height, boolean allocate)
+    {
+        this(width, height, new TiledLayer(width, height, allocate), new TiledLayer(width, height, allocate),
+            new TiledLayer(width, height, allocate), new TiledLayer(width, height, allocate),
+            new TiledLayer(width, height, allocate), new TiledLayer(width, height, allocate),
+            new ArrayList<Citizen>(), new ArrayList<City>());
+    }
+
+    WorldSnapShot
+    (
+        final int width,
+        final int height,
+        final TiledLayer world,
+        final TiledLayer water,
+        final TiledLayer snow,
+        final TiledLayer waterVapor,
+        final TiledLayer vegetation,
+        final TiledLayer shade,
         List<Citizen> citizens,
         List<City> cities
     )
     {
+        this.width = width;
+        this.height = height;
         this.world = world;
         this.water = water;
         this.snow = snow;
         this.waterVapor = waterVapor;
         this.vegetation = vegetation;
+        this.shade = shade;
         this.citizens = citizens;
         this.cities = cities;
     }
 
-    public float[][] getWorldData()
+    /**
+     * @return The number of steps the world had taken, or -1 if the snapshot hasn't been taken yet.
+     */
+    public long getStep()
+    {
+        return step;
+    }
+
+    /**
+     * @return How many tiles, over all layers, were copied rather than
+     *         kept or shared the last time the snapshot was filled.
+     */
+    public int getCopiedTiles()
+    {
+        return copiedTiles;
+    }
+
+    /**
+     * @return The number of tiles over all layers.
+     */
+    public int getTileCount()
+    {
+        return 6 * world.getTileCount();
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    // Column and row of the cell under the normalized coordinates u, v.
+    private int column(float u)
+    {
+        return (int) (u * width);
+    }
+
+    private int row(float v)
+    {
+        return (int) (v * height);
+    }
+
+    public TiledLayer getWorldLayer()
     {
         return world;
     }
 
+    /**
+     * @return A row-major copy of the height of the land.
+     */
+    public float[] getWorldData()
+    {
+        return world.toArray();
+    }
+
     public float getWorld(float x, float y)
     {
-        return world[(int) (x * world[0].length)][(int) (y * world.length)];
+        return world.get(column(x), row(y));
     }
 
-    public float[][] getWater()
+    public TiledLayer getWaterLayer()
     {
         return water;
     }
 
+    /**
+     * @return A row-major copy of the height of the water.
+     */
+    public float[] getWater()
+    {
+        return water.toArray();
+    }
+
     public float getWater(float x, float y)
     {
-        return water[(int) (x * water[0].length)][(int) (y * water.length)];
+        return water.get(column(x), row(y));
     }
 
-    public float[][] getSnow()
+    public TiledLayer getSnowLayer()
     {
         return snow;
     }
 
+    /**
+     * @return A row-major copy of the height of the snow.
+     */
+    public float[] getSnow()
+    {
+        return snow.toArray();
+    }
+
     public float getSnow(float x, float y)
     {
-        return snow[(int) (x * snow[0].length)][(int) (y * snow.length)];
+        return snow.get(column(x), row(y));
     }
 
-    public float[][] getWaterVapor()
+    public TiledLayer getWaterVaporLayer()
     {
         return waterVapor;
     }
 
+    /**
+     * @return A row-major copy of the mass of the water vapor.
+     */
+    public float[] getWaterVapor()
+    {
+        return waterVapor.toArray();
+    }
+
     public float getWaterVapor(float x, float y)
     {
-        return waterVapor[(int) (x * waterVapor[0].length)][(int) (y * waterVapor.length)];
+        return waterVapor.get(column(x), row(y));
     }
 
-    public float[][] getVegetation()
+    public TiledLayer getVegetationLayer()
     {
         return vegetation;
     }
 
+    /**
+     * @return A row-major copy of the amount of vegetation.
+     */
+    public float[] getVegetation()
+    {
+        return vegetation.toArray();
+    }
+
     public float getVegetation(float u, float v)
     {
-        int x = (int) (u * vegetation[0].length);
-        int y = (int) (v * vegetation.length);
-        float vo = vegetation[x][y];
-        float ve = vegetation[PApplet.constrain(x + 1, 0, vegetation[0].length - 1)][y];
-        float vw = vegetation[PApplet.constrain(x - 1, 0, vegetation[0].length - 1)][y];
-        float vs = vegetation[x][PApplet.constrain(y + 1, 0, vegetation.length - 1)];
-        float vn = vegetation[x][PApplet.constrain(y - 1, 0, vegetation.length - 1)];
+        int x = column(u);
+        int y = row(v);
+        float vo = vegetation.get(x, y);
+        float ve = vegetation.get(Util.constrain(x + 1, 0, width - 1), y);
+        float vw = vegetation.get(Util.constrain(x - 1, 0, width - 1), y);
+        float vs = vegetation.get(x, Util.constrain(y + 1, 0, height - 1));
+        float vn = vegetation.get(x, Util.constrain(y - 1, 0, height - 1));
         return (vo + ve + vw + vs + vn) / 5;
     }
 
+    public TiledLayer getShadeLayer()
+    {
+        return shade;
+    }
+
+    /**
+     * @return A row-major copy of the hillshading.
+     */
+    public float[] getShade()
+    {
+        return shade.toArray();
+    }
+
+    /**
+     * @return Cosine of the angle between the terrain and the sun, negative
+     * when the terrain faces away from it.
+     */
+    public float getShade(float x, float y)
+    {
+        return shade.get(column(x), row(y));
+    }
+
+    // The layers in a fixed order: world, water, snow, water vapor,
+    // vegetation and shade.
+    TiledLayer[] layers()
+    {
+        return new TiledLayer[] { world, water, snow, waterVapor, vegetation, shade };
+    }
+
     public List<Citizen> getCitizens()
     {
         return citizens;
@@ -0,0 +1,94 @@
+package aaronsantos.worldbuilder;
+
+import aaronsantos.worldbuilder.WorldGrid.Layer;
+
+/**
+ * A read-only view of a World as of the end of one step, for point and
+ * region reads from other threads.
+ *
+ * Once a view has been asked for, the World publishes a new one at the end
+ * of every step, built like getSnapShot from the tiles written during the
+ * step plus the tiles of the view before it. Getting the latest view is a
+ * volatile read and a view never changes, so readers never take the
+ * World's lock, never hold up the step, and every read from one view is
+ * consistent with the others, however long it is kept.
+ */
+public class WorldView
+{
+    private final WorldSnapShot snapShot;
+
+    WorldView(final WorldSnapShot snapShot)
+    {
+        this.snapShot = snapShot;
+    }
+
+    /**
+     * @return The number of steps the world had taken.
+     */
+    public long getStep()
+    {
+        return snapShot.step;
+    }
+
+    public int getWidth()
+    {
+        return snapShot.width;
+    }
+
+    public int getHeight()
+    {
+        return snapShot.height;
+    }
+
+    /**
+     * @param layer Elevation, Water, Snow, WaterVapor or Vegetation.
+     */
+    public TiledLayer getLayer(final Layer layer)
+    {
+        switch (layer)
+        {
+            case Elevation:
+                return snapShot.world;
+            case Water:
+                return snapShot.water;
+            case Snow:
+                return snapShot.snow;
+            case WaterVapor:
+                return snapShot.waterVapor;
+            case Vegetation:
+                return snapShot.vegetation;
+            default:
+                throw new IllegalArgumentException(String.format("%s is not kept in views", layer));
+        }
+    }
+
+    /**
+     * @return Cosine of the angle between the terrain and the sun.
+     */
+    public TiledLayer getShade()
+    {
+        return snapShot.shade;
+    }
+
+    public float get(final Layer layer, int x, int y)
+    {
+        return getLayer(layer).get(x, y);
+    }
+
+    /**
+     * @return Columns [x0, x1) of rows [y0, y1) of the layer, row-major.
+     */
+    public float[] read(final Layer layer, int x0, int y0, int x1, int y1)
+    {
+        return getLayer(layer).read(x0, y0, x1, y1, new float[Math.max(0, (x1 - x0) * (y1 - y0))]);
+    }
+
+    /**
+     * @return The view as a snapshot, for the writers. It must not be
+     *         passed to World.copyTo.
+     */
+    public WorldSnapShot getSnapShot()
+    {
+        return snapShot;
+    }
+}
@@ -0,0 +1,82 @@
+package aaronsantos.worldbuilder.bench;
+
+import aaronsantos.worldbuilder.FFTFluidSolver;
+import aaronsantos.worldbuilder.FluidSolver;
+import aaronsantos.worldbuilder.NavierStokesSolver;
+import java.util.Random;
+
+/**
+ * Times a wind tick of the Gauss-Seidel NavierStokesSolver against the
+ * FFTFluidSolver on square grids, forced like World.gust forces the wind:
+ * one gust of 2000 east and 1 north or south, at a random cell, every tick.
+ *
+ * Usage: FluidSolverBenchmark [ticks] [size...]
+ */
+public class FluidSolverBenchmark
+{
+    static final double dt = 0.005;
+    static final double visc = 0.00006;
+    static final double force = 2000;
+
+    public static void main(String[] args)
+    {
+        final int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int[] sizes = { 100, 256, 512 };
+        if (args.length > 1)
+        {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+            {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int size : sizes)
+        {
+            // Warm up both solvers before timing them.
+            run(new NavierStokesSolver(size, size), 5);
+            run(new FFTFluidSolver(size, size), 5);
+
+            final NavierStokesSolver gaussSeidel = new NavierStokesSolver(size, size);
+            final long gaussSeidelNanos = run(gaussSeidel, ticks);
+            final FFTFluidSolver fft = new FFTFluidSolver(size, size);
+            final long fftNanos = run(fft, ticks);
+
+            System.out.println(String.format("%dx%d grid, %d ticks", size, size, ticks));
+            report("gauss-seidel", gaussSeidel, gaussSeidelNanos, ticks);
+            report("fft", fft, fftNanos, ticks);
+            System.out.println(String.format("speedup %.2fx", (double) gaussSeidelNanos / fftNanos));
+        }
+    }
+
+    // Ticks the solver with the same gusts every run and returns the time taken.
+    static long run(FluidSolver solver, int ticks)
+    {
+        final Random random = new Random(42);
+        final long start = System.nanoTime();
+        for (int t = 0; t < ticks; t++)
+        {
+            solver.applyForce(random.nextInt(solver.getGridWidth()), random.nextInt(solver.getGridHeight()),
+                force, random.nextBoolean() ? -1 : 1);
+            solver.tick(dt, visc);
+        }
+        return System.nanoTime() - start;
+    }
+
+    static void report(String name, FluidSolver solver, long nanos, int ticks)
+    {
+        // Mean speed at the cell centers, to see both solvers carry a similar field.
+        final int nx = solver.getGridWidth(), ny = solver.getGridHeight();
+        double speed = 0;
+        for (int j = 0; j < ny; j++)
+        {
+            for (int i = 0; i < nx; i++)
+            {
+                final double dx = solver.getDx(i + 0.5f, j + 0.5f, nx, ny);
+                final double dy = solver.getDy(i + 0.5f, j + 0.5f, nx, ny);
+                speed += Math.sqrt(dx * dx + dy * dy);
+            }
+        }
+        System.out.println(String.format("%-12s %8.2f ms/tick, mean speed %.3g", name, nanos / 1e6 / ticks,
+            speed / (nx * ny)));
+    }
+}
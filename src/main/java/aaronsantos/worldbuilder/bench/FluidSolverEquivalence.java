@@ -0,0 +1,92 @@
+package aaronsantos.worldbuilder.bench;
+
+import aaronsantos.worldbuilder.FloatNavierStokesSolver;
+import aaronsantos.worldbuilder.FluidSolver;
+import aaronsantos.worldbuilder.NavierStokesSolver;
+import java.util.Random;
+
+/**
+ * Checks that the float NavierStokesSolver computes the same ticks as the
+ * double one. Both are forced like World.gust forces the wind, 2000 east
+ * and 1 north or south at a random cell every tick; before every tick the
+ * float solver takes over the double solver's state, so each tick is
+ * compared from the same start. The RMS difference of the velocities after
+ * the tick, relative to the RMS speed, must stay below tolerance or the
+ * check exits with status 1.
+ *
+ * The gusts are strong enough that rounding differences grow when the two
+ * run freely, so the free-running difference is reported too, but not checked.
+ *
+ * Usage: FluidSolverEquivalence [size] [ticks] [tolerance]
+ */
+public class FluidSolverEquivalence
+{
+    static final double dt = 0.0025;
+    static final double visc = 0.00006;
+    static final double force = 2000;
+
+    public static void main(String[] args)
+    {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 1e-4;
+
+        final NavierStokesSolver reference = new NavierStokesSolver(size, size);
+        final FloatNavierStokesSolver single = new FloatNavierStokesSolver(new FloatNavierStokesSolver.Workspace(size, size));
+        final FloatNavierStokesSolver free = new FloatNavierStokesSolver(size, size);
+        final Random random = new Random(42);
+        long referenceNanos = 0, singleNanos = 0;
+        double worst = 0;
+        for (int t = 1; t <= ticks; t++)
+        {
+            // The same gust World applies, at a random cell.
+            final int cellX = random.nextInt(size), cellY = random.nextInt(size);
+            final double dy = random.nextBoolean() ? -1 : 1;
+            reference.applyForce(cellX, cellY, force, dy);
+            free.applyForce(cellX, cellY, force, dy);
+            single.copyFrom(reference);
+
+            long start = System.nanoTime();
+            reference.tick(dt, visc);
+            referenceNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            single.tick(dt, visc);
+            singleNanos += System.nanoTime() - start;
+            free.tick(dt, visc);
+
+            final double difference = relativeDifference(reference, single, size);
+            worst = Math.max(worst, difference);
+            if (t % 50 == 0 || t == ticks)
+            {
+                System.out.println(String.format("tick %4d difference %.3g, free running %.3g", t, difference,
+                    relativeDifference(reference, free, size)));
+            }
+        }
+        System.out.println(String.format("double %.2f ms/tick, float %.2f ms/tick, worst difference %.3g",
+            referenceNanos / 1e6 / ticks, singleNanos / 1e6 / ticks, worst));
+        if (worst > tolerance)
+        {
+            System.out.println(String.format("FAILED: difference above %g", tolerance));
+            System.exit(1);
+        }
+        System.out.println("equivalent");
+    }
+
+    // RMS difference in velocity at the cell centers, relative to the RMS speed.
+    static double relativeDifference(FluidSolver a, FluidSolver b, int size)
+    {
+        double difference = 0, speed = 0;
+        for (int j = 0; j < size; j++)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                final float x = i + 0.5f, y = j + 0.5f;
+                final double ax = a.getDx(x, y, size, size), ay = a.getDy(x, y, size, size);
+                final double bx = b.getDx(x, y, size, size), by = b.getDy(x, y, size, size);
+                difference += (ax - bx) * (ax - bx) + (ay - by) * (ay - by);
+                speed += ax * ax + ay * ay;
+            }
+        }
+        return Math.sqrt(difference / Math.max(speed, Double.MIN_NORMAL));
+    }
+}
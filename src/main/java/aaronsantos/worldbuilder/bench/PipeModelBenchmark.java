@@ -0,0 +1,207 @@
+package aaronsantos.worldbuilder.bench;
+
+import aaronsantos.worldbuilder.PipeModel;
+import java.util.Random;
+
+/**
+ * Compares the memory bandwidth of the fused PipeModel kernel against the
+ * three-pass pipe model World.step used to run (unscaled flux into four tmp
+ * layers, scaling into four flux layers, then the water update).
+ * 
+ * Usage: PipeModelBenchmark [size] [steps]
+ */
+public class PipeModelBenchmark
+{
+    static final float l = 1;
+    static final float A = l * l;
+    static final float g = 9.81f;
+    static final float dt = 0.005f;
+
+    // Float layers streamed per step, counting each array read or written once per pass.
+    // Three pass: flux (world, water, 4 flux, 4 tmp), scaling (4 tmp, water, 4 flux),
+    // water update (4 flux, water read and written, 2 velocity).
+    static final int THREE_PASS_LAYERS = 10 + 9 + 8;
+    // Fused: flux (world, water, 4 flux read and written), water update (4 flux, water read
+    // and written, 2 velocity).
+    static final int FUSED_LAYERS = 10 + 8;
+
+    public static void main(String[] args)
+    {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        final int steps = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        final float[] world = new float[size * size];
+        final float[] initialWater = new float[size * size];
+        makeTerrain(world, initialWater, size, size);
+
+        final float[] threePassWater = initialWater.clone();
+        final PipeModel fused = new PipeModel(size, size);
+        final float[] fusedWater = initialWater.clone();
+        final float[] velocityX = new float[size * size];
+        final float[] velocityY = new float[size * size];
+
+        // Warm up both kernels before timing them.
+        for (int i = 0; i < 5; i++)
+        {
+            new ThreePass(size, size).step(world, initialWater.clone(), dt);
+            final PipeModel warmup = new PipeModel(size, size);
+            final float[] warmupWater = initialWater.clone();
+            warmup.computeFlux(world, warmupWater, 0, size, 0, size, dt);
+            warmup.updateWater(warmupWater, velocityX, velocityY, 0, size, 0, size, dt);
+        }
+
+        final ThreePass threePass = new ThreePass(size, size);
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++)
+        {
+            threePass.step(world, threePassWater, dt);
+        }
+        final long threePassNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < steps; i++)
+        {
+            fused.computeFlux(world, fusedWater, 0, size, 0, size, dt);
+            fused.updateWater(fusedWater, velocityX, velocityY, 0, size, 0, size, dt);
+        }
+        final long fusedNanos = System.nanoTime() - start;
+
+        float maxDifference = 0;
+        for (int i = 0; i < size * size; i++)
+        {
+            maxDifference = Math.max(maxDifference, Math.abs(threePassWater[i] - fusedWater[i]));
+        }
+
+        System.out.println(String.format("%dx%d grid, %d steps", size, size, steps));
+        report("three pass", threePassNanos, steps, size, THREE_PASS_LAYERS);
+        report("fused", fusedNanos, steps, size, FUSED_LAYERS);
+        System.out.println(String.format("speedup %.2fx, max water difference %g m",
+            (double) threePassNanos / fusedNanos, maxDifference));
+    }
+
+    static void report(String name, long nanos, int steps, int size, int layers)
+    {
+        final double msPerStep = nanos / 1e6 / steps;
+        final double bytes = (double) layers * 4 * size * size * steps;
+        System.out.println(String.format("%-10s %8.2f ms/step %6.2f GB/s", name, msPerStep, bytes / nanos));
+    }
+
+    // Smooth random hills around sea level, flooded to 2500m like World does.
+    static void makeTerrain(final float[] world, final float[] water, int width, int height)
+    {
+        final Random random = new Random(42);
+        final float[] ax = new float[8], ay = new float[8], px = new float[8], py = new float[8];
+        for (int k = 0; k < 8; k++)
+        {
+            ax[k] = random.nextFloat() * 20 / width;
+            ay[k] = random.nextFloat() * 20 / height;
+            px[k] = random.nextFloat() * 6;
+            py[k] = random.nextFloat() * 6;
+        }
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                float h = 2500;
+                for (int k = 0; k < 8; k++)
+                {
+                    h += 150 * Math.sin(ax[k] * x + px[k]) * Math.cos(ay[k] * y + py[k]);
+                }
+                world[y * width + x] = h;
+                water[y * width + x] = Math.max(0, 2500 - h) + 0.01f;
+            }
+        }
+    }
+
+    /**
+     * The pipe model as World.step ran it before it was fused.
+     */
+    static class ThreePass
+    {
+        final int width, height;
+        final float[] outflowFluxL, outflowFluxR, outflowFluxT, outflowFluxB;
+        final float[] tmpOutflowFluxL, tmpOutflowFluxR, tmpOutflowFluxT, tmpOutflowFluxB;
+        final float[] waterVelocityX, waterVelocityY;
+
+        ThreePass(int width, int height)
+        {
+            this.width = width;
+            this.height = height;
+            final int n = width * height;
+            outflowFluxL = new float[n];
+            outflowFluxR = new float[n];
+            outflowFluxT = new float[n];
+            outflowFluxB = new float[n];
+            tmpOutflowFluxL = new float[n];
+            tmpOutflowFluxR = new float[n];
+            tmpOutflowFluxT = new float[n];
+            tmpOutflowFluxB = new float[n];
+            waterVelocityX = new float[n];
+            waterVelocityY = new float[n];
+        }
+
+        void step(final float[] world, final float[] water, float dt)
+        {
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    final int i = y * width + x;
+                    if (x > 0)
+                    {
+                        float dh = world[i] + water[i] - world[i - 1] - water[i - 1];
+                        tmpOutflowFluxL[i] = Math.max(0, outflowFluxL[i] + dt * A * g * dh / l);
+                    }
+                    if (x < width - 1)
+                    {
+                        float dh = world[i] + water[i] - world[i + 1] - water[i + 1];
+                        tmpOutflowFluxR[i] = Math.max(0, outflowFluxR[i] + dt * A * g * dh / l);
+                    }
+                    if (y > 0)
+                    {
+                        float dh = world[i] + water[i] - world[i - width] - water[i - width];
+                        tmpOutflowFluxT[i] = Math.max(0, outflowFluxT[i] + dt * A * g * dh / l);
+                    }
+                    if (y < height - 1)
+                    {
+                        float dh = world[i] + water[i] - world[i + width] - water[i + width];
+                        tmpOutflowFluxB[i] = Math.max(0, outflowFluxB[i] + dt * A * g * dh / l);
+                    }
+                }
+            }
+            for (int i = 0; i < width * height; i++)
+            {
+                if (tmpOutflowFluxL[i] + tmpOutflowFluxR[i] + tmpOutflowFluxT[i] + tmpOutflowFluxB[i] > 0)
+                {
+                    float K = Math.min(1, water[i] * l * l / ((tmpOutflowFluxL[i] + tmpOutflowFluxR[i] + tmpOutflowFluxT[i] + tmpOutflowFluxB[i]) * dt));
+                    outflowFluxL[i] = K * tmpOutflowFluxL[i];
+                    outflowFluxR[i] = K * tmpOutflowFluxR[i];
+                    outflowFluxT[i] = K * tmpOutflowFluxT[i];
+                    outflowFluxB[i] = K * tmpOutflowFluxB[i];
+                }
+            }
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    final int i = y * width + x;
+                    float dV = dt * (
+                        (x <= 0 ? 0.0f : outflowFluxR[i - 1])
+                        + (y <= 0 ? 0.0f : outflowFluxB[i - width])
+                        + (x >= width - 1 ? 0.0f : outflowFluxL[i + 1])
+                        + (y >= height - 1 ? 0.0f : outflowFluxT[i + width])
+                        - (outflowFluxL[i] + outflowFluxR[i] + outflowFluxT[i] + outflowFluxB[i]));
+                    water[i] += dV / (l * l);
+                    if (water[i] < 0)
+                    {
+                        water[i] = 0;
+                    }
+                    waterVelocityX[i] = ((x <= 0 ? 0.0f : outflowFluxR[i - 1]) - outflowFluxL[i]
+                        + outflowFluxR[i] - (x >= width - 1 ? 0.0f : outflowFluxL[i + 1])) / 2;
+                    waterVelocityY[i] = ((y == 0 ? 0.0f : outflowFluxB[i - width]) - outflowFluxT[i]
+                        + outflowFluxB[i] - (y >= height - 1 ? 0.0f : outflowFluxT[i + width])) / 2;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package aaronsantos.worldbuilder.bench;
+
+import aaronsantos.worldbuilder.ImplicitShallowWaterModel;
+import aaronsantos.worldbuilder.PipeModel;
+import aaronsantos.worldbuilder.ShallowWaterModel;
+import aaronsantos.worldbuilder.World;
+
+/**
+ * Runs the explicit PipeModel and the ImplicitShallowWaterModel over the
+ * same simulated time at a range of time steps, and compares how well they
+ * conserve water, how long a simulated hour takes, and how far their water
+ * ends up from the pipe model at World's step.
+ *
+ * The world is PipeModelBenchmark's flooded hills with a column of water
+ * dropped into one corner.
+ *
+ * Usage: ShallowWaterComparison [size] [simulated hours]
+ */
+public class ShallowWaterComparison
+{
+    // World's step is 0.005 and covers World.minutesPerStep minutes.
+    static final float baseDt = 0.005f;
+    static final double hourDt = baseDt * 60.0 / World.minutesPerStep;
+    static final float[] dts = { 0.005f, 0.05f, 0.2f, 0.5f };
+
+    public static void main(String[] args)
+    {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        final double hours = args.length > 1 ? Double.parseDouble(args[1]) : 24;
+
+        final float[] world = new float[size * size];
+        final float[] initialWater = new float[size * size];
+        PipeModelBenchmark.makeTerrain(world, initialWater, size, size);
+        for (int y = 0; y < size / 4; y++)
+        {
+            for (int x = 0; x < size / 4; x++)
+            {
+                initialWater[y * size + x] += 50;
+            }
+        }
+        final double volume = volume(initialWater);
+
+        // Warm up both models before timing them.
+        run(new PipeModel(size, size), world, initialWater.clone(), baseDt, 20);
+        run(new ImplicitShallowWaterModel(size, size), world, initialWater.clone(), baseDt, 20);
+
+        System.out.println(String.format("%dx%d grid, %.1f simulated hours", size, size, hours));
+        final float[] reference = initialWater.clone();
+        final int referenceSteps = (int)Math.round(hours * hourDt / baseDt);
+        run(new PipeModel(size, size), world, reference, baseDt, referenceSteps);
+        for (float dt : dts)
+        {
+            final int steps = (int)Math.round(hours * hourDt / dt);
+            report("pipe", new PipeModel(size, size), world, initialWater, volume, reference, dt, steps, hours);
+            report("implicit", new ImplicitShallowWaterModel(size, size), world, initialWater, volume, reference,
+                dt, steps, hours);
+        }
+    }
+
+    static void report(String name, ShallowWaterModel model, float[] world, float[] initialWater, double volume,
+        float[] reference, float dt, int steps, double hours)
+    {
+        final float[] water = initialWater.clone();
+        final long nanos = run(model, world, water, dt, steps);
+        double difference = 0;
+        float maxWater = 0;
+        for (int i = 0; i < water.length; i++)
+        {
+            difference += (water[i] - reference[i]) * (water[i] - reference[i]);
+            maxWater = Math.max(maxWater, water[i]);
+        }
+        String iterations = "";
+        if (model instanceof ImplicitShallowWaterModel)
+        {
+            iterations = String.format(", %d iterations", ((ImplicitShallowWaterModel)model).getIterations());
+        }
+        System.out.println(String.format("%-8s dt %.3f: %5d steps, %8.2f ms/simulated hour, volume error %.2e, "
+            + "rms difference %.3g m, max water %.4g m%s", name, dt, steps, nanos / 1e6 / hours,
+            (volume(water) - volume) / volume, Math.sqrt(difference / water.length), maxWater, iterations));
+    }
+
+    // Steps the model over the whole grid and returns the time taken.
+    static long run(ShallowWaterModel model, float[] world, float[] water, float dt, int steps)
+    {
+        final int width = (int)Math.round(Math.sqrt(water.length));
+        final float[] velocityX = new float[water.length];
+        final float[] velocityY = new float[water.length];
+        final long start = System.nanoTime();
+        for (int i = 0; i < steps; i++)
+        {
+            model.computeFlux(world, water, 0, width, 0, width, dt);
+            model.solve(world, water, dt);
+            model.updateWater(water, velocityX, velocityY, 0, width, 0, width, dt);
+        }
+        return System.nanoTime() - start;
+    }
+
+    static double volume(float[] water)
+    {
+        double volume = 0;
+        for (float w : water)
+        {
+            volume += w;
+        }
+        return volume;
+    }
+}
@@ -19,17 +19,25 @@ import org.codehaus.jackson.node.ObjectNode;
 public class GeoJSONWriter
 {
     public final void write(final WorldSnapShot snapShot) throws IOException
+    {
+        write(snapShot, new File("."));
+    }
+
+    /**
+     * Writes the snapshot to a file in the given directory.
+     */
+    public final void write(final WorldSnapShot snapShot, final File directory) throws IOException
     {
         final Date now = new Date();
         final String path = String.format("SnapShot-%s.json", now.toString()).replace(" ", "-");
         final JsonFactory factory = new JsonFactory();
-        final JsonGenerator generator = factory.createJsonGenerator(new File(path), JsonEncoding.UTF8);
+        final JsonGenerator generator = factory.createJsonGenerator(new File(directory, path), JsonEncoding.UTF8);
         generator.setCodec(new ObjectMapper());
 
         JsonNodeFactory nodeFactory = JsonNodeFactory.instance;
 
         final ArrayNode features = nodeFactory.arrayNode();
-        features.add(makeElevationFeature(snapShot.getWorldData()));
+        features.add(makeElevationFeature(snapShot.getWorldData(), snapShot.getWidth(), snapShot.getHeight()));
 
         ObjectNode featureCollection = nodeFactory.objectNode();
         featureCollection.put("type", "FeatureCollection");
@@ -45,7 +53,7 @@ public class GeoJSONWriter
         }
     }
     
-    private ObjectNode makeElevationFeature(final float[][] data)
+    private ObjectNode makeElevationFeature(final float[] data, final int width, final int height)
     {
         JsonNodeFactory nodeFactory = JsonNodeFactory.instance;
         
@@ -54,22 +62,25 @@ public class GeoJSONWriter
 
         ObjectNode elevationFeature = nodeFactory.objectNode();
         elevationFeature.put("type", "Feature");
-        elevationFeature.put("geometry", makeGeometry(data));
+        elevationFeature.put("geometry", makeGeometry(data, width, height));
         
         elevationFeature.put("properties", elevationProperties);
         return elevationFeature;
     }
     
-    private ObjectNode makeGeometry(final float[][] data)
+    /**
+     * @param data Row-major elevation data of width*height cells.
+     */
+    private ObjectNode makeGeometry(final float[] data, final int width, final int height)
     {
         JsonNodeFactory nodeFactory = JsonNodeFactory.instance;
 
         ObjectNode geometry = nodeFactory.objectNode();
         geometry.put("type", "MultiPolygon");
         ArrayNode coordinates = geometry.putArray("coordinates");
-        for (int i = 0; i < data.length-1; i++)
+        for (int i = 0; i < width-1; i++)
         {
-            for (int j = 0; j < data[i].length-1; j++)
+            for (int j = 0; j < height-1; j++)
             {
                 ArrayNode polygon = coordinates.addArray();
                 ArrayNode p0 = polygon.addArray();
@@ -79,19 +90,19 @@ public class GeoJSONWriter
 
                 p0.add(i);
                 p0.add(j);
-                p0.add(data[i][j]);
+                p0.add(data[j*width+i]);
 
                 p1.add(i+1);
                 p1.add(j);
-                p1.add(data[i+1][j]);
+                p1.add(data[j*width+i+1]);
 
                 p2.add(i+1);
                 p2.add(j+1);
-                p2.add(data[i+1][j+1]);
+                p2.add(data[(j+1)*width+i+1]);
 
                 p3.add(i);
                 p3.add(j+1);
-                p3.add(data[i][j+1]);
+                p3.add(data[(j+1)*width+i]);
             }
         }
         return geometry;
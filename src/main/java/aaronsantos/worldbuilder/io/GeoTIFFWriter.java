@@ -1,6 +1,7 @@
 package aaronsantos.worldbuilder.io;
 
 import aaronsantos.worldbuilder.WorldSnapShot;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -40,29 +41,41 @@ import ucar.nc2.geotiff.GeotiffWriter;
 public class GeoTIFFWriter
 {
     public final void write(final WorldSnapShot snapShot) throws IOException
+    {
+        write(snapShot, new File("."));
+    }
+
+    /**
+     * Writes one file per layer of the snapshot to the given directory.
+     */
+    public final void write(final WorldSnapShot snapShot, final File directory) throws IOException
     {
         final Date now = new Date();
         final String elevationPath = String.format("SnapShot-elevation-%s.tiff", now.toString()).replace(" ", "-");
-        write(elevationPath, snapShot.getWorldData());
+        write(new File(directory, elevationPath).getPath(), snapShot.getWorldData(), snapShot.getWidth(), snapShot.getHeight());
         
         
         final String waterPath = String.format("SnapShot-water-%s.tiff", now.toString()).replace(" ", "-");
-        write(waterPath, snapShot.getWater());
+        write(new File(directory, waterPath).getPath(), snapShot.getWater(), snapShot.getWidth(), snapShot.getHeight());
         
         
         final String vegPath = String.format("SnapShot-veg-%s.tiff", now.toString()).replace(" ", "-");
-        write(vegPath, snapShot.getVegetation());
+        write(new File(directory, vegPath).getPath(), snapShot.getVegetation(), snapShot.getWidth(), snapShot.getHeight());
         
         
         final String vaporPath = String.format("SnapShot-waterVapor-%s.tiff", now.toString()).replace(" ", "-");
-        write(vaporPath, snapShot.getWaterVapor());
+        write(new File(directory, vaporPath).getPath(), snapShot.getWaterVapor(), snapShot.getWidth(), snapShot.getHeight());
         
         
         final String snowPath = String.format("SnapShot-snow-%s.tiff", now.toString()).replace(" ", "-");
-        write(snowPath, snapShot.getSnow());
+        write(new File(directory, snowPath).getPath(), snapShot.getSnow(), snapShot.getWidth(), snapShot.getHeight());
         
     }
-    private final void write(final String path, final float[][] data) throws IOException
+    /**
+     * Writes one layer.
+     * @param data Row-major layer data of width*height cells.
+     */
+    private final void write(final String path, final float[] data, final int width, final int height) throws IOException
     {
         
         final GeotiffWriter writer = new GeotiffWriter(path);
@@ -82,15 +95,15 @@ public class GeoTIFFWriter
                 DataType.FLOAT, "1", "m", "Elevation variable DS");
             CoordinateAxis1D lat = new CoordinateAxis1D(ds, vds);
             lat.setAxisType(AxisType.Lat);
-            lat.setDimensions(Integer.toString(data.length));
+            lat.setDimensions(Integer.toString(height));
             lat.resetShape();
-            lat.setValues(data.length, 0, 1);
+            lat.setValues(height, 0, 1);
             lat.setFillValueIsMissing(true);
             CoordinateAxis1D lon = new CoordinateAxis1D(ds, vds);
             lon.setAxisType(AxisType.Lon);
-            lon.setDimensions(Integer.toString(data[0].length));
+            lon.setDimensions(Integer.toString(width));
             lon.resetShape();
-            lon.setValues(data[0].length, 0, 1);
+            lon.setValues(width, 0, 1);
             lon.setFillValueIsMissing(true);
             axes.add(lat);
             axes.add(lon);
@@ -99,12 +112,12 @@ public class GeoTIFFWriter
             GridCoordSys gcs = new GridCoordSys(cs, errlog);
             GridDatatype grid = new GeoGrid(dataset, vds, gcs);
 
-            final ArrayFloat.D2 af = new ArrayFloat.D2(data.length, data[0].length);
-            for (int i= 0; i < data.length; i++)
+            final ArrayFloat.D2 af = new ArrayFloat.D2(height, width);
+            for (int j = 0; j < height; j++)
             {
-                for (int j = 0; j < data[i].length; j++)
+                for (int i = 0; i < width; i++)
                 {
-                    af.set(j, i, data[i][j]);
+                    af.set(j, i, data[j * width + i]);
                 }
             }
             writer.writeGrid(dataset, grid, af, true);